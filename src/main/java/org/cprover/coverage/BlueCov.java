@@ -20,16 +20,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
 
 /**
  * <code>BlueCov</code> is the main class for bytecode instrumentation.
  */
 public final class BlueCov {
 
+  /**
+   * <code>WORKERS_ENV_VAR</code> is the name of the environment variable that holds the number of
+   * threads instrumenting classes, the number of processors by default.
+   */
+  public static final String WORKERS_ENV_VAR = "BLUECOV_WORKERS";
+  /**
+   * <code>QUEUED_PER_WORKER</code> is the number of classes each worker may parse ahead of the
+   * registration of goals.
+   */
+  private static final int QUEUED_PER_WORKER = 4;
+
   /**
    * <code>main</code> method for command line usage.
    *
@@ -54,13 +70,24 @@ public final class BlueCov {
   }
 
   /**
-   * <code>doIt</code> is the main entry point for bytecode instrumentation.
+   * <code>doIt</code> is the main entry point for bytecode instrumentation. Class files are read
+   * and instrumented by {@link #WORKERS_ENV_VAR} threads, while their goals are registered in the
+   * order of the list, so every goal gets the same UID as in a serial run.
    *
    * @param classFileList the name of the file that holds the list of class files to instrument
    *                      <code>String</code>
    */
   void doIt(final String classFileList) {
     CoverageInstrument cov = new CoverageInstrument();
+    int workers = workersFromEnvironment();
+    ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+      Thread thread = new Thread(runnable, "bluecov-instrument");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // parsed classes waiting to be registered, bounded to keep memory flat for long lists
+    ArrayDeque<Future<CoverageInstrument.PendingClass>> parsed = new ArrayDeque<>();
+    ArrayList<Future<?>> written = new ArrayList<>();
     try (InputStream f = new FileInputStream(classFileList);) {
       InputStreamReader ir = new InputStreamReader(f, Charset.defaultCharset());
       BufferedReader br = new BufferedReader(ir);
@@ -68,16 +95,10 @@ public final class BlueCov {
       String classFileName;
 
       while ((classFileName = br.readLine()) != null) {
-        try (InputStream fs = new FileInputStream(classFileName + ".json")) {
-          JsonReader jsonReader = Json.createReader(fs);
-          JsonArray json = jsonReader.readArray();
-
-          cov.instrumentClassFile(classFileName, classFileName, json);
-        } catch (FileNotFoundException fnfe) {
-          System.err.println(
-              "ERROR: file '" + classFileName + ".json' not found");
-        } catch (IOException ioe) {
-          System.err.println("ERROR: " + ioe.getMessage());
+        final String name = classFileName;
+        parsed.add(pool.submit(() -> parse(cov, name)));
+        if (parsed.size() > workers * QUEUED_PER_WORKER) {
+          registerNext(cov, pool, parsed, written);
         }
       }
     } catch (FileNotFoundException fnfe) {
@@ -85,6 +106,102 @@ public final class BlueCov {
     } catch (IOException ioe) {
       System.err.println(
           "ERROR: could not read " + classFileList + "\n" + ioe.getMessage());
+    } finally {
+      while (!parsed.isEmpty()) {
+        registerNext(cov, pool, parsed, written);
+      }
+      for (Future<?> w : written) {
+        await(w);
+      }
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * <code>parse</code> reads a class file and its properties.
+   *
+   * @param cov           the <code>CoverageInstrument</code>
+   * @param classFileName name of the class file as <code>String</code>
+   * @return the <code>PendingClass</code>, or <code>null</code> if it cannot be instrumented
+   */
+  private static CoverageInstrument.PendingClass parse(
+      final CoverageInstrument cov,
+      final String classFileName) {
+    try (InputStream fs = new FileInputStream(classFileName + ".json");
+        JsonParser json = Json.createParser(fs)) {
+      return cov.parse(classFileName, classFileName, json);
+    } catch (FileNotFoundException fnfe) {
+      System.err.println(
+          "ERROR: file '" + classFileName + ".json' not found");
+    } catch (IOException ioe) {
+      System.err.println("ERROR: " + ioe.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * <code>registerNext</code> registers the goals of the next class in the list and queues it for
+   * writing.
+   *
+   * @param cov     the <code>CoverageInstrument</code>
+   * @param pool    the <code>ExecutorService</code> of the workers
+   * @param parsed  the classes being parsed in list order
+   * @param written the classes being written
+   */
+  private static void registerNext(
+      final CoverageInstrument cov,
+      final ExecutorService pool,
+      final ArrayDeque<Future<CoverageInstrument.PendingClass>> parsed,
+      final ArrayList<Future<?>> written) {
+    CoverageInstrument.PendingClass pending = await(parsed.poll());
+    if (pending != null) {
+      cov.register(pending);
+      written.add(pool.submit(() -> {
+        try {
+          cov.write(pending);
+        } catch (IOException ioe) {
+          System.err.println("ERROR: " + ioe.getMessage());
+        }
+      }));
+    }
+  }
+
+  /**
+   * <code>await</code> waits for a worker to finish.
+   *
+   * @param future the <code>Future</code> of the worker
+   * @param <T>    type of the result
+   * @return the result, or <code>null</code> if the worker failed
+   */
+  private static <T> T await(final Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      System.err.println("ERROR: " + e.getCause());
+    }
+    return null;
+  }
+
+  /**
+   * <code>workersFromEnvironment</code> returns the number of threads instrumenting classes.
+   *
+   * @return the number of threads as <code>int</code>
+   */
+  static int workersFromEnvironment() {
+    String value = System.getenv(WORKERS_ENV_VAR);
+    if (value != null && !value.isEmpty()) {
+      try {
+        int workers = Integer.parseInt(value);
+        if (workers > 0) {
+          return workers;
+        }
+      } catch (NumberFormatException e) {
+        // fall through
+      }
+      System.out.println("WARNING: ignoring " + WORKERS_ENV_VAR + " " + value);
     }
+    return Runtime.getRuntime().availableProcessors();
   }
 }
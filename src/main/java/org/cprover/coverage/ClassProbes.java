@@ -0,0 +1,319 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * <code>ClassProbes</code> collects the probes of the class being instrumented and assigns them
+ * class-local probe IDs, which index the probe array used by {@link ProbeStyle#ARRAY}.
+ */
+public final class ClassProbes {
+
+  /**
+   * <code>style</code> of the probes emitted for the class.
+   */
+  private ProbeStyle style;
+  /**
+   * <code>countingMode</code> of the probes emitted for the class.
+   */
+  private final CountingMode countingMode;
+  /**
+   * <code>saturationLimit</code> of {@link CountingMode#SATURATING} probes.
+   */
+  private final long saturationLimit;
+  /**
+   * <code>uids</code> maps class-local probe IDs to UIDs.
+   */
+  private final ArrayList<Integer> uids = new ArrayList<>();
+  /**
+   * <code>probeIds</code> maps UIDs to class-local probe IDs.
+   */
+  private final HashMap<Integer, Integer> probeIds = new HashMap<>();
+  /**
+   * <code>methods</code> maps the methods that contain at least one probe, as name + descriptor,
+   * to their probes.
+   */
+  private final HashMap<String, MethodProbes> methods = new HashMap<>();
+
+  /**
+   * Creates a new <code>ClassProbes</code> instance.
+   *
+   * @param style           the <code>ProbeStyle</code> to use for the class
+   * @param countingMode    the <code>CountingMode</code> to use for the class
+   * @param saturationLimit the limit of saturating counts as <code>long</code>
+   */
+  public ClassProbes(
+      final ProbeStyle style,
+      final CountingMode countingMode,
+      final long saturationLimit) {
+    this.style = style;
+    this.countingMode = countingMode;
+    this.saturationLimit = saturationLimit;
+  }
+
+  /**
+   * <code>add</code> registers a probe of the class unless the instruction has one already.
+   *
+   * @param methodName name + descriptor of the method as <code>String</code>
+   * @param bcIndex    instruction index of the probe in the method as <code>int</code>
+   * @param uid        UID of the probe as <code>int</code>
+   */
+  public void add(final String methodName, final int bcIndex, final int uid) {
+    if (methods.computeIfAbsent(methodName, m -> new MethodProbes()).add(bcIndex, uid)
+        && !probeIds.containsKey(uid)) {
+      probeIds.put(uid, uids.size());
+      uids.add(uid);
+    }
+  }
+
+  /**
+   * <code>getStyle</code> returns the style of the probes emitted for the class.
+   *
+   * @return a <code>ProbeStyle</code> value
+   */
+  public ProbeStyle getStyle() {
+    return style;
+  }
+
+  /**
+   * <code>getCountingMode</code> returns the counting mode of the probes emitted for the class.
+   *
+   * @return a <code>CountingMode</code> value
+   */
+  public CountingMode getCountingMode() {
+    return countingMode;
+  }
+
+  /**
+   * <code>getSaturationLimit</code> returns the limit of saturating counts.
+   *
+   * @return the limit as <code>long</code>
+   */
+  public long getSaturationLimit() {
+    return saturationLimit;
+  }
+
+  /**
+   * <code>hasProbes</code> signals whether a method contains any probe.
+   *
+   * @param methodName name + descriptor of the method as <code>String</code>
+   * @return a <code>boolean</code> value
+   */
+  public boolean hasProbes(final String methodName) {
+    return methods.containsKey(methodName);
+  }
+
+  /**
+   * <code>hasProbe</code> signals whether a probe was added at an instruction.
+   *
+   * @param methodName name + descriptor of the method as <code>String</code>
+   * @param bcIndex    instruction index in the method as <code>int</code>
+   * @return a <code>boolean</code> value
+   */
+  public boolean hasProbe(final String methodName, final int bcIndex) {
+    MethodProbes probes = methods.get(methodName);
+    return probes != null && probes.indexOf(bcIndex) >= 0;
+  }
+
+  /**
+   * <code>getMethodProbes</code> returns the probes of a method sorted by instruction index.
+   *
+   * @param methodName name + descriptor of the method as <code>String</code>
+   * @return a <code>MethodProbes</code>, or <code>null</code> if the method contains no probe
+   */
+  MethodProbes getMethodProbes(final String methodName) {
+    MethodProbes probes = methods.get(methodName);
+    if (probes != null) {
+      probes.sort();
+    }
+    return probes;
+  }
+
+  /**
+   * <code>getUids</code> returns the UIDs of the probes indexed by class-local probe ID.
+   *
+   * @return the UIDs as <code>int[]</code>
+   */
+  public int[] getUids() {
+    int[] result = new int[uids.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = uids.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * <code>getProbeId</code> returns the class-local probe ID of a UID.
+   *
+   * @param uid UID of the probe as <code>int</code>
+   * @return the class-local probe ID as <code>int</code>
+   */
+  public int getProbeId(final int uid) {
+    return probeIds.get(uid);
+  }
+
+  /**
+   * <code>encode</code> returns the UIDs of the probes as a constant for the class file.
+   *
+   * @return the <code>String</code> encoded by {@link ProbeCodec}
+   */
+  public String encode() {
+    return ProbeCodec.encode(getUids());
+  }
+
+  /**
+   * <code>fallBackIfUnsupported</code> switches the class to {@link ProbeStyle#CALL} if its UIDs do
+   * not fit into a single class file constant or exact counts are requested for {@link
+   * ProbeStyle#ARRAY}, or if its class file version predates <code>invokedynamic</code> for {@link
+   * ProbeStyle#INDY}.
+   *
+   * @param classVersion the major class file version as <code>int</code>
+   * @return <code>true</code> if the style was changed
+   */
+  public boolean fallBackIfUnsupported(final int classVersion) {
+    boolean unsupported;
+    switch (style) {
+      case ARRAY:
+        // array increments are not atomic
+        unsupported = countingMode == CountingMode.EXACT
+            || ProbeCodec.encodedLength(encode()) > ProbeCodec.MAX_CONSTANT_LENGTH;
+        break;
+      case INDY:
+        unsupported = classVersion < Opcodes.V1_7;
+        break;
+      default:
+        unsupported = false;
+    }
+    if (unsupported) {
+      style = ProbeStyle.CALL;
+    }
+    return unsupported;
+  }
+
+  /**
+   * <code>MethodProbes</code> is the table of the probes of a method, which the instrumenter
+   * walks along with the instructions instead of looking up every instruction.
+   */
+  static final class MethodProbes {
+
+    /**
+     * <code>offsets</code> are the instruction indexes of the probes.
+     */
+    private int[] offsets = new int[4];
+    /**
+     * <code>probeUids</code> are the UIDs of the probes.
+     */
+    private int[] probeUids = new int[4];
+    /**
+     * <code>size</code> is the number of probes.
+     */
+    private int size;
+    /**
+     * <code>sorted</code> signals whether the probes are sorted by instruction index.
+     */
+    private boolean sorted = true;
+
+    /**
+     * <code>add</code> adds a probe unless there is one at the instruction already.
+     *
+     * @param bcIndex instruction index of the probe as <code>int</code>
+     * @param uid     UID of the probe as <code>int</code>
+     * @return <code>true</code> if the probe was added
+     */
+    private boolean add(final int bcIndex, final int uid) {
+      if (indexOf(bcIndex) >= 0) {
+        return false;
+      }
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+        probeUids = Arrays.copyOf(probeUids, size * 2);
+      }
+      sorted &= size == 0 || offsets[size - 1] < bcIndex;
+      offsets[size] = bcIndex;
+      probeUids[size] = uid;
+      size++;
+      return true;
+    }
+
+    /**
+     * <code>indexOf</code> returns the position of the probe at an instruction.
+     *
+     * @param bcIndex instruction index as <code>int</code>
+     * @return the position as <code>int</code>, negative if there is no probe
+     */
+    private int indexOf(final int bcIndex) {
+      if (sorted) {
+        return Arrays.binarySearch(offsets, 0, size, bcIndex);
+      }
+      for (int i = 0; i < size; i++) {
+        if (offsets[i] == bcIndex) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * <code>sort</code> sorts the probes by instruction index.
+     */
+    private void sort() {
+      if (sorted) {
+        return;
+      }
+      long[] pairs = new long[size];
+      for (int i = 0; i < size; i++) {
+        pairs[i] = (long) offsets[i] << 32 | (probeUids[i] & 0xFFFFFFFFL);
+      }
+      Arrays.sort(pairs);
+      for (int i = 0; i < size; i++) {
+        offsets[i] = (int) (pairs[i] >>> 32);
+        probeUids[i] = (int) pairs[i];
+      }
+      sorted = true;
+    }
+
+    /**
+     * <code>size</code> returns the number of probes.
+     *
+     * @return an <code>int</code> value
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * <code>getOffset</code> returns the instruction index of a probe.
+     *
+     * @param i position of the probe as <code>int</code>
+     * @return the instruction index as <code>int</code>
+     */
+    int getOffset(final int i) {
+      return offsets[i];
+    }
+
+    /**
+     * <code>getUid</code> returns the UID of a probe.
+     *
+     * @param i position of the probe as <code>int</code>
+     * @return the UID as <code>int</code>
+     */
+    int getUid(final int i) {
+      return probeUids[i];
+    }
+  }
+}
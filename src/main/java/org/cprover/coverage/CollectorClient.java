@@ -0,0 +1,217 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.UUID;
+
+/**
+ * <code>CollectorClient</code> sends batches of hit counts to a {@link CoverageCollector}. A batch
+ * is only acknowledged once the collector committed it. A batch that failed stays pending and is
+ * sent again unchanged with the same sequence number, so the collector can tell whether it
+ * committed it already.
+ */
+final class CollectorClient {
+
+  /**
+   * <code>CONNECT_TIMEOUT</code> in milliseconds.
+   */
+  private static final int CONNECT_TIMEOUT = 1000;
+  /**
+   * <code>READ_TIMEOUT</code> in milliseconds to wait for the acknowledgement of a batch.
+   */
+  private static final int READ_TIMEOUT = 30000;
+  /**
+   * <code>port</code> of the collector on the loopback interface.
+   */
+  private final int port;
+  /**
+   * <code>id</code> of this client, unique across JVMs.
+   */
+  private final String id = UUID.randomUUID().toString();
+  /**
+   * <code>sequence</code> number of the last acknowledged batch.
+   */
+  private long sequence;
+  /**
+   * <code>pendingKeys</code> of the batch not yet acknowledged, <code>null</code> if none.
+   */
+  private int[] pendingKeys;
+  /**
+   * <code>pendingHits</code> of the batch not yet acknowledged.
+   */
+  private long[] pendingHits;
+  /**
+   * <code>pendingRate</code> is the sampling rate of the batch not yet acknowledged.
+   */
+  private double pendingRate;
+  /**
+   * <code>pendingWritten</code> signals whether the pending batch reached the collector at least
+   * once, so it may have been committed even though it was not acknowledged.
+   */
+  private boolean pendingWritten;
+  /**
+   * <code>socket</code> connected to the collector, <code>null</code> if not connected.
+   */
+  private Socket socket;
+  /**
+   * <code>in</code> reads acknowledgements.
+   */
+  private DataInputStream in;
+  /**
+   * <code>out</code> writes batches.
+   */
+  private DataOutputStream out;
+
+  /**
+   * Creates a new <code>CollectorClient</code> instance.
+   *
+   * @param port port of the collector on the loopback interface as <code>int</code>
+   */
+  CollectorClient(final int port) {
+    this.port = port;
+  }
+
+  /**
+   * <code>portFromEnvironment</code> returns the port of the collector configured in the
+   * environment. It lives here rather than in {@link CoverageCollector}, which the runtime jar
+   * leaves out.
+   *
+   * @return the port as <code>int</code>
+   */
+  static int portFromEnvironment() {
+    String port = System.getenv(CoverageCollector.ENV_VAR);
+    return port == null || port.isEmpty()
+        ? CoverageCollector.DEFAULT_PORT
+        : Integer.parseInt(port);
+  }
+
+  /**
+   * <code>send</code> sends a batch and waits until the collector committed it. It connects first
+   * if needed. A batch that fails stays pending and must be sent with {@link #resend()} before
+   * the next one.
+   *
+   * @param keys         UIDs as <code>int[]</code>
+   * @param hits         hits of the UIDs as <code>long[]</code>
+   * @param samplingRate sampling rate the hits were recorded with as <code>double</code>
+   * @return <code>true</code> if the collector committed the batch
+   */
+  synchronized boolean send(final int[] keys, final long[] hits, final double samplingRate) {
+    if (pendingKeys != null) {
+      throw new IllegalStateException("a batch is pending");
+    }
+    pendingKeys = keys;
+    pendingHits = hits;
+    pendingRate = samplingRate;
+    return resend();
+  }
+
+  /**
+   * <code>hasPending</code> tells whether a batch failed and was not yet sent again.
+   *
+   * @return a <code>boolean</code> value
+   */
+  synchronized boolean hasPending() {
+    return pendingKeys != null;
+  }
+
+  /**
+   * <code>isPendingUncertain</code> tells whether the pending batch was written to the collector
+   * without being acknowledged, in which case the collector may have committed it.
+   *
+   * @return a <code>boolean</code> value
+   */
+  synchronized boolean isPendingUncertain() {
+    return pendingKeys != null && pendingWritten;
+  }
+
+  /**
+   * <code>resend</code> sends the pending batch again with the same sequence number.
+   *
+   * @return <code>true</code> if there is no pending batch or the collector committed it
+   */
+  synchronized boolean resend() {
+    if (pendingKeys == null) {
+      return true;
+    }
+    try {
+      if (socket == null) {
+        connect();
+      }
+      pendingWritten = true;
+      out.writeLong(sequence + 1);
+      out.writeDouble(pendingRate);
+      out.writeInt(pendingKeys.length);
+      for (int i = 0; i < pendingKeys.length; i++) {
+        out.writeInt(pendingKeys[i]);
+        out.writeLong(pendingHits[i]);
+      }
+      out.flush();
+      if (in.readLong() != sequence + 1) {
+        throw new IOException("unexpected acknowledgement");
+      }
+      sequence++;
+      pendingKeys = null;
+      pendingHits = null;
+      pendingWritten = false;
+      return true;
+    } catch (IOException e) {
+      close();
+      return false;
+    }
+  }
+
+  /**
+   * <code>close</code> disconnects from the collector.
+   */
+  synchronized void close() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing left to release
+      }
+      socket = null;
+    }
+  }
+
+  /**
+   * <code>connect</code> connects to the collector and introduces the client.
+   *
+   * @throws IOException if the collector is unavailable
+   */
+  private void connect() throws IOException {
+    Socket s = new Socket();
+    try {
+      s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+      s.setSoTimeout(READ_TIMEOUT);
+      s.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      out.writeInt(CoverageCollector.MAGIC);
+      out.writeUTF(id);
+      socket = s;
+    } catch (IOException e) {
+      s.close();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Locale;
+
+/**
+ * <code>CountingMode</code> selects how hits of a goal are counted. It is chosen when instrumenting
+ * and stored in the coverage database, so the runtime and the reports interpret counts the same
+ * way.
+ */
+public enum CountingMode {
+
+  /**
+   * Every hit is counted with an atomic increment, counts are exact.
+   */
+  EXACT,
+  /**
+   * Every hit is counted with a plain increment, concurrent hits of the same goal may be lost.
+   */
+  RACY,
+  /**
+   * Counts stop at a limit, which is enough to tell whether a goal was hit at least that often.
+   */
+  SATURATING,
+  /**
+   * Counts stop at 1, which only tells whether a goal was covered.
+   */
+  BOOLEAN;
+
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that selects the counting mode
+   * used during instrumentation.
+   */
+  public static final String ENV_VAR = "BLUECOV_COUNTING";
+  /**
+   * <code>LIMIT_ENV_VAR</code> is the name of the environment variable that holds the limit of
+   * {@link #SATURATING} counts.
+   */
+  public static final String LIMIT_ENV_VAR = "BLUECOV_SATURATION_LIMIT";
+  /**
+   * <code>DEFAULT_SATURATION_LIMIT</code> is the limit of {@link #SATURATING} counts if none is
+   * configured.
+   */
+  public static final long DEFAULT_SATURATION_LIMIT = 255;
+
+  /**
+   * <code>fromEnvironment</code> returns the counting mode configured in the environment. It
+   * defaults to {@link #RACY} for {@link ProbeStyle#ARRAY} probes and to {@link #EXACT} for {@link
+   * ProbeStyle#CALL} probes. {@link ProbeStyle#INDY} probes only record the first hit of a goal, so
+   * they always count {@link #BOOLEAN}.
+   *
+   * @param style the <code>ProbeStyle</code> requested for instrumentation
+   * @return a <code>CountingMode</code> value
+   * @throws IllegalArgumentException if the configured mode is unknown or not supported by
+   *                                  <code>style</code>
+   */
+  public static CountingMode fromEnvironment(final ProbeStyle style) {
+    String mode = System.getenv(ENV_VAR);
+    if (mode == null || mode.isEmpty()) {
+      switch (style) {
+        case ARRAY:
+          return RACY;
+        case INDY:
+          return BOOLEAN;
+        default:
+          return EXACT;
+      }
+    }
+    CountingMode result = valueOf(mode.toUpperCase(Locale.ROOT));
+    if (style == ProbeStyle.INDY && result != BOOLEAN) {
+      throw new IllegalArgumentException(ENV_VAR + "=" + mode
+          + " is not supported by indy probes, which only count whether a goal was hit");
+    }
+    return result;
+  }
+
+  /**
+   * <code>saturationLimitFromEnvironment</code> returns the limit of {@link #SATURATING} counts
+   * configured in the environment.
+   *
+   * @return the limit as <code>long</code>
+   * @throws NumberFormatException if the configured limit is not a number
+   */
+  public static long saturationLimitFromEnvironment() {
+    String limit = System.getenv(LIMIT_ENV_VAR);
+    if (limit == null || limit.isEmpty()) {
+      return DEFAULT_SATURATION_LIMIT;
+    }
+    return Math.max(1, Long.parseLong(limit));
+  }
+
+  /**
+   * <code>limit</code> returns the highest count of a goal in this mode.
+   *
+   * @param saturationLimit the limit of {@link #SATURATING} counts as <code>long</code>
+   * @return the highest count as <code>long</code>
+   */
+  public long limit(final long saturationLimit) {
+    switch (this) {
+      case SATURATING:
+        return saturationLimit;
+      case BOOLEAN:
+        return 1;
+      default:
+        return Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * <code>isCapped</code> signals whether counts in this mode stop at a limit, in which case
+   * reports have to say so.
+   *
+   * @return a <code>boolean</code> value
+   */
+  public boolean isCapped() {
+    return this == SATURATING || this == BOOLEAN;
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * <code>CoverageCollector</code> is a long-running local process that owns the coverage database
+ * and receives batches of hit counts from instrumented JVMs running with the collector backend.
+ * Only the collector opens the database, so JVMs neither queue on its file lock nor need write
+ * access to it.
+ * <p>
+ * A client sends {@link #MAGIC} and its ID as UTF once, then batches of the sequence number as
+ * <code>long</code>, the sampling rate as <code>double</code>, the number of entries as
+ * <code>int</code> and that many pairs of UID as <code>int</code> and hits as <code>long</code>.
+ * The collector answers every batch with its sequence number once it is committed, so clients
+ * never send faster than the database is written.
+ * <p>
+ * A client sends a batch whose acknowledgement was lost again with the same sequence number, and
+ * the sink ignores batches of a client it already committed, so counts are added exactly once.
+ * Batches with more entries than there are goals, or with entries out of range, are rejected and
+ * the client is dropped.
+ */
+public final class CoverageCollector implements Runnable {
+
+  /**
+   * <code>MAGIC</code> number sent by clients when connecting, "BCOV".
+   */
+  static final int MAGIC = 0x42434F56;
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that holds the port of the
+   * collector on the loopback interface.
+   */
+  public static final String ENV_VAR = "BLUECOV_COLLECTOR_PORT";
+  /**
+   * <code>DEFAULT_PORT</code> of the collector.
+   */
+  public static final int DEFAULT_PORT = 7171;
+
+  /**
+   * <code>Sink</code> receives the batches of hit counts.
+   */
+  interface Sink {
+
+    /**
+     * <code>add</code> adds a batch of hit counts to the store, unless a batch of the client with
+     * the same or a later sequence number was added already.
+     *
+     * @param client       ID of the client as <code>String</code>
+     * @param sequence     sequence number of the batch as <code>long</code>
+     * @param keys         UIDs as <code>int[]</code>
+     * @param hits         hits of the UIDs as <code>long[]</code>
+     * @param samplingRate sampling rate the hits were recorded with as <code>double</code>
+     */
+    void add(String client, long sequence, int[] keys, long[] hits, double samplingRate);
+  }
+
+  /**
+   * <code>server</code> socket accepting clients.
+   */
+  private final ServerSocket server;
+  /**
+   * <code>sink</code> receiving the batches.
+   */
+  private final Sink sink;
+  /**
+   * <code>goals</code> is the number of goals, which bounds the UIDs and the size of a batch.
+   */
+  private final int goals;
+
+  /**
+   * Creates a new <code>CoverageCollector</code> instance.
+   *
+   * @param port  the port to listen on as <code>int</code>, 0 for any free port
+   * @param sink  the <code>Sink</code> receiving the batches
+   * @param goals the number of goals as <code>int</code>
+   * @throws IOException if the port cannot be bound
+   */
+  CoverageCollector(final int port, final Sink sink, final int goals) throws IOException {
+    this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.sink = sink;
+    this.goals = goals;
+  }
+
+  /**
+   * Entry point of <code>CoverageCollector</code>.
+   *
+   * @param args optionally takes the port to listen on
+   * @throws IOException if the port cannot be bound
+   */
+  public static void main(final String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : CollectorClient.portFromEnvironment();
+    CoverageLog logger = CoverageLog.getInstance(false);
+    logger.setReport(false);
+    CoverageCollector collector =
+        new CoverageCollector(port, logger::addCounts, logger.getGoalCount());
+    System.out.println("collecting coverage for " + CoverageLog.getDbFileName()
+        + " on port " + collector.getPort());
+    collector.run();
+  }
+
+  /**
+   * <code>getPort</code> returns the port the collector listens on.
+   *
+   * @return the port as <code>int</code>
+   */
+  int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * <code>run</code> accepts clients until the collector is closed, each on its own thread.
+   */
+  @Override
+  public void run() {
+    while (!server.isClosed()) {
+      try {
+        Socket client = server.accept();
+        Thread thread = new Thread(() -> serve(client), "bluecov-collector-client");
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        if (!server.isClosed()) {
+          System.out.println("ERROR: accepting client failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>close</code> stops accepting clients.
+   *
+   * @throws IOException if an error occurs
+   */
+  void close() throws IOException {
+    server.close();
+  }
+
+  /**
+   * <code>serve</code> receives batches from a client until it disconnects.
+   *
+   * @param client the <code>Socket</code> of the client
+   */
+  private void serve(final Socket client) {
+    try (Socket socket = client;
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()))) {
+      if (in.readInt() != MAGIC) {
+        System.out.println("ERROR: dropping client which is not a BlueCov runtime");
+        return;
+      }
+      String id = in.readUTF();
+      while (true) {
+        long sequence;
+        try {
+          sequence = in.readLong();
+        } catch (EOFException e) {
+          return;
+        }
+        double samplingRate = in.readDouble();
+        int size = in.readInt();
+        if (size < 0 || size > goals) {
+          System.out.println("ERROR: dropping client sending a batch of " + size + " entries for "
+              + goals + " goals");
+          return;
+        }
+        int[] keys = new int[size];
+        long[] hits = new long[size];
+        for (int i = 0; i < size; i++) {
+          keys[i] = in.readInt();
+          hits[i] = in.readLong();
+          if (keys[i] < 0 || keys[i] >= goals || hits[i] < 0) {
+            System.out.println("ERROR: dropping client sending " + hits[i] + " hits of UID "
+                + keys[i]);
+            return;
+          }
+        }
+        sink.add(id, sequence, keys, hits, samplingRate);
+        out.writeLong(sequence);
+        out.flush();
+      }
+    } catch (IOException | RuntimeException e) {
+      System.out.println("ERROR: client failed: " + e);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>CoverageCounters</code> is the in-memory store of exact hit counts used by
+ * <code>CoverageLog</code> while the instrumented code runs. UIDs are handed out sequentially by
+ * {@link CoverageLog#getCoverageUID(String)}, so the counts are kept in dense 64-bit counters
+ * indexed by UID. Incrementing a counter never allocates.
+ * <p>
+ * Instrumented code may run on any number of threads. To keep counts exact without making threads
+ * fight over the same cache lines, the counters are split into stripes and every thread increments
+ * the stripe selected by its id. A stripe is divided into pages which are only allocated once a
+ * thread of that stripe hits one of its goals, so a single-threaded run holds one copy of the
+ * counters. The stripes are summed up when the counts are read.
+ */
+final class CoverageCounters extends HitCounters {
+
+  /**
+   * <code>PAGE_BITS</code> is the log2 of the number of counters in a page.
+   */
+  private static final int PAGE_BITS = 10;
+  /**
+   * <code>PAGE_SIZE</code> is the number of counters in a page.
+   */
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  /**
+   * <code>PADDING</code> is the number of unused counters at either end of a page, one cache line,
+   * so pages of different stripes never share a cache line.
+   */
+  private static final int PADDING = 8;
+  /**
+   * <code>MAX_STRIPES</code> bounds the number of stripes and hence the memory in the worst case.
+   */
+  private static final int MAX_STRIPES = 64;
+  /**
+   * <code>stripes</code> of counters, selected by thread.
+   */
+  private final Stripe[] stripes;
+  /**
+   * <code>stripeMask</code> maps a thread hash to a stripe.
+   */
+  private final int stripeMask;
+  /**
+   * <code>capacity</code> is the number of counters in each stripe.
+   */
+  private volatile int capacity;
+
+  /**
+   * Creates a new <code>CoverageCounters</code> instance.
+   *
+   * @param capacity the number of registered UIDs as <code>int</code>
+   */
+  CoverageCounters(final int capacity) {
+    this(capacity, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new <code>CoverageCounters</code> instance.
+   *
+   * @param capacity    the number of registered UIDs as <code>int</code>
+   * @param parallelism the expected number of threads running concurrently as <code>int</code>
+   */
+  CoverageCounters(final int capacity, final int parallelism) {
+    int count = Integer.highestOneBit(Math.max(1, Math.min(parallelism, MAX_STRIPES)) * 2 - 1);
+    this.stripes = new Stripe[count];
+    this.stripeMask = count - 1;
+    this.capacity = pagesFor(capacity) * PAGE_SIZE;
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe(pagesFor(capacity));
+    }
+  }
+
+  @Override
+  void increment(final int key) {
+    Stripe stripe = stripes[stripeOf(Thread.currentThread()) & stripeMask];
+    AtomicLongArray[] pages = stripe.pages;
+    int pageIndex = key >>> PAGE_BITS;
+    AtomicLongArray page = pageIndex < pages.length ? pages[pageIndex] : null;
+    if (page == null) {
+      page = allocatePage(stripe, pageIndex);
+    }
+    page.getAndIncrement(PADDING + (key & (PAGE_SIZE - 1)));
+  }
+
+  @Override
+  long get(final int key) {
+    int pageIndex = key >>> PAGE_BITS;
+    long sum = 0;
+    for (Stripe stripe : stripes) {
+      AtomicLongArray[] pages = stripe.pages;
+      if (pageIndex < pages.length && pages[pageIndex] != null) {
+        sum += pages[pageIndex].get(PADDING + (key & (PAGE_SIZE - 1)));
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  int size() {
+    return capacity;
+  }
+
+  @Override
+  void reset() {
+    for (Stripe stripe : stripes) {
+      for (AtomicLongArray page : stripe.pages) {
+        if (page != null) {
+          for (int i = PADDING; i < PADDING + PAGE_SIZE; i++) {
+            page.set(i, 0L);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>stripeOf</code> spreads thread ids over the stripes.
+   *
+   * @param thread the current <code>Thread</code>
+   * @return a hash of the thread as <code>int</code>
+   */
+  private static int stripeOf(final Thread thread) {
+    long h = thread.getId() * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32);
+  }
+
+  /**
+   * <code>pagesFor</code> returns the number of pages needed for <code>capacity</code> counters.
+   *
+   * @param capacity number of counters as <code>int</code>
+   * @return number of pages as <code>int</code>
+   */
+  private static int pagesFor(final int capacity) {
+    return Math.max(1, (capacity + PAGE_SIZE - 1) >>> PAGE_BITS);
+  }
+
+  /**
+   * <code>allocatePage</code> is the slow path of {@link #increment(int)} which creates a page of
+   * a stripe on its first hit, growing the stripe for UIDs that were not registered when the store
+   * was created. It only allocates while holding the lock, so threads never block on I/O here.
+   *
+   * @param stripe    the <code>Stripe</code> the page belongs to
+   * @param pageIndex the index of the page as <code>int</code>
+   * @return the <code>AtomicLongArray</code> page
+   */
+  private synchronized AtomicLongArray allocatePage(final Stripe stripe, final int pageIndex) {
+    AtomicLongArray[] pages = stripe.pages;
+    if (pageIndex >= pages.length) {
+      pages = Arrays.copyOf(pages, Math.max(pageIndex + 1, pages.length * 2));
+      stripe.pages = pages;
+      capacity = Math.max(capacity, pages.length * PAGE_SIZE);
+    }
+    if (pages[pageIndex] == null) {
+      pages[pageIndex] = new AtomicLongArray(PADDING + PAGE_SIZE + PADDING);
+    }
+    return pages[pageIndex];
+  }
+
+  /**
+   * <code>Stripe</code> holds the pages of counters of a group of threads.
+   */
+  private static final class Stripe {
+
+    /**
+     * <code>pages</code> of counters, allocated on first use.
+     */
+    private volatile AtomicLongArray[] pages;
+
+    /**
+     * Creates a new <code>Stripe</code> instance.
+     *
+     * @param pageCount the initial number of pages as <code>int</code>
+     */
+    Stripe(final int pageCount) {
+      this.pages = new AtomicLongArray[pageCount];
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Properties;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * <code>CoverageEvents</code> emits Java Flight Recorder events for the coverage of instrumented
+ * code. It is the only class referring to <code>jdk.jfr</code>, so <code>CoverageLog</code> runs on
+ * JVMs without it. First hits are only tracked while a recording has {@link GoalFirstHit} enabled,
+ * otherwise recording a hit costs a single volatile read. Once a goal was reported, further hits
+ * only read its flag and never lock.
+ */
+final class CoverageEvents {
+
+  /**
+   * <code>log</code> whose hits are reported.
+   */
+  private final CoverageLog log;
+  /**
+   * <code>dbFileName</code> of the DB whose goal descriptions are reported.
+   */
+  private final String dbFileName;
+  /**
+   * <code>firstHitsEnabled</code> signals whether a recording has {@link GoalFirstHit} enabled.
+   */
+  private volatile boolean firstHitsEnabled;
+  /**
+   * <code>hit</code> flags of the goals reported so far, indexed by UID. Flags are only set under
+   * the lock and never cleared, so a set flag read without the lock is never wrong.
+   */
+  private volatile boolean[] hit = new boolean[0];
+  /**
+   * <code>goals</code> maps UIDs to descriptions, loaded on the first event.
+   */
+  private Properties goals;
+
+  /**
+   * Creates a new <code>CoverageEvents</code> instance.
+   *
+   * @param log        the <code>CoverageLog</code> whose hits are reported
+   * @param dbFileName name of the DB file as <code>String</code>
+   */
+  private CoverageEvents(final CoverageLog log, final String dbFileName) {
+    this.log = log;
+    this.dbFileName = dbFileName;
+  }
+
+  /**
+   * <code>create</code> returns the events of <code>log</code> if enabled in the environment and
+   * the JVM supports JFR. Registering with JFR slows down startup, so it is left to JVMs that are
+   * recorded.
+   *
+   * @param log        the <code>CoverageLog</code> whose hits are reported
+   * @param dbFileName name of the DB file as <code>String</code>
+   * @return a <code>CoverageEvents</code> instance, or <code>null</code> if disabled or without JFR
+   */
+  static CoverageEvents create(final CoverageLog log, final String dbFileName) {
+    if (!Boolean.parseBoolean(System.getenv(CoverageLog.JFR_ENV_VAR))) {
+      return null;
+    }
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+    } catch (ClassNotFoundException | LinkageError e) {
+      return null;
+    }
+    CoverageEvents events = new CoverageEvents(log, dbFileName);
+    events.register();
+    return events;
+  }
+
+  /**
+   * <code>register</code> follows the state of recordings and samples the probe overhead while
+   * {@link ProbeOverhead} is enabled.
+   */
+  private void register() {
+    FlightRecorder.addPeriodicEvent(ProbeOverhead.class, this::sampleOverhead);
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recordingStateChanged(final Recording recording) {
+        firstHitsEnabled = EventType.getEventType(GoalFirstHit.class).isEnabled();
+      }
+    });
+    if (FlightRecorder.isInitialized()) {
+      firstHitsEnabled = EventType.getEventType(GoalFirstHit.class).isEnabled();
+    }
+  }
+
+  /**
+   * <code>isFirstHitEnabled</code> signals whether hits should be passed to {@link #hit(int)}.
+   *
+   * @return a <code>boolean</code> value
+   */
+  boolean isFirstHitEnabled() {
+    return firstHitsEnabled;
+  }
+
+  /**
+   * <code>hit</code> emits a {@link GoalFirstHit} event for the first hit of a goal.
+   *
+   * @param key UID of the goal as <code>int</code>
+   */
+  void hit(final int key) {
+    boolean[] flags = hit;
+    if (key < flags.length && flags[key]) {
+      return;
+    }
+    firstHit(key);
+  }
+
+  /**
+   * <code>firstHit</code> emits a {@link GoalFirstHit} event unless another thread reported the
+   * goal first.
+   *
+   * @param key UID of the goal as <code>int</code>
+   */
+  private synchronized void firstHit(final int key) {
+    boolean[] flags = hit;
+    if (key >= flags.length) {
+      flags = Arrays.copyOf(flags, Math.max(key + 1, flags.length * 2));
+    } else if (flags[key]) {
+      return;
+    }
+    flags[key] = true;
+    hit = flags;
+    GoalFirstHit event = new GoalFirstHit();
+    event.uid = key;
+    String desc = describe(key);
+    // descriptions are "class.method@bytecodeIndex"
+    int dot = desc.indexOf('.');
+    int at = desc.lastIndexOf('@');
+    if (dot > 0 && at > dot) {
+      event.className = desc.substring(0, dot).replace('/', '.');
+      event.method = desc.substring(dot + 1, at);
+      event.bytecodeIndex = Integer.parseInt(desc.substring(at + 1));
+    } else {
+      event.bytecodeIndex = -1;
+    }
+    event.commit();
+  }
+
+  /**
+   * <code>beginFlush</code> starts timing a write of counts.
+   *
+   * @param kind what the counts are written by as <code>String</code>
+   * @return the started <code>Flush</code> event
+   */
+  Flush beginFlush(final String kind) {
+    Flush event = new Flush();
+    event.kind = kind;
+    event.begin();
+    return event;
+  }
+
+  /**
+   * <code>endFlush</code> emits a timed write of counts.
+   *
+   * @param event the <code>Flush</code> event returned by {@link #beginFlush(String)}
+   * @param goals the number of goals written as <code>int</code>
+   */
+  void endFlush(final Flush event, final int goals) {
+    event.goals = goals;
+    event.commit();
+  }
+
+  /**
+   * <code>sampleOverhead</code> emits a {@link ProbeOverhead} event with the time a probe took in
+   * a tight loop on scratch counters of the same kind. This only estimates the cost in
+   * instrumented code, where probes compete for caches with the code around them.
+   */
+  private void sampleOverhead() {
+    ProbeOverhead event = new ProbeOverhead();
+    event.nanosPerProbe = log.measureProbeNanos();
+    event.commit();
+  }
+
+  /**
+   * <code>describe</code> returns the description of a goal written next to the DB.
+   *
+   * @param key UID of the goal as <code>int</code>
+   * @return the description as <code>String</code>, empty if unknown
+   */
+  private String describe(final int key) {
+    if (goals == null) {
+      goals = new Properties();
+      try (InputStream in = Files.newInputStream(CoverageManifest.goalsFileFor(dbFileName))) {
+        goals.load(in);
+      } catch (NoSuchFileException e) {
+        // events carry the UID only
+      } catch (IOException e) {
+        System.out.println("WARNING: could not read goals: " + e.getMessage());
+      }
+    }
+    return goals.getProperty(Integer.toString(key), "");
+  }
+
+  /**
+   * <code>GoalFirstHit</code> is emitted when a goal is hit for the first time.
+   */
+  @Name("org.cprover.coverage.GoalFirstHit")
+  @Label("Goal First Hit")
+  @Category("BlueCov")
+  @Description("A coverage goal was hit for the first time")
+  static final class GoalFirstHit extends Event {
+
+    /**
+     * <code>uid</code> of the goal.
+     */
+    @Label("UID")
+    int uid;
+    /**
+     * <code>className</code> of the goal.
+     */
+    @Label("Class")
+    String className;
+    /**
+     * <code>method</code> of the goal, name and descriptor.
+     */
+    @Label("Method")
+    String method;
+    /**
+     * <code>bytecodeIndex</code> of the goal.
+     */
+    @Label("Bytecode Index")
+    int bytecodeIndex;
+  }
+
+  /**
+   * <code>Flush</code> is emitted when counts are written.
+   */
+  @Name("org.cprover.coverage.Flush")
+  @Label("Coverage Flush")
+  @Category("BlueCov")
+  @Description("Hit counts were written to the database or the collector")
+  @StackTrace(false)
+  static final class Flush extends Event {
+
+    /**
+     * <code>kind</code> of the write, checkpoint or shutdown.
+     */
+    @Label("Kind")
+    String kind;
+    /**
+     * <code>goals</code> written.
+     */
+    @Label("Goals")
+    int goals;
+  }
+
+  /**
+   * <code>ProbeOverhead</code> is emitted periodically with an estimate of the probe cost.
+   */
+  @Name("org.cprover.coverage.ProbeOverhead")
+  @Label("Probe Overhead Estimate")
+  @Category("BlueCov")
+  @Description("Estimated time of a single probe, measured on scratch counters of the same kind")
+  @Period("1 s")
+  @StackTrace(false)
+  static final class ProbeOverhead extends Event {
+
+    /**
+     * <code>nanosPerProbe</code> measured on scratch counters.
+     */
+    @Label("Estimated Nanoseconds per Probe")
+    double nanosPerProbe;
+  }
+}
@@ -13,9 +13,7 @@
  */
 package org.cprover.coverage;
 
-import static org.cprover.coverage.CoverageUtils.BYTECODE_INDEX;
 import static org.cprover.coverage.CoverageUtils.JAVA_NS_PREFIX_LENGTH;
-import static org.cprover.coverage.CoverageUtils.SOURCE_LOCATION;
 
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -24,13 +22,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
@@ -57,10 +53,8 @@ public final class CoverageInstrument {
               + " falling back to " + CoverageLog.getDbFileName()
               + " as database");
         }
-        JsonReader jsonReader = Json.createReader(fs);
-        JsonArray json = jsonReader.readArray();
         CoverageInstrument cov = new CoverageInstrument();
-        cov.instrumentClassFile(args[0], args[1], json);
+        cov.instrumentClassFile(args[0], args[1], Json.createParser(fs));
       }
     }
   }
@@ -112,161 +106,284 @@ public final class CoverageInstrument {
       final String inFileName,
       final String outFileName,
       final JsonArray json) throws IOException {
+    instrumentClassFile(inFileName, outFileName,
+        Json.createParserFactory(null).createParser(json));
+  }
+
+  /**
+   * <code>instrumentClassFile</code> adds the bytecode instrumentation required
+   * for coverage analysis to a class file.
+   *
+   * @param inFileName  a <code>String</code> value
+   * @param outFileName a <code>String</code> value
+   * @param json        a <code>JsonParser</code> reading the output of <code>JBMC</code> called
+   *                    with <code>--json-ui --show-properties</code>
+   * @throws IOException if an error occurs in reading or writing the class files
+   */
+  public void instrumentClassFile(
+      final String inFileName,
+      final String outFileName,
+      final JsonParser json) throws IOException {
+    PendingClass pending = parse(inFileName, outFileName, json);
+    if (pending != null) {
+      register(pending);
+      write(pending);
+    }
+  }
+
+  /**
+   * <code>parse</code> reads a class file and the goals JBMC found in it without touching the DB,
+   * so it may run on any thread.
+   *
+   * @param inFileName  a <code>String</code> value
+   * @param outFileName a <code>String</code> value
+   * @param json        a <code>JsonParser</code> reading the output of <code>JBMC</code> called
+   *                    with <code>--json-ui --show-properties</code>
+   * @return the <code>PendingClass</code>, or <code>null</code> if there are no properties
+   * @throws IOException if an error occurs in reading the class file
+   */
+  PendingClass parse(
+      final String inFileName,
+      final String outFileName,
+      final JsonParser json) throws IOException {
     byte[] classData = getBytesFromFile(inFileName);
     ClassReader cr = new ClassReader(classData);
 
     String className = cr.getClassName();
-    HashMap<Integer, Integer> offsetIdMap = new HashMap<>();
-    CoverageLog logger = CoverageLog.getInstance(false);
-    logger.setReport(false);
+    ProbeStyle style = ProbeStyle.fromEnvironment();
+    CountingMode countingMode = CountingMode.fromEnvironment(style);
+    long saturationLimit = CountingMode.saturationLimitFromEnvironment();
+    PendingClass pending = new PendingClass(inFileName, outFileName, classData, cr,
+        new ClassProbes(style, countingMode, saturationLimit));
 
-    JsonArray properties = null;
-    for (int i = 0; i < json.size(); i++) {
-      JsonObject object = json.getJsonObject(i);
-      if (object.containsKey("properties")) {
-        properties = object.getJsonArray("properties");
-        break;
+    boolean isInterface = pending.isInterface();
+    boolean found = PropertyParser.parse(json, (jbmcName, function, bcLine, lineNums) -> {
+      // do not instrument interfaces, just copy class file
+      if (isInterface) {
+        return;
       }
-    }
+      // method+signature to uniquely identify java function
+      // remove prefix consisting of "java::" FQN+'.'
+      String method = function.substring(JAVA_NS_PREFIX_LENGTH);
+      if (!method.startsWith(className.replace("/", "."))) {
+        return;
+      }
+      method = method.substring(className.length() + 1);
+      // check for subclass
+      if (method.contains(".")) {
+        return;
+      }
+      pending.goals.add(new Goal(jbmcName, method, bcLine, lineNums));
+    });
 
-    if (properties == null) {
+    if (!found) {
       System.out.println("ERROR: no properties found for " + className);
-      return;
+      return null;
     }
+    return pending;
+  }
 
-    // do not instrument interfaces, just copy class file
-    int accessFlags = cr.getAccess();
-    if ((accessFlags & Opcodes.ACC_INTERFACE) != 0) {
-      writeBytesToFile(outFileName, classData);
+  /**
+   * <code>register</code> assigns UIDs to the goals of a parsed class. UIDs are assigned in the
+   * order of registration, so classes must be registered in a fixed order.
+   *
+   * @param pending the parsed <code>PendingClass</code>
+   */
+  void register(final PendingClass pending) {
+    if (pending.isInterface()) {
       return;
     }
+    String className = pending.cr.getClassName();
+    CoverageLog logger = CoverageLog.getInstance(false);
+    logger.setReport(false);
+    ClassProbes probes = pending.probes;
+    logger.setCountingMode(probes.getCountingMode(), probes.getSaturationLimit());
 
-    for (int i = 0; i < properties.size(); i++) {
-      JsonObject entry = properties.getJsonObject(i);
-      String jbmcName = entry.getString("name");
-
-      if (entry.containsKey(SOURCE_LOCATION)) {
-        JsonObject jSourceLoc = entry.getJsonObject(SOURCE_LOCATION);
-        if (!(jSourceLoc.containsKey("file")
-            && jSourceLoc.containsKey("line")
-            && jSourceLoc.containsKey("function"))) {
-          System.out.println(
-              "WARNING: does not contain full source location info\n"
-                  + entry + "\n------------------");
-        }
-        ArrayList<Integer> lineNumbers = new ArrayList<>();
-        if (entry.containsKey("coveredLines")) {
-          String[] coveredLines = entry.getString("coveredLines").split(",");
-          for (int j = 0; j < coveredLines.length; j++) {
-            String[] range = coveredLines[j].split("-");
-            if (range.length == 2) { // found range
-              addRange(
-                  Integer.parseInt(range[0]),
-                  Integer.parseInt(range[1]),
-                  lineNumbers);
-            } else {
-              lineNumbers.add(Integer.parseInt(range[0]));
-            }
-          }
-        } else {
-          System.out.println(
-              "WARNING: does not contain line coverage information\n" + entry);
-          lineNumbers.add(0);
-        }
-        if (jSourceLoc.containsKey(BYTECODE_INDEX)
-            && jSourceLoc.containsKey("function")) {
-          // method+signature to uniquely identify java function
-          int bcLine = Integer.parseInt(jSourceLoc.getString(BYTECODE_INDEX));
-
-          String method = jSourceLoc.getString("function");
-          // remove prefix consisting of "java::" FQN+'.'
-          method = method.substring(JAVA_NS_PREFIX_LENGTH);
-          if (!method.startsWith(className.replace("/", "."))) {
-            continue;
-          }
-          method = method.substring(className.length() + 1);
-          // check for subclass
-          if (method.contains(".")) {
-            continue;
-          }
-          int hashCode = logger.getCoverageHash(className, method, bcLine);
-          if (!offsetIdMap.containsKey(hashCode)) {
-            int uid = logger.getCoverageUID(
-                logger.getBasicBlockID(className, method, bcLine));
-            offsetIdMap.put(hashCode, uid);
-            int[] lineNums = new int[lineNumbers.size()];
-            if (lineNumbers.size() == 0) {
-              System.out.println("ERROR: no line numbers for " + jbmcName);
-            }
-            for (int k = 0; k < lineNums.length; k++) {
-              lineNums[k] = (Integer) lineNumbers.get(k);
-            }
-            logger
-                .register(uid, jbmcName, className, method, bcLine, lineNums);
-            System.out
-                .println("register ID " + uid + " "
-                    + logger.getBasicBlockID(className, method, bcLine));
-          }
-        } else {
-          System.out.println(
-              "WARNING: bytecode index or function information is missing in\n"
-                  + entry);
+    for (Goal goal : pending.goals) {
+      if (!probes.hasProbe(goal.method, goal.bcLine)) {
+        if (goal.lineNumbers.length == 0) {
+          System.out.println("ERROR: no line numbers for " + goal.jbmcName);
         }
+        int uid = logger.registerGoal(
+            goal.jbmcName, className, goal.method, goal.bcLine, goal.lineNumbers);
+        probes.add(goal.method, goal.bcLine, uid);
+        System.out
+            .println("register ID " + uid + " "
+                + logger.getBasicBlockID(className, goal.method, goal.bcLine));
       }
     }
+  }
+
+  /**
+   * <code>write</code> instruments a registered class and writes it. It does not touch the DB, so
+   * it may run on any thread.
+   *
+   * @param pending the registered <code>PendingClass</code>
+   * @throws IOException if an error occurs in writing the class file
+   */
+  void write(final PendingClass pending) throws IOException {
+    if (pending.isInterface()) {
+      writeBytesToFile(pending.outFileName, pending.classData);
+      return;
+    }
+    ClassReader cr = pending.cr;
+    String className = cr.getClassName();
+    ClassProbes probes = pending.probes;
+    ProbeStyle style = probes.getStyle();
+
+    // the major version follows the magic number and the minor version
+    if (probes.fallBackIfUnsupported(cr.readUnsignedShort(6))) {
+      System.out.println("WARNING: " + style + " probes are not supported for "
+          + className + " with " + probes.getCountingMode() + " counting, falling back to "
+          + probes.getStyle());
+    }
 
     // record which locations have been instrumented
     ArrayList<Integer> instrumentedIDs = new ArrayList<>();
 
-    // Let classwriter compute local var and operand stack sizes.
-    // We provide an implementation for calculating the changes
-    // introduced by our instrumentation, which is faster but more
-    // conservative than ClassWriter.COMPUTE_MAXS.
-    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    // Linking the writer to the reader reuses the constant pool and copies
+    // methods without probes as they are. Instrumented methods add the
+    // stack size of their probes in visitMaxs, so nothing is recomputed.
+    ClassWriter cw = new ClassWriter(cr, 0);
     ClassVisitor cv = new ClassVisitor(Opcodes.ASM5, cw) {
     };
 
-    // FieldAdapter is a ClassVisitor that adds the logger as a static field to
-    // the class
+    // FieldAdapter is a ClassVisitor that adds the logger (or the probe array)
+    // as a static field to the class
     // It then creates a MethodVisitor InstrumentByteCode that uses either
     //   * InstrumentByteCode to add coverage instrumentation, or
     //   * ExtendStaticInit to also add CoverageLog creation in clinit
-    FieldAdapter fa =
-        new FieldAdapter(cv, Opcodes.ACC_STATIC, "diffblue_coverage_reporter",
-            "Lorg/cprover/coverage/CoverageLog;",
-            cr.getClassName(), offsetIdMap, instrumentedIDs);
-    cr.accept(fa, 0);
+    FieldAdapter fa;
+    int parsingOptions = 0;
+    if (probes.getStyle() == ProbeStyle.ARRAY) {
+      fa = new FieldAdapter(cv,
+          Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+          FieldAdapter.PROBES_FIELD, FieldAdapter.PROBES_DESC,
+          cr.getClassName(), instrumentedIDs, probes);
+      // the local holding the probe array must be added to all frames
+      parsingOptions = ClassReader.EXPAND_FRAMES;
+    } else {
+      fa = new FieldAdapter(cv, Opcodes.ACC_STATIC, FieldAdapter.REPORTER_FIELD,
+          "Lorg/cprover/coverage/CoverageLog;",
+          cr.getClassName(), instrumentedIDs, probes);
+    }
+    cr.accept(fa, parsingOptions);
 
     byte[] filteredClassData = cw.toByteArray();
-    writeBytesToFile(outFileName, filteredClassData);
+    writeBytesToFile(pending.outFileName, filteredClassData);
 
     if (!fa.isInstrumented()) {
-      Collection<Integer> ids = offsetIdMap.values();
-      for (Integer id : instrumentedIDs) {
-        ids.remove(id);
-      }
-      for (Integer id : ids) {
-        System.out.println("ERROR: didn't instrument ID " + id);
+      HashSet<Integer> instrumented = new HashSet<>(instrumentedIDs);
+      for (int id : probes.getUids()) {
+        if (!instrumented.contains(id)) {
+          System.out.println("ERROR: didn't instrument ID " + id);
+        }
       }
     } else {
       System.out.println("WARNING: file "
-          + inFileName + " was already instrumented");
+          + pending.inFileName + " was already instrumented");
     }
   }
 
   /**
-   * <code>addRange</code> adds number range to lineNumbers <code>int[]</code>.
-   *
-   * @param min         an <code>int</code> value
-   * @param max         an <code>int</code> value
-   * @param lineNumbers an ArrayList of <code>Integer</code> line numbers
+   * <code>Goal</code> is a goal found by JBMC in the class being instrumented.
+   */
+  private static final class Goal {
+
+    /**
+     * <code>jbmcName</code> of the property.
+     */
+    private final String jbmcName;
+    /**
+     * <code>method</code> name + descriptor.
+     */
+    private final String method;
+    /**
+     * <code>bcLine</code> is the bytecode index of the goal.
+     */
+    private final int bcLine;
+    /**
+     * <code>lineNumbers</code> covered by the goal.
+     */
+    private final int[] lineNumbers;
+
+    /**
+     * Creates a new <code>Goal</code> instance.
+     *
+     * @param jbmcName    name of the property used by JBMC as <code>String</code>
+     * @param method      name + descriptor of the method as <code>String</code>
+     * @param bcLine      bytecode index of the goal as <code>int</code>
+     * @param lineNumbers lines covered by the goal as <code>int[]</code>
+     */
+    Goal(final String jbmcName, final String method, final int bcLine, final int[] lineNumbers) {
+      this.jbmcName = jbmcName;
+      this.method = method;
+      this.bcLine = bcLine;
+      this.lineNumbers = lineNumbers;
+    }
+  }
+
+  /**
+   * <code>PendingClass</code> is a class file on its way through {@link #parse}, {@link
+   * #register} and {@link #write}.
    */
-  private void addRange(
-      final int min,
-      final int max,
-      final ArrayList<Integer> lineNumbers) {
-    for (int k = min; k <= max; k++) {
-      lineNumbers.add(k);
+  static final class PendingClass {
+
+    /**
+     * <code>inFileName</code> of the class file.
+     */
+    private final String inFileName;
+    /**
+     * <code>outFileName</code> of the instrumented class file.
+     */
+    private final String outFileName;
+    /**
+     * <code>classData</code> read from the class file.
+     */
+    private final byte[] classData;
+    /**
+     * <code>cr</code> reads <code>classData</code>.
+     */
+    private final ClassReader cr;
+    /**
+     * <code>probes</code> of the class.
+     */
+    private final ClassProbes probes;
+    /**
+     * <code>goals</code> in the order JBMC reported them.
+     */
+    private final ArrayList<Goal> goals = new ArrayList<>();
+
+    /**
+     * Creates a new <code>PendingClass</code> instance.
+     *
+     * @param inFileName  a <code>String</code> value
+     * @param outFileName a <code>String</code> value
+     * @param classData   the class file as <code>byte[]</code>
+     * @param cr          the <code>ClassReader</code> of <code>classData</code>
+     * @param probes      the <code>ClassProbes</code> of the class
+     */
+    PendingClass(
+        final String inFileName,
+        final String outFileName,
+        final byte[] classData,
+        final ClassReader cr,
+        final ClassProbes probes) {
+      this.inFileName = inFileName;
+      this.outFileName = outFileName;
+      this.classData = classData;
+      this.cr = cr;
+      this.probes = probes;
+    }
+
+    /**
+     * <code>isInterface</code> signals whether the class is an interface, which is copied
+     * unchanged.
+     *
+     * @return a <code>boolean</code> value
+     */
+    boolean isInterface() {
+      return (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0;
     }
   }
 }
@@ -13,18 +13,28 @@
  */
 package org.cprover.coverage;
 
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
-import org.mapdb.HTreeMap;
-import org.mapdb.Serializer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
 
 /**
  * <code>CoverageLog</code> provides access to the persistent data structures
  * used for coverage analysis. This class can't be reliably considered to be a singleton. Multiple
- * instances can be created if there are multiple Threads, JVMs or classloaders used in the tests.
+ * instances can be created if there are multiple JVMs or classloaders used in the tests. Within
+ * one classloader the instance is shared by all threads and {@link #record(int)} may be called
+ * concurrently.
  */
 public final class CoverageLog extends Thread {
 
@@ -34,23 +44,69 @@ public final class CoverageLog extends Thread {
    */
   public static final String DB_ENV_VAR = "BLUECOV_DB";
   /**
-   * MapDB has a bug in closing its file handles for which they provide a "hack" method {@link
-   * DBMaker.Maker#cleanerHackEnable()}. This is only useful in environments where the VM doesn't
+   * MapDB has a bug in closing its file handles for which they provide a "hack" method
+   * <code>cleanerHackEnable</code>. This is only useful in environments where the VM doesn't
    * shutdown immediately after closing the database.
    */
   public static final String DB_USE_CLEANER_HACK = "DB_USE_CLEANER_HACK";
+  /**
+   * <code>CHECKPOINT_ENV_VAR</code> is the name of the environment variable that holds the
+   * interval in seconds at which counts are written to the DB while running. Counts are only
+   * written at shutdown if it is not set.
+   */
+  public static final String CHECKPOINT_ENV_VAR = "BLUECOV_CHECKPOINT_INTERVAL";
+  /**
+   * <code>BACKEND_ENV_VAR</code> is the name of the environment variable that selects where
+   * instrumented code keeps its counts: <code>db</code> (default) writes them to the DB at
+   * shutdown, <code>mmap</code> updates a memory-mapped counter file shared by all JVMs,
+   * <code>collector</code> sends them to a {@link CoverageCollector} and <code>fuzz</code> keeps
+   * them in a {@link FuzzBitmap} for a fuzzer. Any other name selects a backend of a {@link
+   * CoverageRecorderProvider} on the class path.
+   */
+  public static final String BACKEND_ENV_VAR = "BLUECOV_BACKEND";
+  /**
+   * <code>BACKEND_PROPERTY</code> is the name of the system property that selects the backend if
+   * {@link #BACKEND_ENV_VAR} is not set.
+   */
+  public static final String BACKEND_PROPERTY = "bluecov.backend";
+  /**
+   * <code>JMX_ENV_VAR</code> is the name of the environment variable that registers a {@link
+   * CoverageMonitorMXBean} for instrumented code if set to <code>true</code>.
+   */
+  public static final String JMX_ENV_VAR = "BLUECOV_JMX";
+  /**
+   * <code>JFR_ENV_VAR</code> is the name of the environment variable that makes instrumented code
+   * emit {@link CoverageEvents} to Java Flight Recorder if set to <code>true</code>.
+   */
+  public static final String JFR_ENV_VAR = "BLUECOV_JFR";
+  /**
+   * <code>PROFILE_ENV_VAR</code> is the name of the environment variable that makes instrumented
+   * code measure the self time of goals with a {@link CoverageProfiler} if set to
+   * <code>true</code>.
+   */
+  public static final String PROFILE_ENV_VAR = "BLUECOV_PROFILE";
+  /**
+   * <code>THREADS_ENV_VAR</code> is the name of the environment variable that makes instrumented
+   * code count hits per thread pool with {@link CoverageThreads} if set to <code>true</code>.
+   */
+  public static final String THREADS_ENV_VAR = "BLUECOV_THREADS";
   /**
    * <code>CoverageLog</code> singleton <code>instance</code>.
    */
-  private static CoverageLog instance;
+  private static volatile CoverageLog instance;
   /**
    * <code>fileName</code> of the database file.
    */
   private static String fileName = "blueCov.db";
   /**
-   * <code>locCountMap</code> maps locations to counts.
+   * <code>locCountMap</code> maps locations to 64-bit counts.
+   */
+  private String locCountMap = "locHitCountMap";
+  /**
+   * <code>legacyCountMap</code> maps locations to the 32-bit counts written by earlier versions.
+   * They are moved to {@link #locCountMap} when the DB is opened.
    */
-  private String locCountMap = "locCountMap";
+  private String legacyCountMap = "locCountMap";
   /**
    * <code>locationMap</code> maps UID to locations.
    */
@@ -64,37 +120,104 @@ public final class CoverageLog extends Thread {
    */
   private String jbmcNameMap = "nameMap";
   /**
-   * Indicates that all {@link DB} objects should use {@link DBMaker.Maker#cleanerHackEnable()}.
+   * Indicates that all {@link CoverageStore} objects should use MapDB's cleaner hack.
    */
   private boolean useMapDbCleanerHack;
   /**
    * <code>lineNumberMap</code> map UID to integer array of line numbers.
    */
   private String lineNumberMap = "lineMap";
+  /**
+   * <code>testGoalMapName</code> maps test IDs to the goals they covered.
+   */
+  private String testGoalMapName = "testGoalMap";
+  /**
+   * <code>selfTimeMapName</code> maps UIDs to the time spent after them in nanoseconds.
+   */
+  private String selfTimeMapName = "selfTimeMap";
+  /**
+   * <code>threadPoolMapName</code> maps names of thread pools to IDs.
+   */
+  private String threadPoolMapName = "threadPoolMap";
+  /**
+   * <code>threadCountMapName</code> maps thread pool IDs and UIDs to counts.
+   */
+  private String threadCountMapName = "threadCountMap";
+  /**
+   * <code>collectorMapName</code> maps collector client IDs to the last committed batch.
+   */
+  private String collectorMapName = "collectorMap";
+  /**
+   * <code>settingsMapName</code> maps names of settings the counts were recorded with to values.
+   */
+  private String settingsMapName = "settingsMap";
+  /**
+   * <code>SAMPLING_RATE</code> is the setting holding the lowest sampling rate of the counts.
+   */
+  private static final String SAMPLING_RATE = "samplingRate";
+  /**
+   * <code>COUNTING_MODE</code> is the setting holding the {@link CountingMode} of the counts.
+   */
+  private static final String COUNTING_MODE = "countingMode";
+  /**
+   * <code>SATURATION_LIMIT</code> is the setting holding the limit of saturating counts.
+   */
+  private static final String SATURATION_LIMIT = "saturationLimit";
+  /**
+   * <code>GENERATION</code> is the setting holding the generation of the registered goals, which
+   * the {@link CoverageManifest} is stamped with.
+   */
+  private static final String GENERATION = "generation";
   /**
    * <code>db</code> object holding the persistent data structures.
    */
-  private DB db;
+  private CoverageStore db;
   /**
    * <code>countMap</code> maps UID to counts.
    */
-  private HTreeMap<Integer, Integer> countMap; // UID -> count
+  private Map<Integer, Long> countMap;    // UID -> count
   /**
    * <code>locMap</code> maps UID to description.
    */
-  private HTreeMap<Integer, String> locMap;    // UID -> description
+  private Map<Integer, String> locMap;    // UID -> description
   /**
    * <code>descMap</code> maps description back to UID.
    */
-  private HTreeMap<String, Integer> descMap;   // description -> UID
+  private Map<String, Integer> descMap;   // description -> UID
   /**
    * <code>nameMap</code> maps UID to JBMC internal names.
    */
-  private HTreeMap<Integer, String> nameMap;   // UID -> JBMC name
+  private Map<Integer, String> nameMap;   // UID -> JBMC name
   /**
    * <code>lineMap</code> maps UID to array of lines.
    */
-  private HTreeMap<Integer, int[]> lineMap;    // UID -> array of covered lines
+  private Map<Integer, int[]> lineMap;    // UID -> array of covered lines
+  /**
+   * <code>settingsMap</code> maps names of settings to values.
+   */
+  private Map<String, String> settingsMap; // setting -> value
+  /**
+   * <code>testGoalMap</code> maps test IDs to goal sets compressed by {@link GoalSet}.
+   */
+  private Map<String, byte[]> testGoalMap; // test ID -> goals
+  /**
+   * <code>selfTimeMap</code> maps UIDs to self times measured by {@link CoverageProfiler}.
+   */
+  private Map<Integer, Long> selfTimeMap; // UID -> nanoseconds
+  /**
+   * <code>threadPoolMap</code> is the dictionary of thread pool names.
+   */
+  private Map<String, Integer> threadPoolMap; // pool name -> pool ID
+  /**
+   * <code>threadCountMap</code> maps a pool ID in the upper and a UID in the lower 32 bits to
+   * counts.
+   */
+  private Map<Long, Long> threadCountMap; // pool ID << 32 | UID -> count
+  /**
+   * <code>collectorMap</code> maps collector client IDs to the sequence number of the last batch
+   * committed.
+   */
+  private Map<String, Long> collectorMap; // client ID -> sequence number
   /**
    * <code>id</code> current UID counter.
    */
@@ -105,9 +228,146 @@ public final class CoverageLog extends Thread {
    */
   private boolean shouldReport = false;
   /**
-   * <code>inMemoryMap</code> is the temporary in-memory mapping.
+   * <code>counters</code> is the temporary in-memory store of counts.
+   */
+  private HitCounters counters;
+  /**
+   * <code>sampler</code> selects the hits counted by {@link #record(int)}, <code>null</code> if
+   * all hits are counted.
+   */
+  private CoverageSampler sampler;
+  /**
+   * <code>probeRegistry</code> holds the probe arrays of classes instrumented with {@link
+   * ProbeStyle#ARRAY}.
+   */
+  private final ProbeRegistry probeRegistry = new ProbeRegistry();
+  /**
+   * <code>flushed</code> holds the counts indexed by UID already written to the DB.
    */
-  private HashMap<Integer, Integer> inMemoryMap;
+  private long[] flushed = new long[0];
+  /**
+   * <code>flushLock</code> serializes writing counts to the DB.
+   */
+  private final Object flushLock = new Object();
+  /**
+   * <code>checkpointer</code> periodically writes counts to the DB, <code>null</code> if counts
+   * are only written at shutdown.
+   */
+  private ScheduledExecutorService checkpointer;
+  /**
+   * <code>mappedCounts</code> is the counter file of the {@link #BACKEND_ENV_VAR mmap backend}
+   * read when reporting, <code>null</code> if there is none.
+   */
+  private MappedCounters mappedCounts;
+  /**
+   * <code>collector</code> receives the counts of the collector backend, <code>null</code> for
+   * other backends.
+   */
+  private CollectorClient collector;
+  /**
+   * <code>covered</code> goals recorded by probes since the start or the last reset of coverage.
+   */
+  private final GoalBits covered = new GoalBits();
+  /**
+   * <code>sent</code> counts indexed by UID covered by the pending batch of the collector,
+   * <code>null</code> if there is none or coverage was reset since.
+   */
+  private long[] sent;
+  /**
+   * <code>COLLECTOR_INTERVAL</code> is the default interval in seconds at which counts are sent
+   * to the collector.
+   */
+  private static final long COLLECTOR_INTERVAL = 1;
+  /**
+   * <code>CHECKPOINT_SHUTDOWN_SECONDS</code> is how long the shutdown hook waits for a running
+   * checkpoint to finish.
+   */
+  private static final long CHECKPOINT_SHUTDOWN_SECONDS = 30;
+  /**
+   * <code>flushLatencyNanos</code> is how long writing the counts took the last time, -1 if they
+   * were never written.
+   */
+  private volatile long flushLatencyNanos = -1;
+  /**
+   * <code>monitorName</code> of the {@link CoverageMonitor} MBean, <code>null</code> if none was
+   * registered.
+   */
+  private ObjectName monitorName;
+  /**
+   * <code>events</code> emits Java Flight Recorder events, <code>null</code> without JFR or if not
+   * enabled in the environment.
+   */
+  private CoverageEvents events;
+  /**
+   * <code>manifest</code> the in-memory store of counts was created from.
+   */
+  private CoverageManifest manifest;
+  /**
+   * <code>goalsChanged</code> signals whether goals or settings were registered since the DB was
+   * opened, so the manifest has to be written again.
+   */
+  private boolean goalsChanged;
+  /**
+   * <code>goalsRegistered</code> signals whether goals were registered since the DB was opened.
+   */
+  private boolean goalsRegistered;
+  /**
+   * <code>manifestChecked</code> signals whether the manifest was compared with the DB.
+   */
+  private boolean manifestChecked;
+  /**
+   * <code>writtenGoals</code> is the number of goals with counts written by the last write.
+   */
+  private int writtenGoals;
+  /**
+   * <code>profiler</code> measures the time between hits, <code>null</code> if it is not
+   * measured.
+   */
+  private CoverageProfiler profiler;
+  /**
+   * <code>profiled</code> holds the self times indexed by UID already written to the DB.
+   */
+  private long[] profiled = new long[0];
+  /**
+   * <code>threads</code> counts hits per thread pool, <code>null</code> if they are not counted.
+   */
+  private CoverageThreads threads;
+  /**
+   * <code>threadsFlushed</code> holds the counts per thread pool already written to the DB.
+   */
+  private Map<String, long[]> threadsFlushed = new HashMap<>();
+  /**
+   * <code>trace</code> records the order of hits, <code>null</code> if it is not recorded.
+   */
+  private CoverageTrace trace;
+  /**
+   * <code>windows</code> keeps hit goals in time windows, <code>null</code> if only counts are
+   * kept.
+   */
+  private CoverageWindows windows;
+  /**
+   * <code>testLock</code> guards the current test and the goal sets not yet written.
+   */
+  private final Object testLock = new Object();
+  /**
+   * <code>currentTest</code> is the ID of the test running, <code>null</code> between tests.
+   */
+  private String currentTest;
+  /**
+   * <code>testHits</code> are the goals recorded by probes since the current test began,
+   * <code>null</code> between tests.
+   */
+  private volatile GoalBits testHits;
+  /**
+   * <code>testBase</code> holds the counts of the {@link ProbeStyle#ARRAY} probe arrays when the
+   * current test began, <code>null</code> if there were none.
+   */
+  private long[][] testBase;
+  /**
+   * <code>testGoals</code> maps IDs of finished tests to their compressed goal sets not yet
+   * written to the DB.
+   */
+  private final Map<String, byte[]> testGoals = new LinkedHashMap<>();
   /**
    * <code>inMemory</code> signals whether DB should be written at the end and
    * be kept in memory while running.
@@ -115,9 +375,14 @@ public final class CoverageLog extends Thread {
   private boolean inMemory = false;
 
   /**
-   * private <code>CoverageLog</code> constructor.
+   * private <code>CoverageLog</code> constructor. When running instrumented code it starts from
+   * the {@link CoverageManifest} if there is one and does not touch the DB before the counts are
+   * written.
+   *
+   * @param inMemory a <code>boolean</code> indicating whether the in-memory store should be used
    */
-  private CoverageLog() {
+  private CoverageLog(final boolean inMemory) {
+    CoverageManifest manifest;
     Map<String, String> env = System.getenv();
     if (env.containsKey(DB_ENV_VAR)) {
       fileName = env.get(DB_ENV_VAR);
@@ -125,31 +390,209 @@ public final class CoverageLog extends Thread {
     if (env.containsKey(DB_USE_CLEANER_HACK)) {
       useMapDbCleanerHack = Boolean.parseBoolean(env.get(DB_USE_CLEANER_HACK));
     }
-    db = makeDb();
-    countMap = db.hashMap(locCountMap)
-        .keySerializer(Serializer.INTEGER)
-        .valueSerializer(Serializer.INTEGER)
-        .createOrOpen();
-    locMap = db.hashMap(locationMap)
-        .keySerializer(Serializer.INTEGER)
-        .valueSerializer(Serializer.STRING)
-        .createOrOpen();
-    descMap = db.hashMap(descriptionMap)
-        .keySerializer(Serializer.STRING)
-        .valueSerializer(Serializer.INTEGER)
-        .createOrOpen();
-    nameMap = db.hashMap(jbmcNameMap)
-        .keySerializer(Serializer.INTEGER)
-        .valueSerializer(Serializer.STRING)
-        .createOrOpen();
-    lineMap = db.hashMap(lineNumberMap)
-        .keySerializer(Serializer.INTEGER)
-        .valueSerializer(Serializer.INT_ARRAY)
-        .createOrOpen();
-    this.id = locMap.size();
+    this.inMemory = inMemory;
+    manifest = inMemory ? CoverageManifest.read(fileName) : null;
+    if (manifest == null && !CoverageStore.isAvailable()) {
+      String message = "neither " + CoverageManifest.fileFor(fileName)
+          + " nor MapDB is available, instrument with the full jar to write the manifest"
+          + " or put MapDB on the class path";
+      System.out.println("ERROR: " + message);
+      throw new IllegalStateException(message);
+    }
+    if (manifest == null) {
+      db = makeDb();
+      openMaps();
+      this.id = locMap.size();
+      manifest = new CoverageManifest(id, getCountingMode(), getSaturationLimit(),
+          getGeneration());
+      if (inMemory) {
+        db.commit();
+        db.close();
+      }
+    } else {
+      this.id = manifest.getGoals();
+    }
+    windows = CoverageWindows.fromEnvironment();
+    if (!inMemory) {
+      try {
+        mappedCounts = MappedCounters.openIfExists(fileName,
+            getCountingMode().limit(getSaturationLimit()));
+      } catch (IOException e) {
+        System.out.println("WARNING: ignoring counter file: " + e.getMessage());
+      }
+    }
+    if (inMemory) {
+      String backend = env.containsKey(BACKEND_ENV_VAR)
+          ? env.get(BACKEND_ENV_VAR)
+          : System.getProperty(BACKEND_PROPERTY);
+      counters = createCounters(backend, manifest);
+      if (collector == null && !counters.isPersistent() && !CoverageStore.isAvailable()) {
+        System.out.println("WARNING: MapDB is not on the class path, counting in "
+            + MappedCounters.fileFor(fileName) + " instead");
+        counters = createCounters("mmap", manifest);
+      }
+      sampler = CoverageSampler.fromEnvironment();
+      if (sampler != null && counters.isPersistent()) {
+        System.out.println("WARNING: " + CoverageSampler.ENV_VAR
+            + " is ignored by the " + BACKEND_ENV_VAR + " " + backend);
+        sampler = null;
+      }
+      if (windows != null && counters.isPersistent()) {
+        System.out.println("WARNING: " + CoverageWindows.ENV_VAR
+            + " is ignored by the " + BACKEND_ENV_VAR + " " + backend);
+        windows = null;
+      }
+      long interval = checkpointIntervalFromEnvironment();
+      if (interval == 0 && collector != null) {
+        interval = COLLECTOR_INTERVAL;
+      } else if (interval == 0 && windows != null) {
+        interval = CoverageWindows.CHECKPOINT_INTERVAL;
+      }
+      if (interval > 0 && !counters.isPersistent()) {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "bluecov-checkpoint");
+          thread.setDaemon(true);
+          return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(
+            this::checkpoint, interval, interval, TimeUnit.SECONDS);
+      }
+      trace = CoverageTrace.fromEnvironment(fileName);
+      profiler = CoverageProfiler.fromEnvironment();
+      threads = CoverageThreads.fromEnvironment();
+      if ((profiler != null || threads != null) && counters.isPersistent()) {
+        System.out.println("WARNING: " + PROFILE_ENV_VAR + " and " + THREADS_ENV_VAR
+            + " are ignored by the " + BACKEND_ENV_VAR + " " + backend);
+        profiler = null;
+        threads = null;
+      }
+      monitorName = CoverageMonitor.register(this);
+      events = CoverageEvents.create(this, fileName);
+      this.manifest = manifest;
+    }
     Runtime.getRuntime().addShutdownHook(this);
   }
 
+  /**
+   * <code>createCounters</code> creates the in-memory store of counts for instrumented code.
+   *
+   * @param backend  the configured backend as <code>String</code>, may be <code>null</code>
+   * @param manifest the <code>CoverageManifest</code> of the DB
+   * @return a <code>HitCounters</code> instance
+   */
+  private HitCounters createCounters(final String backend, final CoverageManifest manifest) {
+    long limit = manifest.getCountingMode().limit(manifest.getSaturationLimit());
+    if ("mmap".equalsIgnoreCase(backend)) {
+      try {
+        return MappedCounters.open(fileName, id, limit);
+      } catch (IOException e) {
+        System.out.println("WARNING: could not map counter file, falling back to the DB: "
+            + e.getMessage());
+      }
+    } else if ("fuzz".equalsIgnoreCase(backend)) {
+      try {
+        return FuzzBitmap.open(id);
+      } catch (IOException e) {
+        System.out.println("WARNING: could not map fuzz bitmap, falling back to the DB: "
+            + e.getMessage());
+      }
+    } else if ("collector".equalsIgnoreCase(backend)) {
+      // counts are buffered in memory until the collector acknowledges them
+      collector = new CollectorClient(CollectorClient.portFromEnvironment());
+    } else if (backend != null && !backend.isEmpty() && !"db".equalsIgnoreCase(backend)) {
+      HitCounters plugged = createPluggedCounters(backend, limit);
+      if (plugged != null) {
+        return plugged;
+      }
+    }
+    return HitCounters.create(manifest.getCountingMode(), manifest.getSaturationLimit(), id);
+  }
+
+  /**
+   * <code>createPluggedCounters</code> creates the store of counts of a backend found by the
+   * {@link ServiceLoader}.
+   *
+   * @param backend the configured backend as <code>String</code>
+   * @param limit   the count at which counters saturate as <code>long</code>
+   * @return a <code>HitCounters</code> instance, or <code>null</code> if the backend is not
+   *     available
+   */
+  private HitCounters createPluggedCounters(final String backend, final long limit) {
+    try {
+      for (CoverageRecorderProvider provider
+          : ServiceLoader.load(CoverageRecorderProvider.class)) {
+        if (backend.equalsIgnoreCase(provider.getName())) {
+          return new RecorderCounters(provider.create(fileName, id, limit));
+        }
+      }
+      System.out.println("WARNING: unknown " + BACKEND_ENV_VAR + " " + backend
+          + ", falling back to the DB");
+    } catch (IOException | ServiceConfigurationError e) {
+      System.out.println("WARNING: could not create " + BACKEND_ENV_VAR + " " + backend
+          + ", falling back to the DB: " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * <code>openMaps</code> opens all maps in the current DB.
+   */
+  private void openMaps() {
+    countMap = db.map(locCountMap, Integer.class, Long.class);
+    locMap = db.map(locationMap, Integer.class, String.class);
+    descMap = db.map(descriptionMap, String.class, Integer.class);
+    nameMap = db.map(jbmcNameMap, Integer.class, String.class);
+    lineMap = db.map(lineNumberMap, Integer.class, int[].class);
+    settingsMap = openSettingsMap();
+    testGoalMap = db.map(testGoalMapName, String.class, byte[].class);
+    selfTimeMap = db.map(selfTimeMapName, Integer.class, Long.class);
+    threadPoolMap = db.map(threadPoolMapName, String.class, Integer.class);
+    threadCountMap = db.map(threadCountMapName, Long.class, Long.class);
+    collectorMap = db.map(collectorMapName, String.class, Long.class);
+    migrateLegacyCounts();
+    if (manifest != null && !manifestChecked) {
+      checkManifest();
+    }
+  }
+
+  /**
+   * <code>checkManifest</code> warns once if the manifest the runtime started from does not match
+   * the DB it writes to. Counts are still written by UID, but goals registered after the manifest
+   * was written were not known when counting started.
+   */
+  private void checkManifest() {
+    manifestChecked = true;
+    if (manifest.getGeneration() != getGeneration() || manifest.getGoals() != locMap.size()) {
+      System.out.println("WARNING: " + CoverageManifest.fileFor(fileName)
+          + " does not match the DB, it lists " + manifest.getGoals() + " goals of generation "
+          + manifest.getGeneration() + " instead of " + locMap.size() + " of generation "
+          + getGeneration() + ", instrument again to rewrite it");
+    }
+  }
+
+  /**
+   * <code>migrateLegacyCounts</code> adds the 32-bit counts of a DB written by an earlier version
+   * to the 64-bit counts and empties the old map, so they are moved once with the next commit.
+   */
+  private void migrateLegacyCounts() {
+    if (!db.exists(legacyCountMap)) {
+      return;
+    }
+    Map<Integer, Integer> legacy =
+        db.map(legacyCountMap, Integer.class, Integer.class);
+    if (legacy.isEmpty()) {
+      return;
+    }
+    long limit = getCountingMode().limit(getSaturationLimit());
+    for (Map.Entry<Integer, Integer> entry : legacy.entrySet()) {
+      // earlier versions let counts overflow into negative values
+      addCount(entry.getKey(), Integer.toUnsignedLong(entry.getValue()), limit);
+    }
+    System.out.println("WARNING: moved " + legacy.size() + " counts of an earlier version from "
+        + legacyCountMap + " to " + locCountMap);
+    legacy.clear();
+  }
+
   /**
    * <code>getDbFileName</code> returns the default name of the db file.
    *
@@ -178,57 +621,111 @@ public final class CoverageLog extends Thread {
    * @return the <code>CoverageLog</code> instance
    */
   public static CoverageLog getInstance(final boolean inMemory) {
-    if (instance == null) {
-      instance = new CoverageLog();
-      if (inMemory) {
-        instance.inMemory = inMemory;
-        instance.inMemoryMap = new HashMap<>();
-        @SuppressWarnings("unchecked")
-        Set<Integer> keys = instance.countMap.keySet();
-        for (Integer key : keys) {
-          instance.inMemoryMap.put(key, 0);
+    CoverageLog log = instance;
+    if (log == null) {
+      synchronized (CoverageLog.class) {
+        log = instance;
+        if (log == null) {
+          log = new CoverageLog(inMemory);
+          instance = log;
         }
-        instance.db.close();
       }
     }
-    return instance;
+    return log;
   }
 
   /**
-   * Creates a {@link DB} configured according to the {@link System#getenv() system environment}
-   * configuration.
+   * Opens the {@link CoverageStore} configured according to the {@link System#getenv() system
+   * environment} configuration.
    *
-   * @return A pre-configured {@link DB}.
+   * @return the open {@link CoverageStore}
    */
-  private DB makeDb() {
-    DBMaker.Maker maker = DBMaker
-        .fileDB(fileName)
-        .cleanerHackEnable()
-        .fileMmapEnable()
-        .fileMmapEnableIfSupported();
-    if (useMapDbCleanerHack) {
-      maker = maker.cleanerHackEnable();
-    }
-    // We need to wait in case other instances are using the DB.
-    maker.fileLockWait();
-    return maker.make();
+  private CoverageStore makeDb() {
+    return CoverageStore.open(fileName, useMapDbCleanerHack);
+  }
+
+  /**
+   * <code>openSettingsMap</code> opens the map of settings in the current DB.
+   *
+   * @return the settings as <code>Map</code>
+   */
+  private Map<String, String> openSettingsMap() {
+    return db.map(settingsMapName, String.class, String.class);
   }
 
   /**
    * <code>record</code> is called to update the coverage of a basic block in
-   * the DB.
+   * the DB. It is safe to call from any thread and does not block. When sampling, only a fraction
+   * of the hits is counted.
    *
    * @param key UID of the basic block as <code>int</code>
    */
   public void record(final int key) {
-    Integer i = inMemoryMap.get(key);
-    if (i == null) {
-      inMemoryMap.put(key, 1);
-    } else {
-      inMemoryMap.put(key, i + 1);
+    covered.add(key);
+    GoalBits tests = testHits;
+    if (tests != null) {
+      tests.add(key);
+    }
+    CoverageSampler s = sampler;
+    if (s == null || s.sample()) {
+      counters.increment(key);
+    }
+    CoverageEvents e = events;
+    if (e != null && e.isFirstHitEnabled()) {
+      e.hit(key);
+    }
+    CoverageTrace t = trace;
+    if (t != null) {
+      t.append(key);
+    }
+    CoverageProfiler p = profiler;
+    if (p != null) {
+      p.hit(key);
+    }
+    CoverageThreads th = threads;
+    if (th != null) {
+      th.hit(key);
     }
   }
 
+  /**
+   * <code>probes</code> is called once by every class instrumented with {@link ProbeStyle#ARRAY}
+   * to allocate the array of counters for its probes.
+   *
+   * @param uids the UIDs of the probes of the class as encoded by {@link ProbeCodec}
+   * @return counters indexed by class-local probe ID as <code>long[]</code>
+   */
+  public static long[] probes(final String uids) {
+    CoverageLog log = getInstance();
+    if (log.counters instanceof FuzzBitmap && log.probeRegistry.isEmpty()) {
+      System.out.println("WARNING: the fuzz backend does not see the hits of "
+          + ProbeStyle.ARRAY + " probes, instrument with " + ProbeStyle.ENV_VAR + "="
+          + ProbeStyle.CALL);
+    }
+    return log.probeRegistry.register(ProbeCodec.decode(uids));
+  }
+
+  /**
+   * <code>bootstrap</code> links the <code>invokedynamic</code> probes of classes instrumented with
+   * {@link ProbeStyle#INDY}.
+   *
+   * @param lookup the <code>MethodHandles.Lookup</code> of the instrumented class
+   * @param name   name of the call site as <code>String</code>
+   * @param type   the <code>MethodType</code> of the call site
+   * @param uid    UID of the goal of the probe as <code>int</code>
+   * @return a <code>CallSite</code> that records the first hit of the goal
+   */
+  public static CallSite bootstrap(
+      final MethodHandles.Lookup lookup,
+      final String name,
+      final MethodType type,
+      final int uid) {
+    if (!type.equals(ProbeCallSite.TYPE)) {
+      throw new IllegalArgumentException("unexpected probe type " + type);
+    }
+    return new ProbeCallSite(uid);
+  }
+
   /**
    * <code>register</code> basic block in database.
    *
@@ -247,7 +744,9 @@ public final class CoverageLog extends Thread {
       final int bcLoc,
       final int[] lineNumbers) {
     String desc = getBasicBlockID(className, methodName, bcLoc);
+    goalsRegistered = true;
     if (!locMap.containsKey(key)) {
+      goalsChanged();
       locMap.put(key, desc);
       descMap.put(desc, key);
       nameMap.put(key, jbmcName);
@@ -256,6 +755,29 @@ public final class CoverageLog extends Thread {
     }
   }
 
+  /**
+   * <code>registerGoal</code> registers a basic block in the database unless it is known and
+   * returns its UID. New basic blocks get the next UID, so registering them in the same order
+   * assigns the same UIDs. It may be called from any thread.
+   *
+   * @param jbmcName    name of property used by JBMC <code>String</code>
+   * @param className   name of class as <code>String</code>
+   * @param methodName  name of method + signature as <code>String</code>
+   * @param bcLoc       bytecode offset of basic block as <code>int</code>
+   * @param lineNumbers lines covered by this property as <code>int[]</code>
+   * @return the UID as <code>int</code>
+   */
+  public synchronized int registerGoal(
+      final String jbmcName,
+      final String className,
+      final String methodName,
+      final int bcLoc,
+      final int[] lineNumbers) {
+    int uid = getCoverageUID(getBasicBlockID(className, methodName, bcLoc));
+    register(uid, jbmcName, className, methodName, bcLoc, lineNumbers);
+    return uid;
+  }
+
   /**
    * <code>report</code> creates a short report about the coverage numbers of
    * the basic blocks stored in the DB.
@@ -272,13 +794,11 @@ public final class CoverageLog extends Thread {
    *                        reported
    */
   public void report(final boolean reportUncovered) {
-    Set<?> keys = locMap.keySet();
-    for (Object key : keys) {
-      if (countMap.containsKey(key)) {
-        if (reportUncovered || countMap.get(key) > 0) {
-          System.out.println(locMap.get(key) + " "
-              + countMap.get(key).toString() + " times");
-        }
+    Set<Integer> keys = locMap.keySet();
+    for (Integer key : keys) {
+      long count = getCount(key);
+      if (count > 0 || (reportUncovered && countMap.containsKey(key))) {
+        System.out.println(locMap.get(key) + " " + count + " times");
       } else if (reportUncovered) {
         System.out.println(locMap.get(key) + " is uncovered");
       }
@@ -286,23 +806,120 @@ public final class CoverageLog extends Thread {
   }
 
   /**
-   * <code>getHitCounts</code> returns mapping of descriptions to hitcounts.
+   * <code>getHitCounts</code> returns mapping of descriptions to hitcounts. Counts beyond
+   * {@link Integer#MAX_VALUE} are returned as {@link Integer#MAX_VALUE}, see {@link
+   * #getLongHitCounts()}.
    *
    * @return hashmap
    */
   public HashMap<String, Integer> getHitCounts() {
     HashMap<String, Integer> descCountMap = new HashMap<>();
-    Set<?> keys = locMap.keySet();
-    for (Object key : keys) {
-      if (countMap.containsKey(key)) {
-        descCountMap.put(nameMap.get(key), countMap.get(key));
-      } else {
-        descCountMap.put(nameMap.get(key), 0);
-      }
+    for (Map.Entry<String, Long> entry : getLongHitCounts().entrySet()) {
+      descCountMap.put(entry.getKey(), (int) Math.min(entry.getValue(), Integer.MAX_VALUE));
+    }
+    return descCountMap;
+  }
+
+  /**
+   * <code>getLongHitCounts</code> returns mapping of descriptions to 64-bit hitcounts.
+   *
+   * @return hashmap
+   */
+  public HashMap<String, Long> getLongHitCounts() {
+    HashMap<String, Long> descCountMap = new HashMap<>();
+    Set<Integer> keys = locMap.keySet();
+    for (Integer key : keys) {
+      descCountMap.put(nameMap.get(key), getCount(key));
     }
     return descCountMap;
   }
 
+  /**
+   * <code>getCount</code> returns the count of a basic block in the DB and the counter file.
+   *
+   * @param key UID of the basic block as <code>Integer</code>
+   * @return the count as <code>long</code>
+   */
+  private long getCount(final Integer key) {
+    Long count = countMap.get(key);
+    long total = count == null ? 0 : count;
+    if (mappedCounts != null) {
+      total = Math.min(total + mappedCounts.get(key),
+          getCountingMode().limit(getSaturationLimit()));
+    }
+    return total;
+  }
+
+
+  /**
+   * <code>setCountingMode</code> stores the counting mode classes are instrumented with in the DB.
+   *
+   * @param mode            the <code>CountingMode</code> of the probes
+   * @param saturationLimit the limit of saturating counts as <code>long</code>
+   */
+  public void setCountingMode(final CountingMode mode, final long saturationLimit) {
+    String previous = settingsMap.put(COUNTING_MODE, mode.name());
+    if (previous != null && !previous.equals(mode.name())) {
+      System.out.println("WARNING: counting mode changed from " + previous
+          + " to " + mode + ", existing counts are interpreted as " + mode);
+    }
+    String previousLimit = settingsMap.put(SATURATION_LIMIT, Long.toString(saturationLimit));
+    if (!mode.name().equals(previous) || !Long.toString(saturationLimit).equals(previousLimit)) {
+      goalsChanged();
+    }
+  }
+
+  /**
+   * <code>goalsChanged</code> deletes the manifest on the first change of the registered goals or
+   * settings, so the runtime reads the DB rather than a stale manifest until it is written again.
+   */
+  private void goalsChanged() {
+    if (!goalsChanged) {
+      goalsChanged = true;
+      CoverageManifest.delete(fileName);
+    }
+  }
+
+  /**
+   * <code>getGeneration</code> returns the generation of the registered goals stored in the DB.
+   *
+   * @return the generation as <code>long</code>, 0 if none is stored
+   */
+  private long getGeneration() {
+    String generation = settingsMap.get(GENERATION);
+    return generation == null ? 0 : Long.parseLong(generation);
+  }
+
+  /**
+   * <code>getCountingMode</code> returns the counting mode stored in the DB.
+   *
+   * @return a <code>CountingMode</code>, {@link CountingMode#EXACT} if none is stored
+   */
+  public CountingMode getCountingMode() {
+    String mode = settingsMap.get(COUNTING_MODE);
+    return mode == null ? CountingMode.EXACT : CountingMode.valueOf(mode);
+  }
+
+  /**
+   * <code>getSaturationLimit</code> returns the limit of saturating counts stored in the DB.
+   *
+   * @return the limit as <code>long</code>
+   */
+  public long getSaturationLimit() {
+    String limit = settingsMap.get(SATURATION_LIMIT);
+    return limit == null ? CountingMode.DEFAULT_SATURATION_LIMIT : Long.parseLong(limit);
+  }
+
+  /**
+   * <code>getSamplingRate</code> returns the lowest sampling rate the counts in the DB were
+   * recorded with. Counts recorded with a rate below 1 are estimates.
+   *
+   * @return the sampling rate as <code>double</code>, 1 if all hits were counted
+   */
+  public double getSamplingRate() {
+    String rate = settingsMap.get(SAMPLING_RATE);
+    return rate == null ? 1.0 : Double.parseDouble(rate);
+  }
 
   /**
    * <code>getLinesForblock</code> returns mapping of descriptions to line
@@ -335,27 +952,643 @@ public final class CoverageLog extends Thread {
    *
    */
   public void run() {
+    if (checkpointer != null) {
+      // let a running checkpoint finish its transaction rather than interrupting its I/O
+      checkpointer.shutdown();
+      try {
+        if (!checkpointer.awaitTermination(CHECKPOINT_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+          System.out.println("WARNING: checkpoint still running at shutdown");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    CoverageMonitor.unregister(monitorName);
+    if (trace != null) {
+      trace.close();
+    }
     if (inMemory) {
-      db = makeDb();
-      countMap = db.hashMap(locCountMap)
-          .keySerializer(Serializer.INTEGER)
-          .valueSerializer(Serializer.INTEGER)
-          .createOrOpen();
-      for (Integer key : inMemoryMap.keySet()) {
-        Integer orig = countMap.get(key);
-        if (orig == null) {
-          orig = 0;
+      synchronized (flushLock) {
+        CoverageEvents.Flush flush = events == null ? null : events.beginFlush("shutdown");
+        writtenGoals = 0;
+        Watermarks written = new Watermarks();
+        // the counts of a FuzzBitmap are only read by the fuzzer and never written
+        if (counters.isPersistent() && !(counters instanceof FuzzBitmap)) {
+          // only the probe arrays are not in the persistent store yet
+          addProbeArrays(counters);
+        } else if (!counters.isPersistent() && (collector == null || !sendCounts())) {
+          if (collector != null) {
+            skipUncertainBatch();
+          }
+          if (!CoverageStore.isAvailable()) {
+            spillCounts();
+          } else {
+            if (collector != null) {
+              System.out.println("WARNING: coverage collector is unavailable, "
+                  + "writing counts to " + fileName);
+            }
+            db = makeDb();
+            openMaps();
+            writeCounts(written);
+          }
+        }
+        if (collector != null) {
+          collector.close();
+        }
+        endTest();
+        if (hasTestGoals() && !CoverageStore.isAvailable()) {
+          System.out.println("WARNING: MapDB is not on the class path, "
+              + "dropping the goals covered by tests");
+        } else if (hasTestGoals()) {
+          if (db == null || db.isClosed()) {
+            db = makeDb();
+            openMaps();
+          }
+          writeTestGoals(written);
+        }
+        if (db != null && !db.isClosed()) {
+          db.commit();
+          written.apply();
+        }
+        if (flush != null) {
+          events.endFlush(flush, writtenGoals);
         }
-        countMap.put(key, orig + inMemoryMap.get(key));
       }
     }
     if (shouldReport) {
+      if (db == null || db.isClosed()) {
+        db = makeDb();
+        openMaps();
+      }
       System.out.println("reporting");
       boolean reportUncovered = false;
       report(reportUncovered);
       System.out.println("closing DB");
     }
-    db.close();
+    // the manifest is only written after instrumentation, once its goals are committed
+    boolean writeManifest = !inMemory
+        && (goalsChanged || (goalsRegistered && !CoverageManifest.exists(fileName)));
+    if (writeManifest && goalsChanged) {
+      settingsMap.put(GENERATION, Long.toString(getGeneration() + 1));
+    }
+    if (db != null && !db.isClosed()) {
+      db.commit();
+      if (writeManifest) {
+        new CoverageManifest(id, getCountingMode(), getSaturationLimit(), getGeneration())
+            .write(fileName);
+        CoverageManifest.writeGoals(fileName, locMap);
+      }
+      db.close();
+    }
+  }
+
+  /**
+   * <code>addProbeArrays</code> adds the counts of the probe arrays to a persistent store.
+   *
+   * @param store the persistent <code>HitCounters</code>
+   */
+  private void addProbeArrays(final HitCounters store) {
+    long[] totals = probeRegistry.addTo(new long[0]);
+    for (int key = 0; key < totals.length; key++) {
+      if (totals[key] > 0) {
+        store.add(key, totals[key]);
+      }
+    }
+  }
+
+  /**
+   * <code>checkpoint</code> writes the counts recorded since the last checkpoint to the DB in a
+   * single transaction, so a crash loses at most the counts since then. It is called periodically
+   * if {@link #CHECKPOINT_ENV_VAR} is set and may be called from any thread.
+   */
+  public void checkpoint() {
+    if (!inMemory || counters.isPersistent()) {
+      return;
+    }
+    synchronized (flushLock) {
+      long start = System.nanoTime();
+      CoverageEvents.Flush flush = events == null ? null : events.beginFlush("checkpoint");
+      writtenGoals = 0;
+      if (collector != null) {
+        // counts the collector did not acknowledge are sent again next time
+        if (sendCounts()) {
+          flushLatencyNanos = System.nanoTime() - start;
+          if (flush != null) {
+            events.endFlush(flush, writtenGoals);
+          }
+        }
+        return;
+      }
+      try {
+        db = makeDb();
+        openMaps();
+        Watermarks written = new Watermarks();
+        writeCounts(written);
+        writeTestGoals(written);
+        db.commit();
+        // nothing counts as written before the transaction is committed
+        written.apply();
+        flushLatencyNanos = System.nanoTime() - start;
+        if (flush != null) {
+          events.endFlush(flush, writtenGoals);
+        }
+      } catch (RuntimeException e) {
+        System.out.println("ERROR: checkpoint failed: " + e);
+        if (db != null && !db.isClosed()) {
+          db.rollback();
+        }
+      } finally {
+        if (db != null && !db.isClosed()) {
+          db.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>writeCounts</code> adds the counts, self times and counts per thread pool not yet written
+   * to the maps of the open DB. The caller commits and then applies the watermarks.
+   *
+   * @param written the <code>Watermarks</code> to stage what is written in
+   */
+  private void writeCounts(final Watermarks written) {
+    if (sampler != null && sampler.getRate() < getSamplingRate()) {
+      settingsMap.put(SAMPLING_RATE, Double.toString(sampler.getRate()));
+    }
+    long limit = getCountingMode().limit(getSaturationLimit());
+    long[] totals = collectCounts();
+    int[] keys = new int[totals.length];
+    int size = 0;
+    for (int key = 0; key < totals.length; key++) {
+      long hits = totals[key] - (key < flushed.length ? flushed[key] : 0);
+      if (hits > 0) {
+        addCount(key, hits, limit);
+        keys[size++] = key;
+      }
+    }
+    writtenGoals += size;
+    if (windows != null) {
+      windows.add(db, Arrays.copyOf(keys, size), System.currentTimeMillis());
+    }
+    if (profiler != null) {
+      written.selfTimes = writeSelfTimes();
+    }
+    if (threads != null) {
+      written.threadCounts = writeThreadCounts();
+    }
+    written.counts = totals;
+  }
+
+  /**
+   * <code>writeThreadCounts</code> adds the counts per thread pool recorded since the last write
+   * to the maps of the open DB, adding new pools to the dictionary.
+   *
+   * @return counts per thread pool written so far
+   */
+  private Map<String, long[]> writeThreadCounts() {
+    Map<String, long[]> counts = threads.collect();
+    Map<String, long[]> marks = new HashMap<>(threadsFlushed);
+    for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+      Integer pool = threadPoolMap.get(entry.getKey());
+      if (pool == null) {
+        pool = threadPoolMap.size();
+        threadPoolMap.put(entry.getKey(), pool);
+      }
+      long[] hits = entry.getValue();
+      long[] written = threadsFlushed.get(entry.getKey());
+      for (int key = 0; key < hits.length; key++) {
+        long delta = hits[key] - (written != null && key < written.length ? written[key] : 0);
+        if (delta > 0) {
+          long mapKey = (long) pool << 32 | key;
+          Long orig = threadCountMap.get(mapKey);
+          threadCountMap.put(mapKey, (orig == null ? 0 : orig) + delta);
+        }
+      }
+      // a buffer being folded may be missed once, its counts must not be written again later
+      long[] mark = written == null
+          ? new long[hits.length]
+          : Arrays.copyOf(written, Math.max(written.length, hits.length));
+      for (int key = 0; key < hits.length; key++) {
+        mark[key] = Math.max(mark[key], hits[key]);
+      }
+      marks.put(entry.getKey(), mark);
+    }
+    return marks;
+  }
+
+  /**
+   * <code>writeSelfTimes</code> adds the self times measured since the last write to the map of
+   * the open DB.
+   *
+   * @return self times indexed by UID written so far as <code>long[]</code>
+   */
+  private long[] writeSelfTimes() {
+    long[] nanos = profiler.collect();
+    for (int key = 0; key < nanos.length; key++) {
+      long delta = nanos[key] - (key < profiled.length ? profiled[key] : 0);
+      if (delta > 0) {
+        Long orig = selfTimeMap.get(key);
+        selfTimeMap.put(key, (orig == null ? 0 : orig) + delta);
+      }
+    }
+    return nanos;
+  }
+
+  /**
+   * <code>addCount</code> adds hits of a basic block to the count map of the open DB.
+   *
+   * @param key   UID of the basic block as <code>int</code>
+   * @param hits  number of hits as <code>long</code>
+   * @param limit the highest count of the counting mode as <code>long</code>
+   */
+  private void addCount(final int key, final long hits, final long limit) {
+    Long orig = countMap.get(key);
+    if (orig == null) {
+      orig = 0L;
+    }
+    countMap.put(key, Math.min(orig + hits, limit));
+  }
+
+  /**
+   * <code>addCounts</code> adds a batch of hits received by the {@link CoverageCollector} to the
+   * DB and commits it, together with its sequence number. A batch sent again after its
+   * acknowledgement was lost is ignored.
+   *
+   * @param client       ID of the client as <code>String</code>
+   * @param sequence     sequence number of the batch as <code>long</code>
+   * @param keys         UIDs as <code>int[]</code>
+   * @param hits         hits of the UIDs as <code>long[]</code>
+   * @param samplingRate sampling rate the hits were recorded with as <code>double</code>
+   */
+  void addCounts(
+      final String client,
+      final long sequence,
+      final int[] keys,
+      final long[] hits,
+      final double samplingRate) {
+    synchronized (flushLock) {
+      Long committed = collectorMap.get(client);
+      if (committed != null && sequence <= committed) {
+        return;
+      }
+      if (samplingRate < getSamplingRate()) {
+        settingsMap.put(SAMPLING_RATE, Double.toString(samplingRate));
+      }
+      long limit = getCountingMode().limit(getSaturationLimit());
+      for (int i = 0; i < keys.length; i++) {
+        addCount(keys[i], hits[i], limit);
+      }
+      if (windows != null) {
+        windows.add(db, keys, System.currentTimeMillis());
+      }
+      collectorMap.put(client, sequence);
+      db.commit();
+    }
+  }
+
+  /**
+   * <code>sendCounts</code> sends the counts not yet acknowledged to the collector.
+   *
+   * @return <code>true</code> if the collector acknowledged them
+   */
+  private boolean sendCounts() {
+    if (collector.hasPending()) {
+      if (!collector.resend()) {
+        return false;
+      }
+      if (sent != null) {
+        flushed = sent;
+        sent = null;
+      }
+    }
+    long[] totals = collectCounts();
+    int[] keys = new int[totals.length];
+    long[] hits = new long[totals.length];
+    int size = 0;
+    for (int key = 0; key < totals.length; key++) {
+      long delta = totals[key] - (key < flushed.length ? flushed[key] : 0);
+      if (delta > 0) {
+        keys[size] = key;
+        hits[size] = delta;
+        size++;
+      }
+    }
+    writtenGoals = size;
+    if (size > 0 && !collector.send(Arrays.copyOf(keys, size), Arrays.copyOf(hits, size),
+        sampler == null ? 1.0 : sampler.getRate())) {
+      sent = totals;
+      return false;
+    }
+    flushed = totals;
+    return true;
+  }
+
+  /**
+   * <code>skipUncertainBatch</code> leaves the batch the collector did not acknowledge out of the
+   * counts written locally if it reached the collector, which may have committed it. Its hits may
+   * be lost, but are never counted twice.
+   */
+  private void skipUncertainBatch() {
+    if (sent == null || !collector.isPendingUncertain()) {
+      return;
+    }
+    int goals = 0;
+    for (int key = 0; key < sent.length; key++) {
+      if (sent[key] > (key < flushed.length ? flushed[key] : 0)) {
+        goals++;
+      }
+    }
+    System.out.println("WARNING: coverage collector did not acknowledge the hits of " + goals
+        + " goals, leaving them out since it may have committed them");
+    flushed = sent;
+    sent = null;
+  }
+
+  /**
+   * <code>spillCounts</code> adds the counts not yet written to the counter file of the
+   * <code>mmap</code> backend, which the tools of the full jar merge into the DB. It is used at
+   * shutdown if the collector is unavailable and MapDB is not on the class path. Self times and
+   * counts per thread pool are only kept in the DB and are dropped.
+   */
+  private void spillCounts() {
+    long[] totals = collectCounts();
+    try {
+      MappedCounters spill = MappedCounters.open(fileName, id,
+          manifest.getCountingMode().limit(manifest.getSaturationLimit()));
+      System.out.println("WARNING: coverage collector is unavailable, writing counts to "
+          + MappedCounters.fileFor(fileName));
+      for (int key = 0; key < totals.length; key++) {
+        long hits = totals[key] - (key < flushed.length ? flushed[key] : 0);
+        if (hits > 0) {
+          spill.add(key, hits);
+          writtenGoals++;
+        }
+      }
+      flushed = totals;
+    } catch (IOException e) {
+      System.out.println("ERROR: coverage collector is unavailable and counts cannot be written: "
+          + e.getMessage());
+    }
+  }
+
+  /**
+   * <code>checkpointIntervalFromEnvironment</code> returns the checkpoint interval configured in
+   * the environment.
+   *
+   * @return the interval in seconds as <code>long</code>, 0 if there are no checkpoints
+   */
+  private static long checkpointIntervalFromEnvironment() {
+    String interval = System.getenv(CHECKPOINT_ENV_VAR);
+    if (interval == null || interval.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(interval);
+    } catch (NumberFormatException e) {
+      System.out.println("WARNING: " + CHECKPOINT_ENV_VAR + " is not a number of seconds: "
+          + interval);
+      return 0;
+    }
+  }
+
+  /**
+   * <code>snapshot</code> returns the counts recorded by this JVM so far without blocking threads
+   * recording hits.
+   *
+   * @return counts indexed by UID as <code>long[]</code>
+   */
+  long[] snapshot() {
+    return inMemory ? collectCounts() : new long[0];
+  }
+
+  /**
+   * <code>takeSnapshot</code> returns the goals covered by this JVM so far without touching the DB
+   * or blocking threads recording hits. Together with {@link #resetCoverage()} it lets a single
+   * JVM tell which goals each of many runs covered. Probes mark their goal covered on the first
+   * hit, so this copies a bitset rather than reading the counters. Only the probe arrays of
+   * {@link ProbeStyle#ARRAY} are scanned, as they count without calling back.
+   *
+   * @return a <code>CoverageSnapshot</code>, empty if counts are not kept in memory
+   */
+  public CoverageSnapshot takeSnapshot() {
+    if (!inMemory) {
+      return CoverageSnapshot.EMPTY;
+    }
+    return new CoverageSnapshot(probeRegistry.markCovered(covered.toWords()));
+  }
+
+  /**
+   * <code>coveredSince</code> returns the goals covered since a snapshot was taken.
+   *
+   * @param since a <code>CoverageSnapshot</code> returned by {@link #takeSnapshot()}
+   * @return the UIDs in ascending order as <code>int[]</code>
+   */
+  public int[] coveredSince(final CoverageSnapshot since) {
+    return takeSnapshot().newlyCovered(since);
+  }
+
+  /**
+   * <code>beginTest</code> starts attributing hits to a test. Probes mark the goals they hit while
+   * a test runs, so tests running concurrently are attributed each other's hits. Retired {@link
+   * ProbeStyle#INDY} probes are re-armed, so they record their goal again for every test. The probe
+   * arrays of {@link ProbeStyle#ARRAY} count without calling back, so their counts are compared at
+   * the start and the end of the test instead.
+   *
+   * @param testId unique ID of the test as <code>String</code>
+   */
+  public void beginTest(final String testId) {
+    if (!inMemory) {
+      return;
+    }
+    synchronized (testLock) {
+      endTest();
+      testBase = probeRegistry.isEmpty() ? null : probeRegistry.copyHits();
+      testHits = new GoalBits();
+      currentTest = testId;
+    }
+    ProbeCallSite.rearm();
+  }
+
+  /**
+   * <code>endTest</code> stores the goals hit since {@link #beginTest(String)}. They are written to
+   * the DB with the counts, a test run again replaces the goals of its previous run.
+   */
+  public void endTest() {
+    synchronized (testLock) {
+      if (currentTest == null) {
+        return;
+      }
+      long[] words = testHits.toWords();
+      testHits = null;
+      if (!probeRegistry.isEmpty()) {
+        words = probeRegistry.markChanged(words, testBase == null ? new long[0][] : testBase);
+      }
+      testGoals.put(currentTest, GoalSet.encode(new CoverageSnapshot(words).getCovered()));
+      currentTest = null;
+      testBase = null;
+    }
+  }
+
+  /**
+   * <code>hasTestGoals</code> signals whether goal sets of tests are waiting to be written.
+   *
+   * @return a <code>boolean</code> value
+   */
+  private boolean hasTestGoals() {
+    synchronized (testLock) {
+      return !testGoals.isEmpty();
+    }
+  }
+
+  /**
+   * <code>writeTestGoals</code> adds the goal sets of finished tests to the map of the open DB.
+   * The caller commits and then applies the watermarks, which drops the written sets.
+   *
+   * @param written the <code>Watermarks</code> to stage the written goal sets in
+   */
+  private void writeTestGoals(final Watermarks written) {
+    synchronized (testLock) {
+      for (Map.Entry<String, byte[]> entry : testGoals.entrySet()) {
+        testGoalMap.put(entry.getKey(), entry.getValue());
+      }
+      written.testGoals = new HashMap<>(testGoals);
+    }
+  }
+
+  /**
+   * <code>getGoalsByTest</code> returns the goals covered by each test in the DB.
+   *
+   * @return mapping of test IDs to UIDs in ascending order
+   */
+  public HashMap<String, int[]> getGoalsByTest() {
+    HashMap<String, int[]> goalsByTest = new HashMap<>();
+    for (Map.Entry<String, byte[]> entry : testGoalMap.entrySet()) {
+      goalsByTest.put(entry.getKey(), GoalSet.decode(entry.getValue()));
+    }
+    return goalsByTest;
+  }
+
+  /**
+   * <code>getFuzzBitmap</code> returns the hit map of the <code>fuzz</code> backend.
+   *
+   * @return a <code>FuzzBitmap</code>, or <code>null</code> for other backends
+   */
+  public FuzzBitmap getFuzzBitmap() {
+    return counters instanceof FuzzBitmap ? (FuzzBitmap) counters : null;
+  }
+
+  /**
+   * <code>getGoalsNotHitSince</code> returns the goals not hit since a point in time according to
+   * the last hits kept with {@link CoverageWindows#ENV_VAR}, including goals never hit.
+   *
+   * @param since the point in time in milliseconds since the epoch as <code>long</code>
+   * @return the UIDs in ascending order as <code>int[]</code>
+   */
+  public int[] getGoalsNotHitSince(final long since) {
+    return CoverageWindows.notHitSince(db, locMap.size(), since);
+  }
+
+  /**
+   * <code>getSelfTimes</code> returns the time spent after each goal measured with {@link
+   * #PROFILE_ENV_VAR}.
+   *
+   * @return mapping of UIDs to nanoseconds
+   */
+  public HashMap<Integer, Long> getSelfTimes() {
+    return new HashMap<>(selfTimeMap);
+  }
+
+  /**
+   * <code>getThreadsByGoal</code> returns the hits of each goal per thread pool counted with {@link
+   * #THREADS_ENV_VAR}.
+   *
+   * @return mapping of UIDs to mappings of thread pool names to counts
+   */
+  public HashMap<Integer, HashMap<String, Long>> getThreadsByGoal() {
+    HashMap<Integer, String> pools = new HashMap<>();
+    for (Map.Entry<String, Integer> entry : threadPoolMap.entrySet()) {
+      pools.put(entry.getValue(), entry.getKey());
+    }
+    HashMap<Integer, HashMap<String, Long>> threadsByGoal = new HashMap<>();
+    for (Map.Entry<Long, Long> entry : threadCountMap.entrySet()) {
+      int pool = (int) (entry.getKey() >>> 32);
+      int key = (int) (long) entry.getKey();
+      threadsByGoal.computeIfAbsent(key, k -> new HashMap<>())
+          .put(pools.get(pool), entry.getValue());
+    }
+    return threadsByGoal;
+  }
+
+  /**
+   * <code>getGoalCount</code> returns the number of goals registered in the DB.
+   *
+   * @return the number of goals as <code>int</code>
+   */
+  int getGoalCount() {
+    return locMap.size();
+  }
+
+  /**
+   * <code>getGoalLocation</code> returns the location of a goal as class, method and bytecode
+   * index.
+   *
+   * @param key UID of the goal as <code>int</code>
+   * @return the location as <code>String</code>, <code>null</code> if the UID is unknown
+   */
+  public String getGoalLocation(final int key) {
+    return locMap.get(key);
+  }
+
+  /**
+   * <code>getGoalName</code> returns the JBMC name of a goal as used by {@link #getLongHitCounts()}.
+   *
+   * @param key UID of the goal as <code>int</code>
+   * @return the name as <code>String</code>, <code>null</code> if the UID is unknown
+   */
+  public String getGoalName(final int key) {
+    return nameMap.get(key);
+  }
+
+  /**
+   * <code>measureProbeNanos</code> times hits recorded on scratch counters of the same kind as the
+   * in-memory store, an estimate of the cost of a probe in instrumented code.
+   *
+   * @return the estimated time of a single hit in nanoseconds as <code>double</code>
+   */
+  double measureProbeNanos() {
+    final int hits = 1 << 14;
+    HitCounters scratch = HitCounters.create(
+        manifest.getCountingMode(), manifest.getSaturationLimit(), 1);
+    long start = System.nanoTime();
+    for (int i = 0; i < hits; i++) {
+      scratch.increment(0);
+    }
+    return (System.nanoTime() - start) / (double) hits;
+  }
+
+  /**
+   * <code>getFlushLatencyNanos</code> returns how long writing the counts took the last time.
+   *
+   * @return the latency in nanoseconds as <code>long</code>, -1 if counts were never written
+   */
+  long getFlushLatencyNanos() {
+    return flushLatencyNanos;
+  }
+
+  /**
+   * <code>collectCounts</code> adds up the in-memory counts of all probe styles. Sampled counts are
+   * scaled to estimates.
+   *
+   * @return counts indexed by UID as <code>long[]</code>
+   */
+  private long[] collectCounts() {
+    long[] totals = new long[counters.size()];
+    for (int key = 0; key < totals.length; key++) {
+      totals[key] = sampler == null
+          ? counters.get(key)
+          : sampler.estimate(counters.get(key), covered.contains(key));
+    }
+    return probeRegistry.addTo(totals);
   }
 
   /**
@@ -406,11 +1639,97 @@ public final class CoverageLog extends Thread {
   }
 
   /**
-   * <code>resetCoverage</code> resets all counts in table to zero.
+   * <code>resetCoverage</code> resets all counts in table to zero. Snapshots taken before stay
+   * valid. In instrumented code with the <code>mmap</code> backend only the counts seen by this JVM
+   * are reset, the counter file shared with other JVMs keeps its counts.
    */
   public void resetCoverage() {
-    for (Integer key : inMemoryMap.keySet()) {
-      inMemoryMap.put(key, 0);
+    if (inMemory) {
+      synchronized (flushLock) {
+        counters.reset();
+        probeRegistry.reset();
+        covered.clear();
+        // retired probes report their goal again
+        ProbeCallSite.rearm();
+        if (profiler != null) {
+          profiler.reset();
+        }
+        if (threads != null) {
+          threads.reset();
+        }
+        flushed = new long[0];
+        // a pending batch is still sent, but no longer covers the counts
+        sent = null;
+        profiled = new long[0];
+        threadsFlushed = new HashMap<>();
+      }
+      synchronized (testLock) {
+        if (testBase != null) {
+          // the probe arrays restart from zero
+          testBase = new long[0][];
+        }
+        GoalBits tests = testHits;
+        if (tests != null) {
+          tests.clear();
+        }
+      }
+    } else {
+      countMap.clear();
+      testGoalMap.clear();
+      selfTimeMap.clear();
+      threadCountMap.clear();
+      settingsMap.remove(SAMPLING_RATE);
+      if (mappedCounts != null) {
+        mappedCounts.clear();
+      }
+    }
+  }
+
+  /**
+   * <code>Watermarks</code> stages what a write of counts covers. They are only applied once the
+   * DB committed the write, so a failed or rolled back write is repeated by the next one.
+   */
+  private final class Watermarks {
+
+    /**
+     * <code>counts</code> indexed by UID written, <code>null</code> if none were.
+     */
+    private long[] counts;
+    /**
+     * <code>selfTimes</code> indexed by UID written, <code>null</code> if none were.
+     */
+    private long[] selfTimes;
+    /**
+     * <code>threadCounts</code> per thread pool written, <code>null</code> if none were.
+     */
+    private Map<String, long[]> threadCounts;
+    /**
+     * <code>testGoals</code> written, <code>null</code> if none were.
+     */
+    private Map<String, byte[]> testGoals;
+
+    /**
+     * <code>apply</code> records the staged watermarks as written. The caller holds the flush
+     * lock.
+     */
+    private void apply() {
+      if (counts != null) {
+        flushed = counts;
+      }
+      if (selfTimes != null) {
+        profiled = selfTimes;
+      }
+      if (threadCounts != null) {
+        threadsFlushed = threadCounts;
+      }
+      if (testGoals != null) {
+        synchronized (testLock) {
+          // a test run again in the meantime keeps its new goals
+          for (Map.Entry<String, byte[]> entry : testGoals.entrySet()) {
+            CoverageLog.this.testGoals.remove(entry.getKey(), entry.getValue());
+          }
+        }
+      }
     }
   }
 }
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * <code>CoverageManifest</code> is a small properties file next to the coverage database which
+ * holds what the runtime needs to start counting: the number of goals and the counting mode. It is
+ * deleted when instrumentation registers new goals and written again once they are committed, so
+ * instrumented code does not have to open the database before it flushes its counts. The
+ * generation stamp lets the runtime tell a manifest that does not belong to the database when it
+ * opens it.
+ */
+final class CoverageManifest {
+
+  /**
+   * <code>SUFFIX</code> appended to the database file name.
+   */
+  static final String SUFFIX = ".manifest";
+  /**
+   * <code>GOALS_SUFFIX</code> appended to the database file name for the goal descriptions.
+   */
+  static final String GOALS_SUFFIX = ".goals";
+  /**
+   * <code>GOALS</code> property holding the number of registered goals.
+   */
+  private static final String GOALS = "goals";
+  /**
+   * <code>COUNTING_MODE</code> property holding the {@link CountingMode}.
+   */
+  private static final String COUNTING_MODE = "countingMode";
+  /**
+   * <code>SATURATION_LIMIT</code> property holding the limit of saturating counts.
+   */
+  private static final String SATURATION_LIMIT = "saturationLimit";
+  /**
+   * <code>GENERATION</code> property holding the generation of the registered goals.
+   */
+  private static final String GENERATION = "generation";
+  /**
+   * <code>goals</code> is the number of registered goals.
+   */
+  private final int goals;
+  /**
+   * <code>countingMode</code> of the instrumented classes.
+   */
+  private final CountingMode countingMode;
+  /**
+   * <code>saturationLimit</code> of saturating counts.
+   */
+  private final long saturationLimit;
+  /**
+   * <code>generation</code> of the registered goals, incremented whenever they change.
+   */
+  private final long generation;
+
+  /**
+   * Creates a new <code>CoverageManifest</code> instance.
+   *
+   * @param goals           the number of registered goals as <code>int</code>
+   * @param countingMode    the <code>CountingMode</code> of the instrumented classes
+   * @param saturationLimit the limit of saturating counts as <code>long</code>
+   * @param generation      the generation of the registered goals as <code>long</code>
+   */
+  CoverageManifest(
+      final int goals,
+      final CountingMode countingMode,
+      final long saturationLimit,
+      final long generation) {
+    this.goals = goals;
+    this.countingMode = countingMode;
+    this.saturationLimit = saturationLimit;
+    this.generation = generation;
+  }
+
+  /**
+   * <code>fileFor</code> returns the path of the manifest of a database.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @return a <code>Path</code> value
+   */
+  static Path fileFor(final String dbFileName) {
+    return Paths.get(dbFileName + SUFFIX);
+  }
+
+  /**
+   * <code>goalsFileFor</code> returns the path of the goal descriptions of a database.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @return a <code>Path</code> value
+   */
+  static Path goalsFileFor(final String dbFileName) {
+    return Paths.get(dbFileName + GOALS_SUFFIX);
+  }
+
+  /**
+   * <code>writeGoals</code> stores the descriptions of the goals of a database, which the runtime
+   * only reads when reporting events about goals.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @param locations  descriptions of the goals indexed by UID as <code>Map</code>
+   */
+  static void writeGoals(final String dbFileName, final Map<Integer, String> locations) {
+    Properties properties = new Properties();
+    for (Map.Entry<Integer, String> entry : locations.entrySet()) {
+      properties.setProperty(entry.getKey().toString(), entry.getValue());
+    }
+    store(properties, goalsFileFor(dbFileName), "BlueCov goals");
+  }
+
+  /**
+   * <code>read</code> loads the manifest of a database.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @return the <code>CoverageManifest</code>, or <code>null</code> if there is none or it is
+   *     unreadable
+   */
+  static CoverageManifest read(final String dbFileName) {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(fileFor(dbFileName))) {
+      properties.load(in);
+      return new CoverageManifest(
+          Integer.parseInt(properties.getProperty(GOALS)),
+          CountingMode.valueOf(properties.getProperty(COUNTING_MODE)),
+          Long.parseLong(properties.getProperty(SATURATION_LIMIT)),
+          Long.parseLong(properties.getProperty(GENERATION, "0")));
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      System.out.println("WARNING: ignoring unreadable manifest "
+          + fileFor(dbFileName) + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * <code>write</code> stores the manifest of a database.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   */
+  void write(final String dbFileName) {
+    Properties properties = new Properties();
+    properties.setProperty(GOALS, Integer.toString(goals));
+    properties.setProperty(COUNTING_MODE, countingMode.name());
+    properties.setProperty(SATURATION_LIMIT, Long.toString(saturationLimit));
+    properties.setProperty(GENERATION, Long.toString(generation));
+    store(properties, fileFor(dbFileName), "BlueCov runtime manifest");
+  }
+
+  /**
+   * <code>delete</code> removes the manifest and the goal descriptions of a database, so the
+   * runtime reads the database until they are written again.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   */
+  static void delete(final String dbFileName) {
+    try {
+      Files.deleteIfExists(fileFor(dbFileName));
+      Files.deleteIfExists(goalsFileFor(dbFileName));
+    } catch (IOException e) {
+      System.out.println("WARNING: could not delete " + fileFor(dbFileName) + ": " + e);
+    }
+  }
+
+  /**
+   * <code>exists</code> signals whether a database has a manifest.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @return a <code>boolean</code> value
+   */
+  static boolean exists(final String dbFileName) {
+    return Files.exists(fileFor(dbFileName));
+  }
+
+  /**
+   * <code>store</code> replaces a properties file atomically, so concurrently starting JVMs never
+   * read a partial file.
+   *
+   * @param properties the <code>Properties</code> to store
+   * @param path       the <code>Path</code> of the file
+   * @param comment    the comment at the top of the file as <code>String</code>
+   */
+  private static void store(final Properties properties, final Path path, final String comment) {
+    Path file = path.toAbsolutePath();
+    try {
+      Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        properties.store(out, comment);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("WARNING: could not write " + file + ": " + e);
+    }
+  }
+
+  /**
+   * <code>getGoals</code> returns the number of registered goals.
+   *
+   * @return an <code>int</code> value
+   */
+  int getGoals() {
+    return goals;
+  }
+
+  /**
+   * <code>getCountingMode</code> returns the counting mode of the instrumented classes.
+   *
+   * @return a <code>CountingMode</code> value
+   */
+  CountingMode getCountingMode() {
+    return countingMode;
+  }
+
+  /**
+   * <code>getSaturationLimit</code> returns the limit of saturating counts.
+   *
+   * @return the limit as <code>long</code>
+   */
+  long getSaturationLimit() {
+    return saturationLimit;
+  }
+
+  /**
+   * <code>getGeneration</code> returns the generation of the registered goals.
+   *
+   * @return the generation as <code>long</code>, 0 for manifests written without one
+   */
+  long getGeneration() {
+    return generation;
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <code>CoverageMonitor</code> exposes the coverage of a running JVM via JMX. Every operation
+ * works on a snapshot of the in-memory counts, which is read without locking, so instrumented code
+ * recording hits is never blocked.
+ */
+final class CoverageMonitor implements CoverageMonitorMXBean {
+
+  /**
+   * <code>NAME</code> of the MBean.
+   */
+  static final String NAME = "org.cprover.coverage:type=CoverageLog";
+  /**
+   * <code>log</code> whose counts are exposed.
+   */
+  private final CoverageLog log;
+  /**
+   * <code>lastHits</code> is the total of hits at the previous rate sample.
+   */
+  private long lastHits;
+  /**
+   * <code>lastNanos</code> is the time of the previous rate sample.
+   */
+  private long lastNanos = System.nanoTime();
+
+  /**
+   * Creates a new <code>CoverageMonitor</code> instance.
+   *
+   * @param log the <code>CoverageLog</code> whose counts are exposed
+   */
+  CoverageMonitor(final CoverageLog log) {
+    this.log = log;
+  }
+
+  /**
+   * <code>register</code> registers a monitor of <code>log</code> with the platform MBean server
+   * if enabled in the environment. Further instances, e.g. in other classloaders, are registered
+   * under a name qualified by their identity.
+   *
+   * @param log the <code>CoverageLog</code> whose counts are exposed
+   * @return the <code>ObjectName</code> of the MBean, <code>null</code> if not registered
+   */
+  static ObjectName register(final CoverageLog log) {
+    if (!Boolean.parseBoolean(System.getenv(CoverageLog.JMX_ENV_VAR))) {
+      return null;
+    }
+    try {
+      ObjectName name = new ObjectName(NAME);
+      if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        name = new ObjectName(NAME + ",id=" + System.identityHashCode(log));
+      }
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new CoverageMonitor(log), name);
+      return name;
+    } catch (JMException e) {
+      System.out.println("WARNING: could not register coverage MBean: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * <code>unregister</code> removes an MBean registered by {@link #register(CoverageLog)}.
+   *
+   * @param name the <code>ObjectName</code> of the MBean, may be <code>null</code>
+   */
+  static void unregister(final ObjectName name) {
+    if (name == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      // already gone
+    }
+  }
+
+  @Override
+  public int dump(final String file) throws IOException {
+    long[] counts = log.snapshot();
+    // written by hand, the runtime jar does not contain a JSON library
+    StringBuilder json = new StringBuilder("[");
+    int goals = 0;
+    for (int key = 0; key < counts.length; key++) {
+      if (counts[key] > 0) {
+        json.append(goals == 0 ? "" : ",")
+            .append("{\"uid\":").append(key)
+            .append(",\"hitCount\":").append(counts[key]).append('}');
+        goals++;
+      }
+    }
+    json.append(']');
+    try (OutputStream out = Files.newOutputStream(Paths.get(file))) {
+      out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return goals;
+  }
+
+  @Override
+  public void reset() {
+    log.resetCoverage();
+    synchronized (this) {
+      lastHits = 0;
+    }
+  }
+
+  @Override
+  public int getGoalsCovered() {
+    int covered = 0;
+    for (long count : log.snapshot()) {
+      if (count > 0) {
+        covered++;
+      }
+    }
+    return covered;
+  }
+
+  @Override
+  public long getTotalHits() {
+    long total = 0;
+    for (long count : log.snapshot()) {
+      total += count;
+    }
+    return total;
+  }
+
+  @Override
+  public synchronized double getHitsPerSecond() {
+    long hits = getTotalHits();
+    long now = System.nanoTime();
+    // counts reset by other means than this MBean restart from zero
+    long previous = hits < lastHits ? 0 : lastHits;
+    double rate = (hits - previous) * 1e9 / Math.max(1, now - lastNanos);
+    lastHits = hits;
+    lastNanos = now;
+    return rate;
+  }
+
+  @Override
+  public double getFlushLatencyMillis() {
+    long nanos = log.getFlushLatencyNanos();
+    return nanos < 0 ? -1 : nanos / 1e6;
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+/**
+ * <code>CoverageMonitorMXBean</code> is the management interface of the coverage of a running JVM,
+ * registered by <code>CoverageLog</code> if {@link CoverageLog#JMX_ENV_VAR} is set.
+ */
+public interface CoverageMonitorMXBean {
+
+  /**
+   * <code>dump</code> writes the current counts to a file as JSON.
+   *
+   * @param file name of the file as <code>String</code>
+   * @return the number of goals written as <code>int</code>
+   * @throws java.io.IOException if the file cannot be written
+   */
+  int dump(String file) throws java.io.IOException;
+
+  /**
+   * <code>reset</code> sets all counts recorded by this JVM to zero.
+   */
+  void reset();
+
+  /**
+   * <code>getGoalsCovered</code> returns the number of goals hit at least once.
+   *
+   * @return an <code>int</code> value
+   */
+  int getGoalsCovered();
+
+  /**
+   * <code>getTotalHits</code> returns the number of hits of all goals.
+   *
+   * @return a <code>long</code> value
+   */
+  long getTotalHits();
+
+  /**
+   * <code>getHitsPerSecond</code> returns the rate of hits since the previous call, or since the
+   * start for the first call.
+   *
+   * @return a <code>double</code> value
+   */
+  double getHitsPerSecond();
+
+  /**
+   * <code>getFlushLatencyMillis</code> returns how long writing the counts took the last time.
+   *
+   * @return the latency in milliseconds as <code>double</code>, -1 if counts were never written
+   */
+  double getFlushLatencyMillis();
+}
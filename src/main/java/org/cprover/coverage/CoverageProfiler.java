@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <code>CoverageProfiler</code> turns the probes into a sampling-free profiler. Every thread
+ * attributes the time from one probe to the next one it executes to the goal of the first probe,
+ * which is the time spent in the code following that goal. Times are kept per thread without
+ * synchronization and only added up when they are read. Time a thread spends blocked or in code
+ * without probes is attributed to the last goal it hit.
+ */
+final class CoverageProfiler {
+
+  /**
+   * <code>profiles</code> of all threads that are still running.
+   */
+  private final ConcurrentLinkedQueue<ThreadProfile> profiles = new ConcurrentLinkedQueue<>();
+  /**
+   * <code>profile</code> of the current thread.
+   */
+  private final ThreadLocal<ThreadProfile> profile = ThreadLocal.withInitial(this::newProfile);
+  /**
+   * <code>retired</code> holds the times of terminated threads indexed by UID.
+   */
+  private long[] retired = new long[0];
+
+  /**
+   * <code>fromEnvironment</code> returns the profiler configured in the environment.
+   *
+   * @return a <code>CoverageProfiler</code>, or <code>null</code> if profiling is disabled
+   */
+  static CoverageProfiler fromEnvironment() {
+    return Boolean.parseBoolean(System.getenv(CoverageLog.PROFILE_ENV_VAR))
+        ? new CoverageProfiler()
+        : null;
+  }
+
+  /**
+   * <code>hit</code> ends the time attributed to the previous goal of the current thread.
+   *
+   * @param key UID of the goal as <code>int</code>
+   */
+  void hit(final int key) {
+    profile.get().hit(key, System.nanoTime());
+  }
+
+  /**
+   * <code>hit</code> ends the time attributed to the previous goal of the current thread.
+   *
+   * @param key UID of the goal as <code>int</code>
+   * @param now the current time in nanoseconds as <code>long</code>
+   */
+  void hit(final int key, final long now) {
+    profile.get().hit(key, now);
+  }
+
+  /**
+   * <code>collect</code> adds up the times of all threads. Threads that terminated are merged into
+   * the retired times.
+   *
+   * @return the time in nanoseconds indexed by UID as <code>long[]</code>
+   */
+  synchronized long[] collect() {
+    Iterator<ThreadProfile> it = profiles.iterator();
+    while (it.hasNext()) {
+      ThreadProfile p = it.next();
+      if (p.owner.get() == null) {
+        retired = p.addTo(retired);
+        it.remove();
+      }
+    }
+    long[] totals = retired.clone();
+    for (ThreadProfile p : profiles) {
+      totals = p.addTo(totals);
+    }
+    return totals;
+  }
+
+  /**
+   * <code>reset</code> forgets all times. Times recorded concurrently may survive.
+   */
+  synchronized void reset() {
+    retired = new long[0];
+    for (ThreadProfile p : profiles) {
+      p.reset();
+    }
+  }
+
+  /**
+   * <code>newProfile</code> creates and registers the profile of the current thread.
+   *
+   * @return a <code>ThreadProfile</code> instance
+   */
+  private ThreadProfile newProfile() {
+    ThreadProfile p = new ThreadProfile(Thread.currentThread());
+    profiles.add(p);
+    return p;
+  }
+
+  /**
+   * <code>ThreadProfile</code> holds the times of a single thread. Only the owner writes them.
+   */
+  private static final class ThreadProfile {
+
+    /**
+     * <code>owner</code> of the profile, cleared when it terminates.
+     */
+    private final WeakReference<Thread> owner;
+    /**
+     * <code>nanos</code> attributed to each goal, indexed by UID.
+     */
+    private volatile long[] nanos = new long[0];
+    /**
+     * <code>last</code> goal hit by the owner, -1 before the first hit.
+     */
+    private int last = -1;
+    /**
+     * <code>lastNanos</code> is the time of the last hit.
+     */
+    private long lastNanos;
+
+    /**
+     * Creates a new <code>ThreadProfile</code> instance.
+     *
+     * @param owner the <code>Thread</code> recording hits
+     */
+    ThreadProfile(final Thread owner) {
+      this.owner = new WeakReference<>(owner);
+    }
+
+    /**
+     * <code>hit</code> attributes the time since the previous hit to its goal.
+     *
+     * @param key UID of the goal hit as <code>int</code>
+     * @param now the current time in nanoseconds as <code>long</code>
+     */
+    void hit(final int key, final long now) {
+      int previous = last;
+      if (previous >= 0) {
+        long[] times = nanos;
+        if (previous >= times.length) {
+          times = Arrays.copyOf(times, Math.max(previous + 1, times.length * 2));
+          nanos = times;
+        }
+        times[previous] += now - lastNanos;
+      }
+      last = key;
+      lastNanos = now;
+    }
+
+    /**
+     * <code>addTo</code> adds the times of the thread to <code>totals</code>.
+     *
+     * @param totals times indexed by UID as <code>long[]</code>
+     * @return <code>totals</code>, or a copy of it enlarged to hold all UIDs of the thread
+     */
+    long[] addTo(final long[] totals) {
+      long[] times = nanos;
+      long[] result = times.length > totals.length ? Arrays.copyOf(totals, times.length) : totals;
+      for (int key = 0; key < times.length; key++) {
+        result[key] += times[key];
+      }
+      return result;
+    }
+
+    /**
+     * <code>reset</code> sets the times of the thread to zero.
+     */
+    void reset() {
+      nanos = new long[nanos.length];
+    }
+  }
+}
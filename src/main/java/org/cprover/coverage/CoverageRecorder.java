@@ -0,0 +1,75 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+/**
+ * <code>CoverageRecorder</code> keeps the hit counts of instrumented code for a backend plugged in
+ * by a {@link CoverageRecorderProvider}, indexed by UID. Only one recorder is created per JVM, so
+ * the probes calling it stay monomorphic and can be inlined.
+ */
+public interface CoverageRecorder {
+
+  /**
+   * <code>increment</code> counts a hit of <code>key</code>. It is called concurrently by all
+   * threads running instrumented code.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   */
+  void increment(int key);
+
+  /**
+   * <code>add</code> counts <code>delta</code> hits of <code>key</code> at once. It is called at
+   * shutdown with the hits of {@link ProbeStyle#ARRAY} probes, which bypass {@link
+   * #increment(int)}. The default increments <code>delta</code> times.
+   *
+   * @param key   UID of the basic block as <code>int</code>
+   * @param delta number of hits as <code>long</code>
+   */
+  default void add(final int key, final long delta) {
+    for (long i = 0; i < delta; i++) {
+      increment(key);
+    }
+  }
+
+  /**
+   * <code>get</code> returns the count of <code>key</code>.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   * @return the count as <code>long</code>
+   */
+  long get(int key);
+
+  /**
+   * <code>size</code> returns the number of UIDs that can currently be stored, any UID beyond it
+   * has a count of zero.
+   *
+   * @return an <code>int</code> value
+   */
+  int size();
+
+  /**
+   * <code>reset</code> sets all counts to zero.
+   */
+  void reset();
+
+  /**
+   * <code>isPersistent</code> signals whether counts are stored outside the JVM as they are
+   * recorded, so they need not be written to the DB.
+   *
+   * @return a <code>boolean</code> value
+   */
+  default boolean isPersistent() {
+    return false;
+  }
+}
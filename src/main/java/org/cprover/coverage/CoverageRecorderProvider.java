@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+
+/**
+ * <code>CoverageRecorderProvider</code> is the service interface of backends selected by {@link
+ * CoverageLog#BACKEND_ENV_VAR} besides the built-in ones. Implementations are found with {@link
+ * java.util.ServiceLoader}, so a deployment picks its backend without instrumenting again.
+ */
+public interface CoverageRecorderProvider {
+
+  /**
+   * <code>getName</code> returns the name selecting the backend, compared ignoring case.
+   *
+   * @return a <code>String</code> value
+   */
+  String getName();
+
+  /**
+   * <code>create</code> returns the recorder for a run of instrumented code.
+   *
+   * @param dbFileName the name of the DB as <code>String</code>
+   * @param goals      the number of registered UIDs as <code>int</code>
+   * @param limit      the count at which counters saturate as <code>long</code>
+   * @return a <code>CoverageRecorder</code> instance
+   * @throws IOException if the backend is not available
+   */
+  CoverageRecorder create(String dbFileName, int goals, long limit) throws IOException;
+}
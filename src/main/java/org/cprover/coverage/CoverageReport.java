@@ -13,7 +13,12 @@
  */
 package org.cprover.coverage;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObjectBuilder;
@@ -24,6 +29,37 @@ import javax.json.JsonObjectBuilder;
  */
 public final class CoverageReport {
 
+  /**
+   * <code>GOALS_BY_TEST</code> is the option of {@link #main(String[])} reporting the goals
+   * covered by each test.
+   */
+  static final String GOALS_BY_TEST = "--goals-by-test";
+  /**
+   * <code>TESTS_BY_GOAL</code> is the option of {@link #main(String[])} reporting the tests
+   * covering each goal.
+   */
+  static final String TESTS_BY_GOAL = "--tests-by-goal";
+  /**
+   * <code>NOT_HIT_DAYS</code> is the option of {@link #main(String[])} reporting the goals not hit
+   * in the given number of days.
+   */
+  static final String NOT_HIT_DAYS = "--not-hit-days";
+  /**
+   * <code>SELF_TIME</code> is the option of {@link #main(String[])} reporting the self time of
+   * each goal.
+   */
+  static final String SELF_TIME = "--self-time";
+  /**
+   * <code>COLLAPSED</code> is the option of {@link #main(String[])} exporting the self times as
+   * collapsed stacks for flame graphs.
+   */
+  static final String COLLAPSED = "--collapsed";
+  /**
+   * <code>THREADS_BY_GOAL</code> is the option of {@link #main(String[])} reporting the hits of
+   * each goal per thread pool.
+   */
+  static final String THREADS_BY_GOAL = "--threads-by-goal";
+
   /**
    * Provides the currently configured {@link CoverageLog}'s contents as {@link String JSON}.
    *
@@ -36,18 +72,32 @@ public final class CoverageReport {
 
   public static String getReport(CoverageLog logger) {
     logger.setReport(false);
-    HashMap<String, Integer> descCountMap = logger.getHitCounts();
+    HashMap<String, Long> descCountMap = logger.getLongHitCounts();
     HashMap<String, int[]> descLineMap = logger.getLinesForBlock();
+    double samplingRate = logger.getSamplingRate();
+    CountingMode countingMode = logger.getCountingMode();
+    long saturationLimit = logger.getSaturationLimit();
 
     JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
 
     for (String description : descCountMap.keySet()) {
       JsonObjectBuilder entryBuilder = Json.createObjectBuilder();
 
-      Integer hits = descCountMap.get(description);
+      Long hits = descCountMap.get(description);
       entryBuilder = entryBuilder
           .add("goalID", description)
           .add("hitCount", hits);
+      if (samplingRate < 1) {
+        // hitCount is an estimate scaled from the sampled hits
+        entryBuilder.add("samplingRate", samplingRate);
+      }
+      if (countingMode.isCapped()) {
+        // hitCount stops at the limit of the counting mode
+        entryBuilder.add("countingMode", countingMode.name().toLowerCase(Locale.ROOT));
+        if (countingMode == CountingMode.SATURATING) {
+          entryBuilder.add("saturationLimit", saturationLimit);
+        }
+      }
 
       JsonArrayBuilder lineNumbers = Json.createArrayBuilder();
       for (int line : descLineMap.get(description)) {
@@ -63,18 +113,192 @@ public final class CoverageReport {
   }
 
   /**
-   * <code>main</code> is entry point of coverage reporter.
+   * <code>getGoalsByTest</code> reports the goals covered by each test recorded by {@link
+   * CoverageLog#beginTest(String)}.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @return a JSON array of objects with a <code>test</code> and its <code>goalIDs</code>
+   */
+  public static String getGoalsByTest(final CoverageLog logger) {
+    logger.setReport(false);
+    JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+    for (Map.Entry<String, int[]> entry : new TreeMap<>(logger.getGoalsByTest()).entrySet()) {
+      JsonArrayBuilder goals = Json.createArrayBuilder();
+      for (int uid : entry.getValue()) {
+        goals.add(logger.getGoalName(uid));
+      }
+      arrayBuilder.add(Json.createObjectBuilder()
+          .add("test", entry.getKey())
+          .add("goalIDs", goals));
+    }
+    return arrayBuilder.build().toString();
+  }
+
+  /**
+   * <code>getTestsByGoal</code> reports the tests recorded by {@link CoverageLog#beginTest(String)}
+   * that covered each goal. Goals not covered by any test are left out.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @return a JSON array of objects with a <code>goalID</code> and its <code>tests</code>
+   */
+  public static String getTestsByGoal(final CoverageLog logger) {
+    logger.setReport(false);
+    TreeMap<Integer, List<String>> testsByGoal = new TreeMap<>();
+    for (Map.Entry<String, int[]> entry : new TreeMap<>(logger.getGoalsByTest()).entrySet()) {
+      for (int uid : entry.getValue()) {
+        testsByGoal.computeIfAbsent(uid, key -> new ArrayList<>()).add(entry.getKey());
+      }
+    }
+    JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+    for (Map.Entry<Integer, List<String>> entry : testsByGoal.entrySet()) {
+      JsonArrayBuilder tests = Json.createArrayBuilder();
+      for (String test : entry.getValue()) {
+        tests.add(test);
+      }
+      arrayBuilder.add(Json.createObjectBuilder()
+          .add("goalID", logger.getGoalName(entry.getKey()))
+          .add("tests", tests));
+    }
+    return arrayBuilder.build().toString();
+  }
+
+  /**
+   * <code>getGoalsNotHit</code> reports the goals not hit in the last days of a run with time
+   * windows, see {@link CoverageLog#getGoalsNotHitSince(long)}.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @param days   number of days as <code>long</code>
+   * @return a JSON array of <code>goalIDs</code>
+   */
+  public static String getGoalsNotHit(final CoverageLog logger, final long days) {
+    logger.setReport(false);
+    long since = System.currentTimeMillis() - days * CoverageWindows.DAY;
+    JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+    for (int uid : logger.getGoalsNotHitSince(since)) {
+      arrayBuilder.add(logger.getGoalName(uid));
+    }
+    return arrayBuilder.build().toString();
+  }
+
+  /**
+   * <code>getSelfTimes</code> reports the time spent after each goal measured with {@link
+   * CoverageLog#PROFILE_ENV_VAR}, most expensive goals first.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @return a JSON array of objects with a <code>goalID</code>, its <code>location</code> and
+   *     its <code>selfNanos</code>
+   */
+  public static String getSelfTimes(final CoverageLog logger) {
+    logger.setReport(false);
+    JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+    for (Map.Entry<Integer, Long> entry : sortedSelfTimes(logger)) {
+      arrayBuilder.add(Json.createObjectBuilder()
+          .add("goalID", logger.getGoalName(entry.getKey()))
+          .add("location", logger.getGoalLocation(entry.getKey()))
+          .add("selfNanos", entry.getValue()));
+    }
+    return arrayBuilder.build().toString();
+  }
+
+  /**
+   * <code>getCollapsedStacks</code> exports the self times in the collapsed stack format read by
+   * flame graph tools, with frames for the class, the method and the bytecode index of each goal.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @return one line per goal as <code>String</code>
+   */
+  public static String getCollapsedStacks(final CoverageLog logger) {
+    logger.setReport(false);
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<Integer, Long> entry : sortedSelfTimes(logger)) {
+      String location = logger.getGoalLocation(entry.getKey());
+      // locations are "class.method@bytecodeIndex", ';' separates frames
+      int dot = location.indexOf('.');
+      int at = location.lastIndexOf('@');
+      if (dot > 0 && at > dot) {
+        builder.append(location, 0, dot).append(';')
+            .append(location.substring(dot + 1, at).replace(';', ','))
+            .append(';').append(location, at, location.length());
+      } else {
+        builder.append(location.replace(';', ','));
+      }
+      builder.append(' ').append(entry.getValue()).append(System.lineSeparator());
+    }
+    return builder.toString().replace('/', '.');
+  }
+
+  /**
+   * <code>getThreadsByGoal</code> reports the hits of each goal per thread pool counted with
+   * {@link CoverageLog#THREADS_ENV_VAR}.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @return a JSON array of objects with a <code>goalID</code> and its <code>threads</code>, each
+   *     with a <code>pool</code> and its <code>hitCount</code>
+   */
+  public static String getThreadsByGoal(final CoverageLog logger) {
+    logger.setReport(false);
+    JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+    for (Map.Entry<Integer, HashMap<String, Long>> entry
+        : new TreeMap<>(logger.getThreadsByGoal()).entrySet()) {
+      JsonArrayBuilder threads = Json.createArrayBuilder();
+      for (Map.Entry<String, Long> pool : new TreeMap<>(entry.getValue()).entrySet()) {
+        threads.add(Json.createObjectBuilder()
+            .add("pool", pool.getKey())
+            .add("hitCount", pool.getValue()));
+      }
+      arrayBuilder.add(Json.createObjectBuilder()
+          .add("goalID", logger.getGoalName(entry.getKey()))
+          .add("threads", threads));
+    }
+    return arrayBuilder.build().toString();
+  }
+
+  /**
+   * <code>sortedSelfTimes</code> returns the goals with a self time, most expensive first.
+   *
+   * @param logger the <code>CoverageLog</code> to report
+   * @return list of UIDs and nanoseconds
+   */
+  private static List<Map.Entry<Integer, Long>> sortedSelfTimes(final CoverageLog logger) {
+    List<Map.Entry<Integer, Long>> entries = new ArrayList<>(logger.getSelfTimes().entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    return entries;
+  }
+
+  /**
+   * <code>main</code> is entry point of coverage reporter. With <code>--goals-by-test</code> or
+   * <code>--tests-by-goal</code> it reports the coverage of single tests instead, with
+   * <code>--not-hit-days N</code> the goals not hit in the last <code>N</code> days, and with
+   * <code>--self-time</code> or <code>--collapsed</code> the profile of the goals, and with
+   * <code>--threads-by-goal</code> the hits per thread pool.
    *
    * @param args a <code>String</code> value
    */
   public static void main(final String[] args) {
-    new CoverageReport().doReport();
+    new CoverageReport().doReport(args);
   }
 
   /**
    * <code>doReport</code> emits a report of coverage in database.
+   *
+   * @param args the options of {@link #main(String[])}
    */
-  void doReport() {
-    System.out.println(getReport());
+  void doReport(final String[] args) {
+    String query = args.length > 0 ? args[0] : "";
+    if (GOALS_BY_TEST.equals(query)) {
+      System.out.println(getGoalsByTest(CoverageLog.getInstance(false)));
+    } else if (TESTS_BY_GOAL.equals(query)) {
+      System.out.println(getTestsByGoal(CoverageLog.getInstance(false)));
+    } else if (SELF_TIME.equals(query)) {
+      System.out.println(getSelfTimes(CoverageLog.getInstance(false)));
+    } else if (COLLAPSED.equals(query)) {
+      System.out.print(getCollapsedStacks(CoverageLog.getInstance(false)));
+    } else if (THREADS_BY_GOAL.equals(query)) {
+      System.out.println(getThreadsByGoal(CoverageLog.getInstance(false)));
+    } else if (NOT_HIT_DAYS.equals(query) && args.length > 1) {
+      System.out.println(getGoalsNotHit(CoverageLog.getInstance(false), Long.parseLong(args[1])));
+    } else {
+      System.out.println(getReport());
+    }
   }
 }
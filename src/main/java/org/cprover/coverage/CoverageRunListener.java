@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * <code>CoverageRunListener</code> attributes the goals covered by instrumented code to the JUnit 4
+ * tests running it, see {@link CoverageLog#beginTest(String)}. Tests are identified by their
+ * display name.
+ */
+public class CoverageRunListener extends RunListener {
+
+  /**
+   * <code>testStarted</code> begins attributing hits to a test.
+   *
+   * @param description the <code>Description</code> of the test
+   */
+  @Override
+  public void testStarted(final Description description) {
+    CoverageLog.getInstance().beginTest(description.getDisplayName());
+  }
+
+  /**
+   * <code>testFinished</code> stores the goals covered by a test.
+   *
+   * @param description the <code>Description</code> of the test
+   */
+  @Override
+  public void testFinished(final Description description) {
+    CoverageLog.getInstance().endTest();
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <code>CoverageSampler</code> decides which hits recorded by <code>CoverageLog</code> are counted
+ * when sampling. Every thread counts down a random number of hits between two samples, drawn so
+ * that each hit is counted with probability <code>rate</code>. <code>CoverageLog</code> remembers
+ * the goals hit independently of sampling, so a goal hit at least once is always reported as
+ * covered.
+ */
+final class CoverageSampler {
+
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that holds the fraction of hits
+   * to count, a number in <code>(0, 1]</code>.
+   */
+  public static final String ENV_VAR = "BLUECOV_SAMPLING_RATE";
+  /**
+   * <code>rate</code> is the probability of a hit being counted.
+   */
+  private final double rate;
+  /**
+   * <code>logMiss</code> is the logarithm of the probability of a hit not being counted.
+   */
+  private final double logMiss;
+  /**
+   * <code>countdown</code> of every thread to its next sample.
+   */
+  private final ThreadLocal<Countdown> countdown = ThreadLocal.withInitial(Countdown::new);
+
+  /**
+   * Creates a new <code>CoverageSampler</code> instance.
+   *
+   * @param rate probability of a hit being counted as <code>double</code>
+   */
+  CoverageSampler(final double rate) {
+    this.rate = rate;
+    this.logMiss = Math.log1p(-rate);
+  }
+
+  /**
+   * <code>fromEnvironment</code> returns the sampler configured in the environment.
+   *
+   * @return a <code>CoverageSampler</code>, or <code>null</code> if all hits should be counted
+   */
+  static CoverageSampler fromEnvironment() {
+    String value = System.getenv(ENV_VAR);
+    if (value == null || value.isEmpty()) {
+      return null;
+    }
+    double rate;
+    try {
+      rate = Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      rate = Double.NaN;
+    }
+    if (!(rate > 0 && rate <= 1)) {
+      System.out.println("WARNING: " + ENV_VAR + " must be in (0, 1] but is " + value
+          + ", counting all hits");
+      return null;
+    }
+    return rate < 1 ? new CoverageSampler(rate) : null;
+  }
+
+  /**
+   * <code>getRate</code> returns the probability of a hit being counted.
+   *
+   * @return a <code>double</code> value
+   */
+  double getRate() {
+    return rate;
+  }
+
+  /**
+   * <code>sample</code> decides whether a hit is counted.
+   *
+   * @return <code>true</code> if the hit should be counted
+   */
+  boolean sample() {
+    Countdown c = countdown.get();
+    if (c.remaining > 0) {
+      c.remaining--;
+      return false;
+    }
+    c.remaining = nextSkip();
+    return true;
+  }
+
+  /**
+   * <code>estimate</code> scales the sampled count of a goal back to an estimated hit count.
+   *
+   * @param sampled number of hits counted as <code>long</code>
+   * @param covered whether the goal was hit at least once as <code>boolean</code>
+   * @return the estimated number of hits as <code>long</code>, at least 1 if the goal was covered
+   */
+  long estimate(final long sampled, final boolean covered) {
+    long estimate = Math.round(sampled / rate);
+    if (estimate == 0 && covered) {
+      return 1;
+    }
+    return estimate;
+  }
+
+  /**
+   * <code>nextSkip</code> draws the number of hits to skip before the next sample from a geometric
+   * distribution, so that every hit is counted with probability <code>rate</code>.
+   *
+   * @return the number of hits to skip as <code>int</code>
+   */
+  private int nextSkip() {
+    double u = 1.0 - ThreadLocalRandom.current().nextDouble();
+    double skip = Math.floor(Math.log(u) / logMiss);
+    return skip < Integer.MAX_VALUE ? (int) skip : Integer.MAX_VALUE;
+  }
+
+  /**
+   * <code>Countdown</code> holds the number of hits a thread skips until its next sample.
+   */
+  private final class Countdown {
+
+    /**
+     * <code>remaining</code> hits to skip.
+     */
+    private int remaining = nextSkip();
+  }
+}
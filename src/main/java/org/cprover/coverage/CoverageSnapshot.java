@@ -0,0 +1,152 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Arrays;
+
+/**
+ * <code>CoverageSnapshot</code> is the set of goals covered at the time it was taken by {@link
+ * CoverageLog#takeSnapshot()}, stored as a bitset indexed by UID. Comparing two snapshots only
+ * touches one bit per goal, so it is cheap even for hundreds of thousands of goals.
+ */
+public final class CoverageSnapshot {
+
+  /**
+   * <code>EMPTY</code> is the snapshot without any covered goal.
+   */
+  public static final CoverageSnapshot EMPTY = new CoverageSnapshot(new long[0]);
+  /**
+   * <code>words</code> of the bitset, bit <code>uid % 64</code> of word <code>uid / 64</code> is set
+   * if the goal is covered.
+   */
+  private final long[] words;
+
+  /**
+   * Creates a new <code>CoverageSnapshot</code> instance.
+   *
+   * @param words the bitset of covered UIDs as <code>long[]</code>, not copied
+   */
+  CoverageSnapshot(final long[] words) {
+    this.words = words;
+  }
+
+  /**
+   * <code>wordsFor</code> allocates a bitset that holds <code>size</code> UIDs.
+   *
+   * @param size number of UIDs as <code>int</code>
+   * @return the bitset as <code>long[]</code>
+   */
+  static long[] wordsFor(final int size) {
+    return new long[(size + Long.SIZE - 1) >>> 6];
+  }
+
+  /**
+   * <code>set</code> marks a UID as covered in a bitset, enlarging it if necessary.
+   *
+   * @param words the bitset as <code>long[]</code>
+   * @param uid   UID of the goal as <code>int</code>
+   * @return <code>words</code>, or a copy of it enlarged to hold <code>uid</code>
+   */
+  static long[] set(final long[] words, final int uid) {
+    long[] result = words;
+    int word = uid >>> 6;
+    if (word >= result.length) {
+      result = Arrays.copyOf(result, Math.max(word + 1, result.length * 2));
+    }
+    result[word] |= 1L << uid;
+    return result;
+  }
+
+  /**
+   * <code>isCovered</code> signals whether a goal was covered when the snapshot was taken.
+   *
+   * @param uid UID of the goal as <code>int</code>
+   * @return a <code>boolean</code> value
+   */
+  public boolean isCovered(final int uid) {
+    int word = uid >>> 6;
+    return word < words.length && (words[word] & (1L << uid)) != 0;
+  }
+
+  /**
+   * <code>getCoveredCount</code> returns the number of covered goals.
+   *
+   * @return an <code>int</code> value
+   */
+  public int getCoveredCount() {
+    int count = 0;
+    for (long word : words) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+
+  /**
+   * <code>getCovered</code> returns the covered goals.
+   *
+   * @return the UIDs in ascending order as <code>int[]</code>
+   */
+  public int[] getCovered() {
+    return newlyCovered(EMPTY);
+  }
+
+  /**
+   * <code>newlyCovered</code> returns the goals covered in this snapshot but not in
+   * <code>since</code>.
+   *
+   * @param since an earlier <code>CoverageSnapshot</code>
+   * @return the UIDs in ascending order as <code>int[]</code>
+   */
+  public int[] newlyCovered(final CoverageSnapshot since) {
+    int count = 0;
+    for (int i = 0; i < words.length; i++) {
+      count += Long.bitCount(words[i] & ~since.word(i));
+    }
+    int[] result = new int[count];
+    int n = 0;
+    for (int i = 0; n < count; i++) {
+      long word = words[i] & ~since.word(i);
+      while (word != 0) {
+        result[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * <code>union</code> returns the goals covered in this snapshot or in <code>other</code>, e.g. to
+   * accumulate the coverage of several runs separated by {@link CoverageLog#resetCoverage()}.
+   *
+   * @param other another <code>CoverageSnapshot</code>
+   * @return a new <code>CoverageSnapshot</code>
+   */
+  public CoverageSnapshot union(final CoverageSnapshot other) {
+    long[] result = Arrays.copyOf(words, Math.max(words.length, other.words.length));
+    for (int i = 0; i < other.words.length; i++) {
+      result[i] |= other.words[i];
+    }
+    return new CoverageSnapshot(result);
+  }
+
+  /**
+   * <code>word</code> returns a word of the bitset, zero beyond its end.
+   *
+   * @param i index of the word as <code>int</code>
+   * @return a <code>long</code> value
+   */
+  private long word(final int i) {
+    return i < words.length ? words[i] : 0L;
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+/**
+ * <code>CoverageStore</code> is the database of goals and counts, a set of named maps written in
+ * transactions. {@link MapDbStore} implements it on MapDB. It is loaded by name, so classes loaded
+ * by instrumented code never link against MapDB, which the runtime jar leaves out.
+ */
+interface CoverageStore {
+
+  /**
+   * <code>IMPLEMENTATION</code> is the name of the class implementing the store.
+   */
+  String IMPLEMENTATION = "org.cprover.coverage.MapDbStore";
+
+  /**
+   * <code>isAvailable</code> signals whether the store and MapDB can be loaded.
+   *
+   * @return a <code>boolean</code> value
+   */
+  static boolean isAvailable() {
+    ClassLoader loader = CoverageStore.class.getClassLoader();
+    try {
+      Class.forName(IMPLEMENTATION, false, loader);
+      Class.forName("org.mapdb.DB", false, loader);
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * <code>open</code> opens the store in a file, waiting for other processes using it.
+   *
+   * @param fileName    name of the DB file as <code>String</code>
+   * @param cleanerHack whether to unmap files eagerly as <code>boolean</code>
+   * @return the open <code>CoverageStore</code>
+   * @throws IllegalStateException if MapDB is not on the class path
+   */
+  static CoverageStore open(final String fileName, final boolean cleanerHack) {
+    if (!isAvailable()) {
+      throw new IllegalStateException("MapDB is not on the class path, cannot open " + fileName);
+    }
+    try {
+      return (CoverageStore) Class.forName(IMPLEMENTATION, true,
+          CoverageStore.class.getClassLoader())
+          .getDeclaredConstructor(String.class, boolean.class)
+          .newInstance(fileName, cleanerHack);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException("cannot open " + fileName, e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("cannot open " + fileName, e);
+    }
+  }
+
+  /**
+   * <code>map</code> creates or opens a map of the store.
+   *
+   * @param name      name of the map as <code>String</code>
+   * @param keyType   type of the keys as <code>Class</code>
+   * @param valueType type of the values as <code>Class</code>
+   * @param <K>       type of the keys
+   * @param <V>       type of the values
+   * @return the map, written with the next commit
+   */
+  <K, V> Map<K, V> map(String name, Class<K> keyType, Class<V> valueType);
+
+  /**
+   * <code>exists</code> signals whether the store holds a map.
+   *
+   * @param name name of the map as <code>String</code>
+   * @return a <code>boolean</code> value
+   */
+  boolean exists(String name);
+
+  /**
+   * <code>commit</code> makes the changes since the last commit durable.
+   */
+  void commit();
+
+  /**
+   * <code>rollback</code> discards the changes since the last commit.
+   */
+  void rollback();
+
+  /**
+   * <code>close</code> closes the store, discarding changes not committed.
+   */
+  void close();
+
+  /**
+   * <code>isClosed</code> signals whether the store was closed.
+   *
+   * @return a <code>boolean</code> value
+   */
+  boolean isClosed();
+}
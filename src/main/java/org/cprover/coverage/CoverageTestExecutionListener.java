@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+
+/**
+ * <code>CoverageTestExecutionListener</code> attributes the goals covered by instrumented code to
+ * the tests of the JUnit Platform running it, see {@link CoverageLog#beginTest(String)}. Tests are
+ * identified by their unique ID. It is registered as a service, but only attributes goals if the
+ * system property {@link #ENABLED_PROPERTY} is <code>true</code>, so launchers that merely have
+ * BlueCov on their class path neither open the coverage database nor track tests.
+ */
+public class CoverageTestExecutionListener implements TestExecutionListener {
+
+  /**
+   * <code>ENABLED_PROPERTY</code> is the name of the system property that enables the listener.
+   */
+  public static final String ENABLED_PROPERTY = "bluecov.tests";
+  /**
+   * <code>enabled</code> signals whether the listener attributes goals to tests.
+   */
+  private final boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  /**
+   * <code>executionStarted</code> begins attributing hits to a test.
+   *
+   * @param testIdentifier the <code>TestIdentifier</code> of the test or container
+   */
+  @Override
+  public void executionStarted(final TestIdentifier testIdentifier) {
+    if (enabled && testIdentifier.isTest()) {
+      CoverageLog.getInstance().beginTest(testIdentifier.getUniqueId());
+    }
+  }
+
+  /**
+   * <code>executionFinished</code> stores the goals covered by a test.
+   *
+   * @param testIdentifier the <code>TestIdentifier</code> of the test or container
+   * @param result         the <code>TestExecutionResult</code> of the test
+   */
+  @Override
+  public void executionFinished(
+      final TestIdentifier testIdentifier,
+      final TestExecutionResult result) {
+    if (enabled && testIdentifier.isTest()) {
+      CoverageLog.getInstance().endTest();
+    }
+  }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <code>CoverageThreads</code> counts hits per thread pool. Threads are grouped by their name
+ * without the trailing number, so all workers of a pool share their counts. Every thread counts
+ * into a small sparse buffer of its own without synchronization. A full buffer is added to the
+ * counts of its pool with atomic increments and reused, so a thread holds at most a few hundred
+ * counts however many goals it hits. Buffers of terminated threads are folded whenever the number
+ * of buffers doubled, so services starting many short-lived threads only hold buffers of the
+ * threads alive.
+ */
+final class CoverageThreads {
+
+  /**
+   * <code>UNNAMED</code> is the pool of threads whose name is only a number or empty.
+   */
+  static final String UNNAMED = "unnamed";
+  /**
+   * <code>BUFFER_SIZE</code> is the number of slots of a buffer, a power of two.
+   */
+  static final int BUFFER_SIZE = 64;
+  /**
+   * <code>MIN_SWEEP</code> is the number of buffers at which those of terminated threads are
+   * folded at the earliest.
+   */
+  static final int MIN_SWEEP = 64;
+  /**
+   * <code>BUFFER_LIMIT</code> is the number of UIDs a buffer holds before it is folded.
+   */
+  private static final int BUFFER_LIMIT = BUFFER_SIZE * 3 / 4;
+  /**
+   * <code>HASH_SHIFT</code> keeps the bits of a hash that index a slot.
+   */
+  private static final int HASH_SHIFT = Integer.numberOfLeadingZeros(BUFFER_SIZE - 1);
+  /**
+   * <code>PAGE_BITS</code> is the base-2 logarithm of the number of UIDs per page of pool counts.
+   */
+  private static final int PAGE_BITS = 10;
+  /**
+   * <code>TABLE</code> swaps the buffer of a thread.
+   */
+  private static final AtomicReferenceFieldUpdater<ThreadCounts, Table> TABLE =
+      AtomicReferenceFieldUpdater.newUpdater(ThreadCounts.class, Table.class, "table");
+  /**
+   * <code>pools</code> maps pool names to their counts.
+   */
+  private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+  /**
+   * <code>buffers</code> of threads that were alive when terminated threads were last swept.
+   */
+  private final ConcurrentLinkedQueue<ThreadCounts> buffers = new ConcurrentLinkedQueue<>();
+  /**
+   * <code>bufferCount</code> is the number of <code>buffers</code>.
+   */
+  private final AtomicInteger bufferCount = new AtomicInteger();
+  /**
+   * <code>sweepAt</code> is the number of buffers at which terminated threads are swept next.
+   */
+  private volatile int sweepAt = MIN_SWEEP;
+  /**
+   * <code>counts</code> of the current thread.
+   */
+  private final ThreadLocal<ThreadCounts> counts = ThreadLocal.withInitial(this::newCounts);
+
+  /**
+   * <code>fromEnvironment</code> returns the per-thread counts configured in the environment.
+   *
+   * @return a <code>CoverageThreads</code>, or <code>null</code> if hits are not counted per thread
+   */
+  static CoverageThreads fromEnvironment() {
+    return Boolean.parseBoolean(System.getenv(CoverageLog.THREADS_ENV_VAR))
+        ? new CoverageThreads()
+        : null;
+  }
+
+  /**
+   * <code>poolName</code> returns the pool of a thread, its name without the trailing number.
+   *
+   * @param threadName name of the thread as <code>String</code>
+   * @return the pool name as <code>String</code>
+   */
+  static String poolName(final String threadName) {
+    int end = threadName.length();
+    while (end > 0 && Character.isDigit(threadName.charAt(end - 1))) {
+      end--;
+    }
+    return end == 0 ? UNNAMED : threadName.substring(0, end);
+  }
+
+  /**
+   * <code>hit</code> counts a hit of the current thread.
+   *
+   * @param key UID of the goal as <code>int</code>
+   */
+  void hit(final int key) {
+    ThreadCounts c = counts.get();
+    Table t = c.table;
+    if (!t.hit(key)) {
+      fold(c, t);
+      c.table.hit(key);
+    }
+  }
+
+  /**
+   * <code>collect</code> adds up the counts of each pool and folds the buffers of terminated
+   * threads. The pools are read before the buffers and a buffer is replaced before it is folded,
+   * so a hit is never counted twice.
+   *
+   * @return mapping of pool names to counts indexed by UID
+   */
+  synchronized Map<String, long[]> collect() {
+    sweep();
+    HashMap<String, long[]> result = new HashMap<>();
+    for (Pool pool : pools.values()) {
+      long[] sums = pool.toArray();
+      if (sums != null) {
+        result.put(pool.name, sums);
+      }
+    }
+    for (ThreadCounts c : buffers) {
+      long[] sums = c.table.addTo(result.get(c.pool.name));
+      if (sums != null) {
+        result.put(c.pool.name, sums);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * <code>reset</code> sets all counts to zero. Hits recorded concurrently may survive.
+   */
+  synchronized void reset() {
+    for (ThreadCounts c : buffers) {
+      c.table = new Table();
+    }
+    for (Pool pool : pools.values()) {
+      pool.clear();
+    }
+  }
+
+  /**
+   * <code>getBufferCount</code> returns the number of buffers held.
+   *
+   * @return an <code>int</code> value
+   */
+  int getBufferCount() {
+    return buffers.size();
+  }
+
+  /**
+   * <code>fold</code> adds a full buffer to the counts of its pool and gives the thread its spare
+   * buffer. It is only called by the owner of the buffer and does not lock.
+   *
+   * @param c the <code>ThreadCounts</code> of the current thread
+   * @param t the full <code>Table</code>
+   */
+  private void fold(final ThreadCounts c, final Table t) {
+    Table spare = c.spare;
+    c.spare = null;
+    // a table replaced by reset() in the meantime holds counts from before the reset
+    if (TABLE.compareAndSet(c, t, spare == null ? new Table() : spare)) {
+      c.pool.add(t);
+    }
+    t.clear();
+    c.spare = t;
+  }
+
+  /**
+   * <code>newCounts</code> creates and registers the buffer of the current thread, sweeping the
+   * buffers of terminated threads whenever their number doubled.
+   *
+   * @return a <code>ThreadCounts</code> instance
+   */
+  private ThreadCounts newCounts() {
+    Thread thread = Thread.currentThread();
+    String name = poolName(thread.getName());
+    ThreadCounts c = new ThreadCounts(thread, pools.computeIfAbsent(name, Pool::new));
+    buffers.add(c);
+    if (bufferCount.incrementAndGet() >= sweepAt) {
+      synchronized (this) {
+        sweep();
+      }
+    }
+    return c;
+  }
+
+  /**
+   * <code>sweep</code> folds and drops the buffers of terminated threads. The caller holds the
+   * lock.
+   */
+  private void sweep() {
+    Iterator<ThreadCounts> it = buffers.iterator();
+    while (it.hasNext()) {
+      ThreadCounts c = it.next();
+      Thread owner = c.owner.get();
+      if (owner == null || !owner.isAlive()) {
+        // the owner is gone, nothing writes its buffer any more
+        c.pool.add(c.table);
+        it.remove();
+        bufferCount.decrementAndGet();
+      }
+    }
+    sweepAt = Math.max(MIN_SWEEP, 2 * bufferCount.get());
+  }
+
+  /**
+   * <code>ThreadCounts</code> is the buffer of a single thread.
+   */
+  private static final class ThreadCounts {
+
+    /**
+     * <code>owner</code> of the buffer, not kept alive by it.
+     */
+    private final WeakReference<Thread> owner;
+    /**
+     * <code>pool</code> of the owner.
+     */
+    private final Pool pool;
+    /**
+     * <code>table</code> the owner counts into, replaced when folded or reset. Not private, so
+     * {@link #TABLE} may update it on Java 8.
+     */
+    volatile Table table = new Table();
+    /**
+     * <code>spare</code> is the empty table of the owner that replaces the next full one.
+     */
+    private Table spare;
+
+    /**
+     * Creates a new <code>ThreadCounts</code> instance.
+     *
+     * @param owner the <code>Thread</code> recording hits
+     * @param pool  the <code>Pool</code> of the owner
+     */
+    ThreadCounts(final Thread owner, final Pool pool) {
+      this.owner = new WeakReference<>(owner);
+      this.pool = pool;
+    }
+  }
+
+  /**
+   * <code>Pool</code> holds the counts of the folded buffers of a pool. The counts are split into
+   * pages that are allocated on first use and never move, so threads folding concurrently only
+   * lock to add a page.
+   */
+  private static final class Pool {
+
+    /**
+     * <code>name</code> of the pool.
+     */
+    private final String name;
+    /**
+     * <code>pages</code> of counts indexed by UID, <code>null</code> until a UID of the page is
+     * folded.
+     */
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    /**
+     * Creates a new <code>Pool</code> instance.
+     *
+     * @param name the pool name as <code>String</code>
+     */
+    Pool(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * <code>add</code> adds the counts of a table.
+     *
+     * @param t the <code>Table</code> to add
+     */
+    void add(final Table t) {
+      for (int slot = 0; slot < BUFFER_SIZE; slot++) {
+        int k = t.keys[slot];
+        if (k != 0) {
+          int uid = k - 1;
+          AtomicLongArray[] p = pages;
+          int pageIndex = uid >>> PAGE_BITS;
+          AtomicLongArray page = pageIndex < p.length ? p[pageIndex] : null;
+          if (page == null) {
+            page = allocatePage(pageIndex);
+          }
+          page.addAndGet(uid & ((1 << PAGE_BITS) - 1), t.hits[slot]);
+        }
+      }
+    }
+
+    /**
+     * <code>toArray</code> returns the counts.
+     *
+     * @return counts indexed by UID as <code>long[]</code>, <code>null</code> if all are zero
+     */
+    long[] toArray() {
+      AtomicLongArray[] p = pages;
+      long[] sums = new long[p.length << PAGE_BITS];
+      boolean hit = false;
+      for (int i = 0; i < p.length; i++) {
+        if (p[i] != null) {
+          for (int j = 0; j < p[i].length(); j++) {
+            sums[(i << PAGE_BITS) + j] = p[i].get(j);
+            hit |= sums[(i << PAGE_BITS) + j] != 0;
+          }
+        }
+      }
+      return hit ? sums : null;
+    }
+
+    /**
+     * <code>clear</code> sets all counts to zero.
+     */
+    void clear() {
+      for (AtomicLongArray page : pages) {
+        if (page != null) {
+          for (int j = 0; j < page.length(); j++) {
+            page.set(j, 0L);
+          }
+        }
+      }
+    }
+
+    /**
+     * <code>allocatePage</code> allocates a page, enlarging the page table if necessary.
+     *
+     * @param pageIndex index of the page as <code>int</code>
+     * @return the page as <code>AtomicLongArray</code>
+     */
+    private synchronized AtomicLongArray allocatePage(final int pageIndex) {
+      AtomicLongArray[] p = pages;
+      if (pageIndex >= p.length) {
+        p = Arrays.copyOf(p, Math.max(pageIndex + 1, p.length * 2));
+      }
+      if (p[pageIndex] == null) {
+        p[pageIndex] = new AtomicLongArray(1 << PAGE_BITS);
+      }
+      pages = p;
+      return p[pageIndex];
+    }
+  }
+
+  /**
+   * <code>Table</code> maps the UIDs a thread hit to their counts by open addressing. Only the
+   * owner writes it and slots are only reused after the table was replaced, so a reader at worst
+   * misses the latest hits.
+   */
+  private static final class Table {
+
+    /**
+     * <code>keys</code> are UIDs plus one, zero for empty slots.
+     */
+    private final int[] keys = new int[BUFFER_SIZE];
+    /**
+     * <code>hits</code> indexed by slot.
+     */
+    private final long[] hits = new long[BUFFER_SIZE];
+    /**
+     * <code>size</code> is the number of slots used.
+     */
+    private int size;
+
+    /**
+     * <code>hit</code> counts a hit.
+     *
+     * @param key UID of the goal as <code>int</code>
+     * @return <code>false</code> if the table is full and the hit was not counted
+     */
+    boolean hit(final int key) {
+      int mask = BUFFER_SIZE - 1;
+      int slot = (key * 0x9E3779B9) >>> HASH_SHIFT;
+      while (true) {
+        int k = keys[slot];
+        if (k == key + 1) {
+          hits[slot]++;
+          return true;
+        }
+        if (k == 0) {
+          if (size >= BUFFER_LIMIT) {
+            return false;
+          }
+          hits[slot] = 1;
+          keys[slot] = key + 1;
+          size++;
+          return true;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    /**
+     * <code>clear</code> empties the table for reuse.
+     */
+    void clear() {
+      Arrays.fill(keys, 0);
+      Arrays.fill(hits, 0L);
+      size = 0;
+    }
+
+    /**
+     * <code>addTo</code> adds the counts of the table to those of a pool.
+     *
+     * @param sums counts indexed by UID as <code>long[]</code>, may be <code>null</code>
+     * @return <code>sums</code>, or a copy of it enlarged to hold all UIDs, <code>null</code> if
+     *     both are empty
+     */
+    long[] addTo(final long[] sums) {
+      long[] result = sums;
+      for (int slot = 0; slot < BUFFER_SIZE; slot++) {
+        int k = keys[slot];
+        if (k != 0) {
+          if (result == null || k > result.length) {
+            result = Arrays.copyOf(result == null ? new long[0] : result,
+                Math.max(k, result == null ? 0 : result.length * 2));
+          }
+          result[k - 1] += hits[slot];
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,481 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>CoverageTrace</code> records the order in which goals are hit. Every thread appends UIDs to
+ * its own ring buffer without locking, a background thread drains the buffers into a trace file
+ * next to the DB. A thread whose buffer is full drops its hits instead of waiting, and the number
+ * of dropped hits is marked in the trace where they were lost.
+ * <p>
+ * The number of buffers is capped. Buffers of terminated threads are drained and reused by new
+ * threads, and threads started while all buffers are in use drop their hits until one is free.
+ * Their dropped hits are marked in records of thread ID 0, which no thread has.
+ * <p>
+ * The file starts with {@link #MAGIC}, followed by records of a thread ID, a number of entries and
+ * the entries, all as unsigned variable-length integers. An entry holds the difference to the
+ * previous UID of the record, zigzag-encoded and shifted left by one, or the number of dropped hits
+ * shifted left by one with the lowest bit set.
+ */
+final class CoverageTrace implements Runnable {
+
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that enables tracing.
+   */
+  public static final String ENV_VAR = "BLUECOV_TRACE";
+  /**
+   * <code>SUFFIX</code> appended to the database file name.
+   */
+  static final String SUFFIX = ".trace";
+  /**
+   * <code>MAGIC</code> number at the start of the file, "BCTRACE1".
+   */
+  static final long MAGIC = 0x4243545241434531L;
+  /**
+   * <code>CAPACITY</code> of the buffer of every thread in UIDs, 16 KB.
+   */
+  private static final int CAPACITY = 1 << 12;
+  /**
+   * <code>MAX_BUFFERS</code> allocated at most, 4 MB at the default capacity.
+   */
+  private static final int MAX_BUFFERS = 256;
+  /**
+   * <code>DRAIN_INTERVAL</code> of the writer in milliseconds.
+   */
+  private static final long DRAIN_INTERVAL = 10;
+  /**
+   * <code>buffers</code> of all threads that recorded hits.
+   */
+  private final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<>();
+  /**
+   * <code>buffer</code> of the current thread, <code>null</code> until it got one.
+   */
+  private final ThreadLocal<Buffer> buffer = new ThreadLocal<>();
+  /**
+   * <code>free</code> entries of buffers of terminated threads, drained and ready for reuse.
+   */
+  private final ConcurrentLinkedQueue<int[]> free = new ConcurrentLinkedQueue<>();
+  /**
+   * <code>allocated</code> is the number of entries arrays allocated so far.
+   */
+  private final AtomicInteger allocated = new AtomicInteger();
+  /**
+   * <code>unbuffered</code> hits dropped by threads without a buffer since the last drain.
+   */
+  private final AtomicLong unbuffered = new AtomicLong();
+  /**
+   * <code>capacity</code> of new buffers, a power of two.
+   */
+  private final int capacity;
+  /**
+   * <code>maxBuffers</code> is the number of buffers allocated at most.
+   */
+  private final int maxBuffers;
+  /**
+   * <code>out</code> is the trace file.
+   */
+  private final DataOutputStream out;
+  /**
+   * <code>writer</code> drains the buffers, <code>null</code> if they are only drained on demand.
+   */
+  private final Thread writer;
+  /**
+   * <code>closed</code> signals that the writer should stop.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Creates a new <code>CoverageTrace</code> instance.
+   *
+   * @param file        the trace file as <code>Path</code>
+   * @param capacity    capacity of the buffer of every thread, a power of two
+   * @param maxBuffers  number of buffers allocated at most as <code>int</code>
+   * @param startWriter whether to drain the buffers in a background thread
+   * @throws IOException if the trace file cannot be created
+   */
+  CoverageTrace(
+      final Path file,
+      final int capacity,
+      final int maxBuffers,
+      final boolean startWriter) throws IOException {
+    this.capacity = capacity;
+    this.maxBuffers = maxBuffers;
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+    out.writeLong(MAGIC);
+    if (startWriter) {
+      writer = new Thread(this, "bluecov-trace");
+      writer.setDaemon(true);
+      writer.start();
+    } else {
+      writer = null;
+    }
+  }
+
+  /**
+   * <code>fromEnvironment</code> returns the trace configured in the environment.
+   *
+   * @param dbFileName name of the DB file as <code>String</code>
+   * @return a <code>CoverageTrace</code> writing <code>dbFileName</code> + {@link #SUFFIX}, or
+   *     <code>null</code> if tracing is disabled
+   */
+  static CoverageTrace fromEnvironment(final String dbFileName) {
+    if (!Boolean.parseBoolean(System.getenv(ENV_VAR))) {
+      return null;
+    }
+    try {
+      return new CoverageTrace(Paths.get(dbFileName + SUFFIX), CAPACITY, MAX_BUFFERS, true);
+    } catch (IOException e) {
+      System.out.println("WARNING: could not create trace file, not tracing: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * <code>append</code> adds a hit to the buffer of the current thread, or drops it if the buffer
+   * is full or the thread has none.
+   *
+   * @param uid UID of the goal as <code>int</code>
+   */
+  void append(final int uid) {
+    Buffer b = buffer.get();
+    if (b == null) {
+      b = newBuffer();
+      if (b == null) {
+        unbuffered.incrementAndGet();
+        return;
+      }
+      buffer.set(b);
+    }
+    b.append(uid);
+  }
+
+  /**
+   * <code>run</code> drains the buffers until the trace is closed.
+   */
+  @Override
+  public void run() {
+    while (!closed) {
+      try {
+        Thread.sleep(DRAIN_INTERVAL);
+        drain();
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        System.out.println("ERROR: could not write trace: " + e.getMessage());
+        return;
+      }
+    }
+  }
+
+  /**
+   * <code>drain</code> writes the contents of all buffers to the trace file and frees the buffers
+   * of threads that terminated for reuse.
+   *
+   * @throws IOException if the trace file cannot be written
+   */
+  synchronized void drain() throws IOException {
+    Iterator<Buffer> it = buffers.iterator();
+    while (it.hasNext()) {
+      Buffer b = it.next();
+      Thread owner = b.owner.get();
+      boolean alive = owner != null && owner.isAlive();
+      b.drainTo(out);
+      if (!alive) {
+        it.remove();
+        // the owner terminated, so its last dropped hits can be read
+        writeGap(b.threadId, b.dropped);
+        free.add(b.entries);
+      }
+    }
+    writeGap(0, unbuffered.getAndSet(0));
+  }
+
+  /**
+   * <code>writeGap</code> writes a record of a single mark of dropped hits.
+   *
+   * @param threadId ID of the thread as <code>long</code>
+   * @param dropped  number of hits as <code>long</code>
+   * @throws IOException if an error occurs
+   */
+  private void writeGap(final long threadId, final long dropped) throws IOException {
+    if (dropped > 0) {
+      writeVarLong(out, threadId);
+      writeVarLong(out, 1);
+      writeVarLong(out, (dropped << 1) | 1);
+    }
+  }
+
+  /**
+   * <code>close</code> stops the writer, drains the buffers a last time and closes the trace file.
+   */
+  void close() {
+    closed = true;
+    if (writer != null) {
+      writer.interrupt();
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      drain();
+      out.close();
+    } catch (IOException e) {
+      System.out.println("ERROR: could not write trace: " + e.getMessage());
+    }
+  }
+
+  /**
+   * <code>newBuffer</code> creates and registers the buffer of the current thread, reusing the
+   * entries of a terminated thread if possible.
+   *
+   * @return a <code>Buffer</code> instance, <code>null</code> if all buffers are in use
+   */
+  private Buffer newBuffer() {
+    int[] entries = free.poll();
+    if (entries == null) {
+      if (allocated.get() >= maxBuffers || allocated.incrementAndGet() > maxBuffers) {
+        return null;
+      }
+      entries = new int[capacity];
+    }
+    Buffer b = new Buffer(Thread.currentThread(), entries);
+    buffers.add(b);
+    return b;
+  }
+
+  /**
+   * <code>read</code> decodes a trace file.
+   *
+   * @param file    the trace file as <code>Path</code>
+   * @param visitor the <code>Visitor</code> receiving the entries in order
+   * @throws IOException if the file cannot be read or is not a trace
+   */
+  static void read(final Path file, final Visitor visitor) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readLong() != MAGIC) {
+        throw new IOException(file + " is not a trace file");
+      }
+      while (true) {
+        long thread;
+        try {
+          thread = readVarLong(in);
+        } catch (EOFException e) {
+          return;
+        }
+        long count = readVarLong(in);
+        int uid = 0;
+        for (long i = 0; i < count; i++) {
+          long entry = readVarLong(in);
+          if ((entry & 1) != 0) {
+            visitor.gap(thread, entry >>> 1);
+          } else {
+            long zigzag = entry >>> 1;
+            uid += (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+            visitor.hit(thread, uid);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>writeVarLong</code> writes an unsigned variable-length integer.
+   *
+   * @param out   the <code>OutputStream</code> to write to
+   * @param value the non-negative value as <code>long</code>
+   * @throws IOException if an error occurs
+   */
+  private static void writeVarLong(final OutputStream out, final long value) throws IOException {
+    long rest = value;
+    while ((rest & ~0x7FL) != 0) {
+      out.write((int) ((rest & 0x7F) | 0x80));
+      rest >>>= 7;
+    }
+    out.write((int) rest);
+  }
+
+  /**
+   * <code>readVarLong</code> reads an unsigned variable-length integer.
+   *
+   * @param in the <code>InputStream</code> to read from
+   * @return the value as <code>long</code>
+   * @throws IOException if an error occurs
+   */
+  private static long readVarLong(final InputStream in) throws IOException {
+    long value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * <code>Visitor</code> receives the entries of a trace.
+   */
+  interface Visitor {
+
+    /**
+     * <code>hit</code> receives a hit of a goal.
+     *
+     * @param thread ID of the thread as <code>long</code>
+     * @param uid    UID of the goal as <code>int</code>
+     */
+    void hit(long thread, int uid);
+
+    /**
+     * <code>gap</code> receives the number of hits dropped by a thread.
+     *
+     * @param thread  ID of the thread as <code>long</code>
+     * @param dropped number of hits as <code>long</code>
+     */
+    void gap(long thread, long dropped);
+  }
+
+  /**
+   * <code>Buffer</code> is the ring buffer of a single thread. Only the owner appends and only the
+   * writer drains, so the positions are published with ordered writes and no locks.
+   */
+  private static final class Buffer {
+
+    /**
+     * <code>owner</code> of the buffer, cleared when it terminates.
+     */
+    private final WeakReference<Thread> owner;
+    /**
+     * <code>threadId</code> of the owner.
+     */
+    private final long threadId;
+    /**
+     * <code>entries</code> of the ring, UIDs or negated numbers of dropped hits.
+     */
+    private final int[] entries;
+    /**
+     * <code>head</code> is the number of entries appended, written by the owner.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * <code>tail</code> is the number of entries drained, written by the writer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * <code>position</code> is the owner's copy of <code>head</code>.
+     */
+    private long position;
+    /**
+     * <code>limit</code> is the position up to which the owner may append without reading
+     * <code>tail</code>.
+     */
+    private long limit;
+    /**
+     * <code>dropped</code> hits the owner has not marked yet.
+     */
+    private int dropped;
+
+    /**
+     * Creates a new <code>Buffer</code> instance.
+     *
+     * @param owner   the <code>Thread</code> appending to the buffer
+     * @param entries the ring as <code>int[]</code>, its length a power of two
+     */
+    Buffer(final Thread owner, final int[] entries) {
+      this.owner = new WeakReference<>(owner);
+      this.threadId = owner.getId();
+      this.entries = entries;
+      this.limit = entries.length;
+    }
+
+    /**
+     * <code>append</code> adds a hit, preceded by a mark of the hits dropped before it.
+     *
+     * @param uid UID of the goal as <code>int</code>
+     */
+    void append(final int uid) {
+      int needed = dropped > 0 ? 2 : 1;
+      if (position + needed > limit) {
+        limit = tail.get() + entries.length;
+        if (position + needed > limit) {
+          if (dropped < Integer.MAX_VALUE) {
+            dropped++;
+          }
+          return;
+        }
+      }
+      int mask = entries.length - 1;
+      if (dropped > 0) {
+        entries[(int) position & mask] = -dropped;
+        position++;
+        dropped = 0;
+      }
+      entries[(int) position & mask] = uid;
+      position++;
+      head.lazySet(position);
+    }
+
+    /**
+     * <code>drainTo</code> writes the entries appended since the last call as a record.
+     *
+     * @param out the <code>OutputStream</code> to write to
+     * @throws IOException if an error occurs
+     */
+    void drainTo(final OutputStream out) throws IOException {
+      long from = tail.get();
+      long to = head.get();
+      if (from == to) {
+        return;
+      }
+      writeVarLong(out, threadId);
+      writeVarLong(out, to - from);
+      int mask = entries.length - 1;
+      int previous = 0;
+      for (long i = from; i < to; i++) {
+        int entry = entries[(int) i & mask];
+        if (entry < 0) {
+          writeVarLong(out, ((long) -entry << 1) | 1);
+        } else {
+          long delta = (long) entry - previous;
+          writeVarLong(out, ((delta << 1) ^ (delta >> 63)) << 1);
+          previous = entry;
+        }
+      }
+      tail.lazySet(to);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <code>CoverageWindows</code> keeps the goals hit by long-running instrumented code in time
+ * windows. Every write of counts adds the goals hit since the previous write to the window of the
+ * current time and stamps them with it in the last-hit map, which answers whether a goal was hit
+ * recently with a single lookup. Hourly windows older than a day are compacted into daily ones,
+ * daily windows older than the retention are dropped, so the DB stays bounded.
+ */
+final class CoverageWindows {
+
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that selects the width of new
+   * windows, <code>hourly</code> or <code>daily</code>.
+   */
+  public static final String ENV_VAR = "BLUECOV_WINDOW";
+  /**
+   * <code>RETENTION_ENV_VAR</code> is the name of the environment variable that holds the number
+   * of days windows are kept.
+   */
+  public static final String RETENTION_ENV_VAR = "BLUECOV_WINDOW_RETENTION";
+  /**
+   * <code>DEFAULT_RETENTION_DAYS</code> is the number of days windows are kept by default.
+   */
+  static final int DEFAULT_RETENTION_DAYS = 30;
+  /**
+   * <code>CHECKPOINT_INTERVAL</code> is the default checkpoint interval in seconds when windows
+   * are kept, so hits end up in the window they happened in.
+   */
+  static final long CHECKPOINT_INTERVAL = 60;
+  /**
+   * <code>HOUR</code> in milliseconds.
+   */
+  static final long HOUR = 60 * 60 * 1000L;
+  /**
+   * <code>DAY</code> in milliseconds.
+   */
+  static final long DAY = 24 * HOUR;
+  /**
+   * <code>LAST_HIT_MAP</code> maps UIDs to the time of their last hit.
+   */
+  private static final String LAST_HIT_MAP = "lastHitMap";
+  /**
+   * <code>HOURLY_MAP</code> maps the start of hourly windows to the goals hit in them.
+   */
+  private static final String HOURLY_MAP = "hourlyWindowMap";
+  /**
+   * <code>DAILY_MAP</code> maps the start of daily windows to the goals hit in them.
+   */
+  private static final String DAILY_MAP = "dailyWindowMap";
+  /**
+   * <code>width</code> of new windows in milliseconds.
+   */
+  private final long width;
+  /**
+   * <code>retention</code> of daily windows in milliseconds.
+   */
+  private final long retention;
+
+  /**
+   * Creates a new <code>CoverageWindows</code> instance.
+   *
+   * @param width         width of new windows in milliseconds, {@link #HOUR} or {@link #DAY}
+   * @param retentionDays number of days windows are kept as <code>int</code>
+   */
+  CoverageWindows(final long width, final int retentionDays) {
+    this.width = width;
+    this.retention = retentionDays * DAY;
+  }
+
+  /**
+   * <code>fromEnvironment</code> returns the windows configured in the environment.
+   *
+   * @return a <code>CoverageWindows</code> instance, or <code>null</code> if no windows are kept
+   */
+  static CoverageWindows fromEnvironment() {
+    String value = System.getenv(ENV_VAR);
+    if (value == null || value.isEmpty()) {
+      return null;
+    }
+    long width;
+    switch (value.toLowerCase(Locale.ROOT)) {
+      case "hourly":
+        width = HOUR;
+        break;
+      case "daily":
+        width = DAY;
+        break;
+      default:
+        System.out.println("WARNING: unknown " + ENV_VAR + " " + value + ", keeping no windows");
+        return null;
+    }
+    int retentionDays = DEFAULT_RETENTION_DAYS;
+    String retention = System.getenv(RETENTION_ENV_VAR);
+    if (retention != null && !retention.isEmpty()) {
+      try {
+        retentionDays = Integer.parseInt(retention);
+      } catch (NumberFormatException e) {
+        System.out.println("WARNING: " + RETENTION_ENV_VAR + " is not a number of days: "
+            + retention);
+      }
+    }
+    return new CoverageWindows(width, retentionDays);
+  }
+
+  /**
+   * <code>add</code> records goals hit at <code>now</code> in the maps of an open DB and compacts
+   * old windows. The caller commits.
+   *
+   * @param db   the open <code>CoverageStore</code>
+   * @param uids the UIDs hit since the previous write in ascending order as <code>int[]</code>
+   * @param now  the current time in milliseconds as <code>long</code>
+   */
+  void add(final CoverageStore db, final int[] uids, final long now) {
+    if (uids.length > 0) {
+      Map<Integer, Long> lastHit = lastHitMap(db);
+      for (int uid : uids) {
+        lastHit.put(uid, now);
+      }
+      merge(width == HOUR ? hourlyMap(db) : dailyMap(db), now - now % width,
+          GoalSet.encode(uids));
+    }
+    compact(db, now);
+  }
+
+  /**
+   * <code>compact</code> merges hourly windows older than a day into daily windows and drops daily
+   * windows older than the retention.
+   *
+   * @param db  the open <code>CoverageStore</code>
+   * @param now the current time in milliseconds as <code>long</code>
+   */
+  void compact(final CoverageStore db, final long now) {
+    Map<Long, byte[]> hourly = hourlyMap(db);
+    Map<Long, byte[]> daily = dailyMap(db);
+    for (Long start : new ArrayList<>(hourly.keySet())) {
+      if (start + HOUR <= now - DAY) {
+        merge(daily, start - start % DAY, hourly.remove(start));
+      }
+    }
+    for (Long start : new ArrayList<>(daily.keySet())) {
+      if (start + DAY <= now - retention) {
+        daily.remove(start);
+      }
+    }
+  }
+
+  /**
+   * <code>notHitSince</code> returns the goals not hit since a point in time, including goals
+   * never hit.
+   *
+   * @param db    the open <code>CoverageStore</code>
+   * @param goals the number of goals as <code>int</code>
+   * @param since the point in time in milliseconds as <code>long</code>
+   * @return the UIDs in ascending order as <code>int[]</code>
+   */
+  static int[] notHitSince(final CoverageStore db, final int goals, final long since) {
+    Map<Integer, Long> lastHit = lastHitMap(db);
+    int[] result = new int[goals];
+    int size = 0;
+    for (int uid = 0; uid < goals; uid++) {
+      Long time = lastHit.get(uid);
+      if (time == null || time < since) {
+        result[size++] = uid;
+      }
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /**
+   * <code>getWindows</code> returns the goals hit in each window kept in the DB.
+   *
+   * @param db the open <code>CoverageStore</code>
+   * @return mapping of window starts in milliseconds to UIDs, hourly and daily windows merged
+   */
+  static Map<Long, int[]> getWindows(final CoverageStore db) {
+    TreeMap<Long, int[]> windows = new TreeMap<>();
+    for (Map.Entry<Long, byte[]> entry : dailyMap(db).entrySet()) {
+      windows.put(entry.getKey(), GoalSet.decode(entry.getValue()));
+    }
+    for (Map.Entry<Long, byte[]> entry : hourlyMap(db).entrySet()) {
+      windows.put(entry.getKey(), GoalSet.decode(entry.getValue()));
+    }
+    return windows;
+  }
+
+  /**
+   * <code>merge</code> adds goals to a window.
+   *
+   * @param windows the map of windows
+   * @param start   start of the window in milliseconds as <code>long</code>
+   * @param goals   the goals compressed by {@link GoalSet}
+   */
+  private static void merge(
+      final Map<Long, byte[]> windows,
+      final long start,
+      final byte[] goals) {
+    byte[] previous = windows.get(start);
+    windows.put(start, previous == null ? goals : GoalSet.union(previous, goals));
+  }
+
+  /**
+   * <code>lastHitMap</code> opens the map of last hits.
+   *
+   * @param db the open <code>CoverageStore</code>
+   * @return the map of UIDs to times in milliseconds
+   */
+  static Map<Integer, Long> lastHitMap(final CoverageStore db) {
+    return db.map(LAST_HIT_MAP, Integer.class, Long.class);
+  }
+
+  /**
+   * <code>hourlyMap</code> opens the map of hourly windows.
+   *
+   * @param db the open <code>CoverageStore</code>
+   * @return the map of window starts to compressed goal sets
+   */
+  private static Map<Long, byte[]> hourlyMap(final CoverageStore db) {
+    return db.map(HOURLY_MAP, Long.class, byte[].class);
+  }
+
+  /**
+   * <code>dailyMap</code> opens the map of daily windows.
+   *
+   * @param db the open <code>CoverageStore</code>
+   * @return the map of window starts to compressed goal sets
+   */
+  private static Map<Long, byte[]> dailyMap(final CoverageStore db) {
+    return db.map(DAILY_MAP, Long.class, byte[].class);
+  }
+}
@@ -13,7 +13,6 @@
  */
 package org.cprover.coverage;
 
-import java.util.HashMap;
 import java.util.List;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -36,19 +35,23 @@ public class ExtendStaticInit extends InstrumentByteCode {
    * Creates a new <code>ExtendStaticInit</code> instance.
    *
    * @param mv               a <code>MethodVisitor</code> value
+   * @param access           ACCESS bits of method as <code>int</code>
+   * @param desc             method type as Java <code>String</code> encoding
    * @param name             name of class as <code>String</code> value
    * @param methodName       name of method as <code>String</code> value
-   * @param offsetIdMap      map from offsets to UIDs as <code>HashMap</code>
    * @param instrumentedLocs the list of locations to instrument as
    *                         <code>List<Integer></code>
+   * @param probes           the <code>ClassProbes</code> of the class
    */
   public ExtendStaticInit(
       final MethodVisitor mv,
+      final int access,
+      final String desc,
       final String name,
       final String methodName,
-      final HashMap<Integer, Integer> offsetIdMap,
-      final List<Integer> instrumentedLocs) {
-    super(mv, name, methodName, offsetIdMap, instrumentedLocs);
+      final List<Integer> instrumentedLocs,
+      final ClassProbes probes) {
+    super(mv, access, desc, name, methodName, instrumentedLocs, probes);
     this.className = name;
   }
 
@@ -13,10 +13,10 @@
  */
 package org.cprover.coverage;
 
-import java.util.HashMap;
 import java.util.List;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -28,6 +28,26 @@ import org.objectweb.asm.Opcodes;
  */
 public class FieldAdapter extends ClassVisitor {
 
+  /**
+   * <code>REPORTER_FIELD</code> is the name of the field holding the <code>CoverageLog</code> for
+   * {@link ProbeStyle#CALL}.
+   */
+  public static final String REPORTER_FIELD = "diffblue_coverage_reporter";
+  /**
+   * <code>PROBES_FIELD</code> is the name of the field holding the probe array for {@link
+   * ProbeStyle#ARRAY}.
+   */
+  public static final String PROBES_FIELD = "diffblue_coverage_probes";
+  /**
+   * <code>PROBES_DESC</code> is the type of the probe array.
+   */
+  public static final String PROBES_DESC = "[J";
+  /**
+   * <code>PROBES_INIT_METHOD</code> is the name of the synthetic method that returns the probe
+   * array, allocating it on first use.
+   */
+  public static final String PROBES_INIT_METHOD = "diffblue_coverage_init_probes";
+
   /**
    * <code>fAcc</code> is field access flags.
    */
@@ -60,14 +80,19 @@ public class FieldAdapter extends ClassVisitor {
   private String className;
 
   /**
-   * <code>offsetIdMap</code> map from offsets to UIDs.
+   * <code>instrumentedLocs</code> list of locations to instrument.
    */
-  private HashMap<Integer, Integer> offsetIdMap;
+  private List<Integer> instrumentedLocs;
 
   /**
-   * <code>instrumentedLocs</code> list of locations to instrument.
+   * <code>classProbes</code> are the probes of the class.
    */
-  private List<Integer> instrumentedLocs;
+  private ClassProbes classProbes;
+
+  /**
+   * <code>classVersion</code> is the class file version of the class.
+   */
+  private int classVersion;
 
   /**
    * Creates a new <code>FieldAdapter</code> instance.
@@ -77,8 +102,8 @@ public class FieldAdapter extends ClassVisitor {
    * @param fieldName             name of method as <code>String</code> value
    * @param fieldDesc             type of method as <code>String</code> value
    * @param name                  name of class as <code>String</code> value
-   * @param offsetUIDMap          <code>HashMap</code> from offsets to UIDs
    * @param instrumentedLocations <code>List</code> of locationst to instrument
+   * @param probes                the <code>ClassProbes</code> of the class
    */
   public FieldAdapter(
       final ClassVisitor cv,
@@ -86,15 +111,27 @@ public class FieldAdapter extends ClassVisitor {
       final String fieldName,
       final String fieldDesc,
       final String name,
-      final HashMap<Integer, Integer> offsetUIDMap,
-      final List<Integer> instrumentedLocations) {
+      final List<Integer> instrumentedLocations,
+      final ClassProbes probes) {
     super(Opcodes.ASM5, cv);
     this.fAcc = fieldAcc;
     this.fName = fieldName;
     this.fDesc = fieldDesc;
     this.className = name;
-    this.offsetIdMap = offsetUIDMap;
     this.instrumentedLocs = instrumentedLocations;
+    this.classProbes = probes;
+  }
+
+  @Override
+  public final void visit(
+      final int version,
+      final int access,
+      final String name,
+      final String signature,
+      final String superName,
+      final String[] interfaces) {
+    this.classVersion = version & 0xFFFF;
+    super.visit(version, access, name, signature, superName, interfaces);
   }
 
   @Override
@@ -116,7 +153,9 @@ public class FieldAdapter extends ClassVisitor {
       final String desc,
       final String signature,
       final Object value) {
-    if (name.equals(fName)) {
+    if (name.equals(fName)
+        || name.equals(REPORTER_FIELD)
+        || name.equals(PROBES_FIELD)) {
       isInstrumented = true;
     }
     return cv.visitField(access, name, desc, signature, value);
@@ -125,7 +164,7 @@ public class FieldAdapter extends ClassVisitor {
   @Override
   /**
    * <code>visitEnd</code> crates &lt;clinit&gt; such that the static field for
-   * <code>CoverageLog</code> gets initialized.
+   * <code>CoverageLog</code> gets initialized, or the method that allocates the probe array.
    *
    */
   public final void visitEnd() {
@@ -134,15 +173,17 @@ public class FieldAdapter extends ClassVisitor {
       if (fv != null) {
         fv.visitEnd();
       }
-      // create `<clinit>` if it does not exist to set up logger
-      if (!hasStaticInit) {
+      if (classProbes.getStyle() == ProbeStyle.ARRAY) {
+        addProbesInitializer();
+      } else if (!hasStaticInit) {
+        // create `<clinit>` if it does not exist to set up logger
         MethodVisitor mv = super.visitMethod(Opcodes.ACC_STATIC, "<clinit>",
             "()V", null, null);
         mv.visitCode();
         ExtendStaticInit.putLoggerInstance(mv, this.className);
         mv.visitInsn(Opcodes.RETURN);
 
-        // args should be ignored by recomputation
+        // the class writer does not compute maxs
         mv.visitMaxs(1, 0);
         mv.visitEnd();
         System.out.println("did not find <clinit> in class, added one");
@@ -175,20 +216,55 @@ public class FieldAdapter extends ClassVisitor {
     MethodVisitor mv =
         super.visitMethod(access, name, desc, signature, exception);
     if (!isInstrumented) {
-      if (name.equals("<clinit>")) {
+      if (name.equals("<clinit>")
+          && classProbes.getStyle() != ProbeStyle.ARRAY) {
         hasStaticInit = true;
         mv = new ExtendStaticInit(
-            mv, this.className, name + ":" + desc,
-            offsetIdMap, instrumentedLocs);
-      } else if (mv != null) {
+            mv, access, desc, this.className, name + ":" + desc,
+            instrumentedLocs, classProbes);
+      } else if (mv != null && classProbes.hasProbes(name + ":" + desc)) {
+        // methods without goals are copied as they are
         mv = new InstrumentByteCodeVisitor(
-            mv, this.className, name + ":" + desc,
-            offsetIdMap, instrumentedLocs);
+            mv, access, desc, this.className, name + ":" + desc,
+            instrumentedLocs, classProbes);
       }
     }
     return mv;
   }
 
+  /**
+   * <code>addProbesInitializer</code> creates the synthetic method that returns the probe array of
+   * the class, allocating it via {@link CoverageLog#probes(String)} on first use. Concurrent first
+   * calls may allocate more than one array, <code>CoverageLog</code> adds up the counts of all of
+   * them.
+   */
+  private void addProbesInitializer() {
+    MethodVisitor mv = super.visitMethod(
+        Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+        PROBES_INIT_METHOD, "()" + PROBES_DESC, null, null);
+    Label initialized = new Label();
+    mv.visitCode();
+    mv.visitFieldInsn(Opcodes.GETSTATIC, className, fName, fDesc);
+    mv.visitInsn(Opcodes.DUP);
+    mv.visitJumpInsn(Opcodes.IFNONNULL, initialized);
+    mv.visitInsn(Opcodes.POP);
+    mv.visitLdcInsn(classProbes.encode());
+    mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+        "org/cprover/coverage/CoverageLog",
+        "probes",
+        "(Ljava/lang/String;)" + PROBES_DESC,
+        false);
+    mv.visitInsn(Opcodes.DUP);
+    mv.visitFieldInsn(Opcodes.PUTSTATIC, className, fName, fDesc);
+    mv.visitLabel(initialized);
+    if (classVersion >= Opcodes.V1_6) {
+      mv.visitFrame(Opcodes.F_NEW, 0, new Object[0], 1, new Object[]{PROBES_DESC});
+    }
+    mv.visitInsn(Opcodes.ARETURN);
+    mv.visitMaxs(2, 0);
+    mv.visitEnd();
+  }
+
   /**
    * <code>isInstrumented</code> signals whether method was already instrumented
    * before.
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <code>FuzzBitmap</code> is the hit map handed to a coverage-guided fuzzer when instrumented code
+ * runs with the <code>fuzz</code> backend. It holds one byte per UID outside the heap, optionally
+ * in a memory-mapped file a fuzzer in another process reads, and counts hits up to 255 without
+ * synchronization. Between inputs the fuzzer reads the map, usually through {@link #hash()} which
+ * classifies counts into buckets first, and clears it with {@link #reset()}. Nothing is written
+ * to the DB.
+ */
+public final class FuzzBitmap extends HitCounters {
+
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that holds the file to map, the
+   * map is kept in memory if it is not set.
+   */
+  public static final String ENV_VAR = "BLUECOV_FUZZ_MAP";
+  /**
+   * <code>BUCKETS</code> maps counts to the bucket of hit counts fuzzers distinguish: 1, 2, 3,
+   * 4-7, 8-15, 16-31, 32-127 and 128-255 hits.
+   */
+  private static final byte[] BUCKETS = new byte[256];
+  /**
+   * <code>ZEROS</code> to clear the map with.
+   */
+  private static final byte[] ZEROS = new byte[4096];
+  /**
+   * <code>FNV_OFFSET</code> is the offset basis of the FNV-1a hash.
+   */
+  private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+  /**
+   * <code>FNV_PRIME</code> is the prime of the FNV-1a hash.
+   */
+  private static final long FNV_PRIME = 0x100000001B3L;
+
+  static {
+    int[] bounds = {0, 1, 2, 3, 4, 8, 16, 32, 128, 256};
+    for (int b = 1; b < bounds.length - 1; b++) {
+      for (int count = bounds[b]; count < bounds[b + 1]; count++) {
+        BUCKETS[count] = (byte) (1 << (b - 1));
+      }
+    }
+  }
+
+  /**
+   * <code>map</code> of counts indexed by UID.
+   */
+  private final ByteBuffer map;
+  /**
+   * <code>size</code> of the map in bytes, a multiple of 8.
+   */
+  private final int size;
+
+  /**
+   * Creates a new <code>FuzzBitmap</code> instance.
+   *
+   * @param map  the zeroed map as <code>ByteBuffer</code>
+   * @param size size of the map in bytes, a multiple of 8
+   */
+  private FuzzBitmap(final ByteBuffer map, final int size) {
+    this.map = map;
+    this.size = size;
+  }
+
+  /**
+   * <code>open</code> allocates the map for <code>capacity</code> UIDs, in the file configured by
+   * {@link #ENV_VAR} if there is one.
+   *
+   * @param capacity number of UIDs as <code>int</code>
+   * @return a <code>FuzzBitmap</code> instance
+   * @throws IOException if the file cannot be mapped
+   */
+  static FuzzBitmap open(final int capacity) throws IOException {
+    int size = (Math.max(capacity, 1) + 7) & ~7;
+    String file = System.getenv(ENV_VAR);
+    if (file == null || file.isEmpty()) {
+      return new FuzzBitmap(ByteBuffer.allocateDirect(size), size);
+    }
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      FuzzBitmap bitmap = new FuzzBitmap(channel.map(FileChannel.MapMode.READ_WRITE, 0, size),
+          size);
+      bitmap.reset();
+      return bitmap;
+    }
+  }
+
+  @Override
+  void increment(final int key) {
+    if (key < size) {
+      int count = map.get(key);
+      if (count != -1) {
+        map.put(key, (byte) (count + 1));
+      }
+    }
+  }
+
+  @Override
+  long get(final int key) {
+    return key < size ? map.get(key) & 0xFF : 0;
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  @Override
+  boolean isPersistent() {
+    // the fuzzer reads the counts, they never go to the DB
+    return true;
+  }
+
+  /**
+   * <code>reset</code> clears the map before the next input.
+   */
+  @Override
+  public void reset() {
+    ByteBuffer view = map.duplicate();
+    view.clear();
+    while (view.remaining() > ZEROS.length) {
+      view.put(ZEROS);
+    }
+    view.put(ZEROS, 0, view.remaining());
+  }
+
+  /**
+   * <code>getBucket</code> returns the bucket of the hit count of a goal.
+   *
+   * @param uid UID of the goal as <code>int</code>
+   * @return a single bit per bucket as <code>int</code>, 0 if the goal was not hit
+   */
+  public int getBucket(final int uid) {
+    return BUCKETS[(int) get(uid)] & 0xFF;
+  }
+
+  /**
+   * <code>hash</code> returns a hash of the buckets of all hit counts, so inputs hitting the same
+   * goals about as often hash alike. Runs of goals not hit are skipped eight at a time.
+   *
+   * @return a <code>long</code> value
+   */
+  public long hash() {
+    long hash = FNV_OFFSET;
+    for (int offset = 0; offset < size; offset += Long.BYTES) {
+      long word = map.getLong(offset);
+      if (word != 0) {
+        long buckets = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+          buckets = (buckets << 8) | (BUCKETS[map.get(offset + i) & 0xFF] & 0xFF);
+        }
+        hash = (hash ^ offset) * FNV_PRIME;
+        hash = (hash ^ buckets) * FNV_PRIME;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * <code>getBuffer</code> returns a read-only view of the raw hit counts indexed by UID.
+   *
+   * @return a <code>ByteBuffer</code> value
+   */
+  public ByteBuffer getBuffer() {
+    return map.asReadOnlyBuffer();
+  }
+}
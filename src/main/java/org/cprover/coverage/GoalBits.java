@@ -0,0 +1,129 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>GoalBits</code> is a concurrent set of UIDs kept as a bitset. Probes add the goal they hit,
+ * which after its first hit only reads one word, so the covered goals are known without scanning
+ * the counters.
+ * <p>
+ * The bitset is split into pages that are allocated on first use and never move, so a page added
+ * by one thread never loses the bits set concurrently by another.
+ */
+final class GoalBits {
+
+  /**
+   * <code>PAGE_BITS</code> is the base-2 logarithm of the number of UIDs per page.
+   */
+  private static final int PAGE_BITS = 10;
+  /**
+   * <code>PAGE_SIZE</code> is the number of UIDs per page.
+   */
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  /**
+   * <code>pages</code> of the bitset, <code>null</code> until a UID of the page is added.
+   */
+  private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+  /**
+   * <code>add</code> adds a UID to the set.
+   *
+   * @param uid UID of the goal as <code>int</code>
+   * @return <code>true</code> if the UID was not in the set yet
+   */
+  boolean add(final int uid) {
+    AtomicLongArray[] p = pages;
+    int pageIndex = uid >>> PAGE_BITS;
+    AtomicLongArray page = pageIndex < p.length ? p[pageIndex] : null;
+    if (page == null) {
+      page = allocatePage(pageIndex);
+    }
+    int word = (uid & (PAGE_SIZE - 1)) >>> 6;
+    long bit = 1L << uid;
+    long old = page.get(word);
+    while ((old & bit) == 0) {
+      if (page.compareAndSet(word, old, old | bit)) {
+        return true;
+      }
+      old = page.get(word);
+    }
+    return false;
+  }
+
+  /**
+   * <code>contains</code> signals whether a UID is in the set.
+   *
+   * @param uid UID of the goal as <code>int</code>
+   * @return a <code>boolean</code> value
+   */
+  boolean contains(final int uid) {
+    AtomicLongArray[] p = pages;
+    int pageIndex = uid >>> PAGE_BITS;
+    AtomicLongArray page = pageIndex < p.length ? p[pageIndex] : null;
+    return page != null && (page.get((uid & (PAGE_SIZE - 1)) >>> 6) & 1L << uid) != 0;
+  }
+
+  /**
+   * <code>toWords</code> returns the set as the words of a bitset indexed by UID, as kept by
+   * {@link CoverageSnapshot}.
+   *
+   * @return the bitset as <code>long[]</code>
+   */
+  long[] toWords() {
+    AtomicLongArray[] p = pages;
+    long[] words = new long[p.length * (PAGE_SIZE >>> 6)];
+    for (int i = 0; i < p.length; i++) {
+      if (p[i] != null) {
+        for (int j = 0; j < p[i].length(); j++) {
+          words[i * (PAGE_SIZE >>> 6) + j] = p[i].get(j);
+        }
+      }
+    }
+    return words;
+  }
+
+  /**
+   * <code>clear</code> removes all UIDs. UIDs added concurrently may or may not be kept.
+   */
+  void clear() {
+    for (AtomicLongArray page : pages) {
+      if (page != null) {
+        for (int j = 0; j < page.length(); j++) {
+          page.set(j, 0L);
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>allocatePage</code> allocates a page, enlarging the page table if necessary.
+   *
+   * @param pageIndex index of the page as <code>int</code>
+   * @return the page as <code>AtomicLongArray</code>
+   */
+  private synchronized AtomicLongArray allocatePage(final int pageIndex) {
+    AtomicLongArray[] p = pages;
+    if (pageIndex >= p.length) {
+      p = Arrays.copyOf(p, Math.max(pageIndex + 1, p.length * 2));
+    }
+    if (p[pageIndex] == null) {
+      p[pageIndex] = new AtomicLongArray(PAGE_SIZE >>> 6);
+    }
+    pages = p;
+    return p[pageIndex];
+  }
+}
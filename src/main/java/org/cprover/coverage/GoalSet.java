@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Arrays;
+
+/**
+ * <code>GoalSet</code> compresses the set of goals covered by a test for the DB. Sparse sets are
+ * stored as variable-length gaps between ascending UIDs, dense sets as a bitset, whichever is
+ * smaller, so a test costs a few bytes per covered goal at most.
+ */
+final class GoalSet {
+
+  /**
+   * <code>GAPS</code> tags a set stored as variable-length gaps.
+   */
+  private static final byte GAPS = 0;
+  /**
+   * <code>BITS</code> tags a set stored as a bitset.
+   */
+  private static final byte BITS = 1;
+
+  /**
+   * Not instantiated.
+   */
+  private GoalSet() {
+  }
+
+  /**
+   * <code>encode</code> compresses a set of UIDs.
+   *
+   * @param uids the UIDs in ascending order as <code>int[]</code>
+   * @return the compressed set as <code>byte[]</code>
+   */
+  static byte[] encode(final int[] uids) {
+    int bitsLength = uids.length == 0 ? 1 : 1 + (uids[uids.length - 1] >>> 3) + 1;
+    int gapsLength = 1;
+    int previous = -1;
+    for (int uid : uids) {
+      gapsLength += varIntLength(uid - previous - 1);
+      previous = uid;
+      if (gapsLength > bitsLength) {
+        break;
+      }
+    }
+    if (gapsLength > bitsLength) {
+      byte[] result = new byte[bitsLength];
+      result[0] = BITS;
+      for (int uid : uids) {
+        result[1 + (uid >>> 3)] |= (byte) (1 << (uid & 7));
+      }
+      return result;
+    }
+    byte[] result = new byte[gapsLength];
+    result[0] = GAPS;
+    int pos = 1;
+    previous = -1;
+    for (int uid : uids) {
+      int gap = uid - previous - 1;
+      while ((gap & ~0x7F) != 0) {
+        result[pos++] = (byte) ((gap & 0x7F) | 0x80);
+        gap >>>= 7;
+      }
+      result[pos++] = (byte) gap;
+      previous = uid;
+    }
+    return result;
+  }
+
+  /**
+   * <code>decode</code> expands a set compressed by {@link #encode(int[])}.
+   *
+   * @param data the compressed set as <code>byte[]</code>
+   * @return the UIDs in ascending order as <code>int[]</code>
+   */
+  static int[] decode(final byte[] data) {
+    int[] result = new int[Math.max(16, data.length)];
+    int size = 0;
+    if (data[0] == BITS) {
+      for (int i = 1; i < data.length; i++) {
+        int bits = data[i] & 0xFF;
+        while (bits != 0) {
+          if (size == result.length) {
+            result = Arrays.copyOf(result, result.length * 2);
+          }
+          result[size++] = ((i - 1) << 3) + Integer.numberOfTrailingZeros(bits);
+          bits &= bits - 1;
+        }
+      }
+    } else {
+      int previous = -1;
+      int pos = 1;
+      while (pos < data.length) {
+        int gap = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = data[pos++];
+          gap |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        previous += gap + 1;
+        result[size++] = previous;
+      }
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /**
+   * <code>union</code> merges two compressed sets.
+   *
+   * @param a a compressed set as <code>byte[]</code>
+   * @param b another compressed set as <code>byte[]</code>
+   * @return the compressed union as <code>byte[]</code>
+   */
+  static byte[] union(final byte[] a, final byte[] b) {
+    int[] x = decode(a);
+    int[] y = decode(b);
+    int[] result = new int[x.length + y.length];
+    int i = 0;
+    int j = 0;
+    int size = 0;
+    while (i < x.length || j < y.length) {
+      if (j == y.length || (i < x.length && x[i] < y[j])) {
+        result[size++] = x[i++];
+      } else {
+        if (i < x.length && x[i] == y[j]) {
+          i++;
+        }
+        result[size++] = y[j++];
+      }
+    }
+    return encode(Arrays.copyOf(result, size));
+  }
+
+  /**
+   * <code>varIntLength</code> returns the number of bytes of a non-negative variable-length
+   * integer.
+   *
+   * @param value an <code>int</code> value
+   * @return the number of bytes as <code>int</code>
+   */
+  private static int varIntLength(final int value) {
+    int length = 1;
+    int rest = value >>> 7;
+    while (rest != 0) {
+      length++;
+      rest >>>= 7;
+    }
+    return length;
+  }
+}
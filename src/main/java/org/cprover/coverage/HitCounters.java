@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+/**
+ * <code>HitCounters</code> is the in-memory store of hit counts used by <code>CoverageLog</code>
+ * while the instrumented code runs, indexed by UID. The implementation depends on the {@link
+ * CountingMode} the classes were instrumented with.
+ */
+abstract class HitCounters {
+
+  /**
+   * <code>create</code> returns the store for a counting mode.
+   *
+   * @param mode            the <code>CountingMode</code> of the counts
+   * @param saturationLimit the limit of {@link CountingMode#SATURATING} counts as <code>long</code>
+   * @param capacity        the number of registered UIDs as <code>int</code>
+   * @return a <code>HitCounters</code> instance
+   */
+  static HitCounters create(
+      final CountingMode mode,
+      final long saturationLimit,
+      final int capacity) {
+    if (mode == CountingMode.EXACT) {
+      return new CoverageCounters(capacity);
+    }
+    return new PlainCounters(capacity, mode.limit(saturationLimit));
+  }
+
+  /**
+   * <code>increment</code> counts a hit of <code>key</code>.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   */
+  abstract void increment(int key);
+
+  /**
+   * <code>add</code> counts <code>delta</code> hits of <code>key</code> at once, e.g. the hits of a
+   * probe array. Persistent stores override it.
+   *
+   * @param key   UID of the basic block as <code>int</code>
+   * @param delta number of hits as <code>long</code>
+   */
+  void add(final int key, final long delta) {
+    for (long i = 0; i < delta; i++) {
+      increment(key);
+    }
+  }
+
+  /**
+   * <code>get</code> returns the count of <code>key</code>.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   * @return the count as <code>long</code>
+   */
+  abstract long get(int key);
+
+  /**
+   * <code>size</code> returns the number of UIDs that can currently be stored, any UID beyond it
+   * has a count of zero.
+   *
+   * @return an <code>int</code> value
+   */
+  abstract int size();
+
+  /**
+   * <code>reset</code> sets all counters to zero. Hits recorded concurrently may survive.
+   */
+  abstract void reset();
+
+  /**
+   * <code>isPersistent</code> signals whether counts are stored outside the JVM as they are
+   * recorded, so they need not be written to the DB.
+   *
+   * @return a <code>boolean</code> value
+   */
+  boolean isPersistent() {
+    return false;
+  }
+}
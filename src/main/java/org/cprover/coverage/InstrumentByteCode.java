@@ -13,16 +13,18 @@
  */
 package org.cprover.coverage;
 
-import java.util.HashMap;
 import java.util.List;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.LocalVariablesSorter;
 
 /**
- * <code>InstrumentByteCode</code> adds <code>record</code> calls to
- * bytecode.
+ * <code>InstrumentByteCode</code> adds probes to bytecode, either <code>record</code> calls,
+ * increments of the probe array of the class or <code>invokedynamic</code> call sites depending on
+ * the {@link ProbeStyle}.
  */
 public class InstrumentByteCode extends MethodVisitor {
 
@@ -32,6 +34,25 @@ public class InstrumentByteCode extends MethodVisitor {
    * location integer constant before invoking "record", adding 2 elements to the stack.
    */
   private static final int WORST_CASE_STACK_OFFSET = 2;
+  /**
+   * Stack size needed by {@link ProbeStyle#ARRAY} probes: the array, the index duplicated by
+   * <code>DUP2</code> and two long values, the count and either one or the saturation limit.
+   */
+  private static final int ARRAY_STACK_OFFSET = 6;
+  /**
+   * Stack size needed by {@link CountingMode#BOOLEAN} {@link ProbeStyle#ARRAY} probes: the array,
+   * the index and the long value one.
+   */
+  private static final int BOOLEAN_ARRAY_STACK_OFFSET = 4;
+  /**
+   * <code>BOOTSTRAP</code> links the call sites of {@link ProbeStyle#INDY} probes.
+   */
+  private static final Handle BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+      "org/cprover/coverage/CoverageLog",
+      "bootstrap",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+          + "Ljava/lang/invoke/MethodType;I)Ljava/lang/invoke/CallSite;",
+      false);
   /**
    * <code>debug</code> toggles debug output.
    */
@@ -45,9 +66,15 @@ public class InstrumentByteCode extends MethodVisitor {
    */
   private String methodName;
   /**
-   * <code>offetsetIdMap</code> map from offsets to UIDs.
+   * <code>methodProbes</code> of the method sorted by instruction index, <code>null</code> if it
+   * contains no probe.
    */
-  private HashMap<Integer, Integer> offsetIdMap;
+  private ClassProbes.MethodProbes methodProbes;
+  /**
+   * <code>nextProbe</code> is the position in <code>methodProbes</code> of the first probe not
+   * before the current instruction.
+   */
+  private int nextProbe;
 
   /**
    * <code>instrumentedLocs</code> list of instrumented locations.
@@ -63,27 +90,66 @@ public class InstrumentByteCode extends MethodVisitor {
    * <code>bcLine</code> is the bytecode offset.
    */
   private int bcLine = 0;
+  /**
+   * <code>classProbes</code> are the probes of the class.
+   */
+  private ClassProbes classProbes;
+  /**
+   * <code>sorter</code> allocates the local holding the probe array for {@link ProbeStyle#ARRAY},
+   * <code>null</code> otherwise.
+   */
+  private LocalVariablesSorter sorter;
+  /**
+   * <code>probeTarget</code> is the visitor probes using the probe array are emitted to. It
+   * follows <code>sorter</code>, so that the local of the probe array is not remapped.
+   */
+  private MethodVisitor probeTarget;
+  /**
+   * <code>probeLocal</code> is the local holding the probe array.
+   */
+  private int probeLocal;
 
   /**
    * Creates a new <code>InstrumentByteCode</code> instance.
    *
    * @param mv                    a <code>MethodVisitor</code> value
+   * @param access                ACCESS bits of method as <code>int</code>
+   * @param desc                  method type as Java <code>String</code> encoding
    * @param name                  <code>String</code> name of class
    * @param mName                 <code>String</code> name of method
-   * @param offsetUIDMap          <code>HashMap</code> from offsets to UIDs
    * @param instrumentedLocations <code>List</code> of locations to instrument
+   * @param probes                the <code>ClassProbes</code> of the class
    */
   public InstrumentByteCode(
       final MethodVisitor mv,
+      final int access,
+      final String desc,
       final String name,
       final String mName,
-      final HashMap<Integer, Integer> offsetUIDMap,
-      final List<Integer> instrumentedLocations) {
-    super(Opcodes.ASM5, mv);
+      final List<Integer> instrumentedLocations,
+      final ClassProbes probes) {
+    super(Opcodes.ASM5, usesProbeArray(probes, mName)
+        ? new LocalVariablesSorter(access, desc, mv) : mv);
     this.className = name;
     this.methodName = mName;
-    this.offsetIdMap = offsetUIDMap;
+    this.methodProbes = probes.getMethodProbes(mName);
     this.instrumentedLocs = instrumentedLocations;
+    this.classProbes = probes;
+    if (this.mv != mv) {
+      this.sorter = (LocalVariablesSorter) this.mv;
+      this.probeTarget = mv;
+    }
+  }
+
+  /**
+   * <code>usesProbeArray</code> signals whether a method needs to load the probe array.
+   *
+   * @param probes the <code>ClassProbes</code> of the class
+   * @param mName  <code>String</code> name of method
+   * @return a <code>boolean</code> value
+   */
+  private static boolean usesProbeArray(final ClassProbes probes, final String mName) {
+    return probes.getStyle() == ProbeStyle.ARRAY && probes.hasProbes(mName);
   }
 
   /**
@@ -106,9 +172,36 @@ public class InstrumentByteCode extends MethodVisitor {
     }
   }
 
+  /**
+   * <code>debug</code> output of a number, only concatenated if enabled.
+   *
+   * @param msg   a <code>String</code> value
+   * @param value an <code>int</code> value
+   */
+  final void debug(final String msg, final int value) {
+    if (debug) {
+      System.out.println(msg + value);
+    }
+  }
+
+  /**
+   * <code>visitCode</code> loads the probe array into a local at the entry of methods with probes
+   * for {@link ProbeStyle#ARRAY}.
+   */
+  @Override
+  public void visitCode() {
+    super.visitCode();
+    if (sorter != null) {
+      probeLocal = sorter.newLocal(Type.getType(FieldAdapter.PROBES_DESC));
+      probeTarget.visitMethodInsn(Opcodes.INVOKESTATIC, className,
+          FieldAdapter.PROBES_INIT_METHOD, "()" + FieldAdapter.PROBES_DESC, false);
+      probeTarget.visitVarInsn(Opcodes.ASTORE, probeLocal);
+    }
+  }
+
   @Override
   public final void visitInsn(final int opcode) {
-    debug("ins @ " + bcLine);
+    debug("ins @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitInsn(opcode);
@@ -116,7 +209,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitIntInsn(final int opcode, final int operand) {
-    debug("int @ " + bcLine);
+    debug("int @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitIntInsn(opcode, operand);
@@ -124,7 +217,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitVarInsn(final int opcode, final int var) {
-    debug("var @ " + bcLine);
+    debug("var @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitVarInsn(opcode, var);
@@ -132,7 +225,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitTypeInsn(final int opcode, final String desc) {
-    debug("type @ " + bcLine);
+    debug("type @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitTypeInsn(opcode, desc);
@@ -144,7 +237,7 @@ public class InstrumentByteCode extends MethodVisitor {
       final String owner,
       final String name,
       final String desc) {
-    debug("field @ " + bcLine);
+    debug("field @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitFieldInsn(opcode, owner, name, desc);
@@ -157,7 +250,7 @@ public class InstrumentByteCode extends MethodVisitor {
       final String name,
       final String desc,
       final boolean itf) {
-    debug("invk @ " + bcLine);
+    debug("invk @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitMethodInsn(opcode, owner, name, desc, itf);
@@ -169,7 +262,7 @@ public class InstrumentByteCode extends MethodVisitor {
       final String desc,
       final Handle bsm,
       final Object... bsmArgs) {
-    debug("invkdyn @ " + bcLine);
+    debug("invkdyn @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
@@ -177,7 +270,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitJumpInsn(final int opcode, final Label label) {
-    debug("jump @ " + bcLine);
+    debug("jump @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitJumpInsn(opcode, label);
@@ -185,7 +278,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitLdcInsn(final Object cst) {
-    debug("ldc @ " + bcLine);
+    debug("ldc @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitLdcInsn(cst);
@@ -193,7 +286,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitIincInsn(final int opcode, final int increment) {
-    debug("iinc @ " + bcLine);
+    debug("iinc @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitIincInsn(opcode, increment);
@@ -205,7 +298,7 @@ public class InstrumentByteCode extends MethodVisitor {
       final int max,
       final Label dflt,
       final Label... labels) {
-    debug("table switch @ " + bcLine);
+    debug("table switch @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitTableSwitchInsn(min, max, dflt, labels);
@@ -216,7 +309,7 @@ public class InstrumentByteCode extends MethodVisitor {
       final Label dflt,
       final int[] keys,
       final Label[] labels) {
-    debug("lookup switch @ " + bcLine);
+    debug("lookup switch @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitLookupSwitchInsn(dflt, keys, labels);
@@ -224,7 +317,7 @@ public class InstrumentByteCode extends MethodVisitor {
 
   @Override
   public final void visitMultiANewArrayInsn(final String desc, final int dims) {
-    debug("multianewarray @ " + bcLine);
+    debug("multianewarray @ ", bcLine);
     instrumentByteCode(bcLine);
     bcLine += 1;
     super.visitMultiANewArrayInsn(desc, dims);
@@ -233,27 +326,31 @@ public class InstrumentByteCode extends MethodVisitor {
 
   /**
    * <code>shouldBeInstrumented</code> signals whether bytecode index should be
-   * instrumented.
+   * instrumented. Instructions are visited in ascending order, so it only advances through the
+   * probes of the method.
    *
    * @param bcIndex an <code>int</code> value
    * @return a <code>boolean</code> value
    */
   final boolean shouldBeInstrumented(final int bcIndex) {
-    return offsetIdMap.containsKey(
-        CoverageLog.getInstance(false)
-            .getCoverageHash(className, methodName, bcIndex));
+    if (methodProbes == null) {
+      return false;
+    }
+    while (nextProbe < methodProbes.size() && methodProbes.getOffset(nextProbe) < bcIndex) {
+      nextProbe++;
+    }
+    return nextProbe < methodProbes.size() && methodProbes.getOffset(nextProbe) == bcIndex;
   }
 
   /**
-   * <code>getUniqueIdentifier</code> returns UID of byecode index.
+   * <code>getUniqueIdentifier</code> returns UID of byecode index, which must have been checked
+   * by {@link #shouldBeInstrumented(int)}.
    *
    * @param bcIndex an <code>int</code> value
    * @return <code>int</code> UID value
    */
   final int getUniqueIdentifier(final int bcIndex) {
-    return offsetIdMap.get(
-        CoverageLog.getInstance(false)
-            .getCoverageHash(className, methodName, bcIndex));
+    return methodProbes.getUid(nextProbe);
   }
 
   /**
@@ -265,30 +362,82 @@ public class InstrumentByteCode extends MethodVisitor {
   final void instrumentByteCode(final int bcIndex) {
     if (shouldBeInstrumented(bcLine)) {
       lastMethodWasInstrumented = true;
-      // get instance from static field
-      // push value to record
-      // call `record` on CoverageLog
-      super.visitFieldInsn(Opcodes.GETSTATIC, this.className,
-          "diffblue_coverage_reporter",
-          "Lorg/cprover/coverage/CoverageLog;");
-      super.visitLdcInsn(getUniqueIdentifier(bcLine));
-      super.visitMethodInsn(Opcodes.INVOKEVIRTUAL,
-          "org/cprover/coverage/CoverageLog",
-          "record",
-          "(I)V",
-          false);
-      debug("added ID " + getUniqueIdentifier(bcLine));
+      if (sorter != null) {
+        // update the counter of the probe in the probe array
+        probeTarget.visitVarInsn(Opcodes.ALOAD, probeLocal);
+        pushInt(probeTarget, classProbes.getProbeId(getUniqueIdentifier(bcLine)));
+        if (classProbes.getCountingMode() == CountingMode.BOOLEAN) {
+          probeTarget.visitInsn(Opcodes.LCONST_1);
+        } else {
+          probeTarget.visitInsn(Opcodes.DUP2);
+          probeTarget.visitInsn(Opcodes.LALOAD);
+          probeTarget.visitInsn(Opcodes.LCONST_1);
+          probeTarget.visitInsn(Opcodes.LADD);
+          if (classProbes.getCountingMode() == CountingMode.SATURATING) {
+            // branch-free, so no stack map frames have to be added
+            probeTarget.visitLdcInsn(classProbes.getSaturationLimit());
+            probeTarget.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math",
+                "min", "(JJ)J", false);
+          }
+        }
+        probeTarget.visitInsn(Opcodes.LASTORE);
+      } else if (classProbes.getStyle() == ProbeStyle.INDY) {
+        // call site that retires itself after the first hit
+        super.visitInvokeDynamicInsn("probe", "()V", BOOTSTRAP,
+            getUniqueIdentifier(bcLine));
+      } else {
+        // get instance from static field
+        // push value to record
+        // call `record` on CoverageLog
+        super.visitFieldInsn(Opcodes.GETSTATIC, this.className,
+            "diffblue_coverage_reporter",
+            "Lorg/cprover/coverage/CoverageLog;");
+        super.visitLdcInsn(getUniqueIdentifier(bcLine));
+        super.visitMethodInsn(Opcodes.INVOKEVIRTUAL,
+            "org/cprover/coverage/CoverageLog",
+            "record",
+            "(I)V",
+            false);
+      }
+      debug("added ID ", getUniqueIdentifier(bcLine));
       instrumentedLocs.add(getUniqueIdentifier(bcLine));
     }
   }
 
+  /**
+   * <code>pushInt</code> pushes an <code>int</code> constant using the shortest instruction.
+   *
+   * @param target the <code>MethodVisitor</code> to emit the instruction to
+   * @param value  the <code>int</code> value to push
+   */
+  static void pushInt(final MethodVisitor target, final int value) {
+    if (value >= -1 && value <= 5) {
+      target.visitInsn(Opcodes.ICONST_0 + value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      target.visitIntInsn(Opcodes.BIPUSH, value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      target.visitIntInsn(Opcodes.SIPUSH, value);
+    } else {
+      target.visitLdcInsn(value);
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.objectweb.asm.MethodVisitor#visitMaxs(int, int)
    */
   @Override
   public void visitMaxs(final int maxStack, final int maxLocals) {
     if (lastMethodWasInstrumented) {
-      super.visitMaxs(maxStack + WORST_CASE_STACK_OFFSET, maxLocals);
+      int offset;
+      if (sorter != null) {
+        offset = classProbes.getCountingMode() == CountingMode.BOOLEAN
+            ? BOOLEAN_ARRAY_STACK_OFFSET : ARRAY_STACK_OFFSET;
+      } else if (classProbes.getStyle() == ProbeStyle.INDY) {
+        offset = 0;
+      } else {
+        offset = WORST_CASE_STACK_OFFSET;
+      }
+      super.visitMaxs(maxStack + offset, maxLocals);
     } else {
       super.visitMaxs(maxStack, maxLocals);
     }
@@ -13,7 +13,6 @@
  */
 package org.cprover.coverage;
 
-import java.util.HashMap;
 import java.util.List;
 import org.objectweb.asm.MethodVisitor;
 
@@ -27,18 +26,22 @@ public final class InstrumentByteCodeVisitor extends InstrumentByteCode {
    * Creates a new <code>InstrumentByteCodeVisitor</code> instance.
    *
    * @param mv                    a <code>MethodVisitor</code> value
+   * @param access                ACCESS bits of method as <code>int</code>
+   * @param desc                  method type as Java <code>String</code> encoding
    * @param name                  <code>String</code> name of class
    * @param mName                 <code>String</code> name of method
-   * @param offsetUIDMap          <code>HashMap</code> from offsets to UIDs
    * @param instrumentedLocations <code>List</code> of locations to instrument
+   * @param probes                the <code>ClassProbes</code> of the class
    */
   public InstrumentByteCodeVisitor(
       final MethodVisitor mv,
+      final int access,
+      final String desc,
       final String name,
       final String mName,
-      final HashMap<Integer, Integer> offsetUIDMap,
-      final List<Integer> instrumentedLocations) {
-    super(mv, name, mName, offsetUIDMap, instrumentedLocations);
+      final List<Integer> instrumentedLocations,
+      final ClassProbes probes) {
+    super(mv, access, desc, name, mName, instrumentedLocations, probes);
   }
 
   @Override
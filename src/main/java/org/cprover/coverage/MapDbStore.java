@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Map;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+/**
+ * <code>MapDbStore</code> is the {@link CoverageStore} kept in a MapDB file. It is the only class
+ * referring to MapDB and is left out of the runtime jar.
+ */
+final class MapDbStore implements CoverageStore {
+
+  /**
+   * <code>db</code> holding the maps.
+   */
+  private final DB db;
+
+  /**
+   * Creates a new <code>MapDbStore</code> instance in a file, waiting for other processes using
+   * it. Called by {@link CoverageStore#open(String, boolean)}.
+   *
+   * @param fileName    name of the DB file as <code>String</code>
+   * @param cleanerHack whether to unmap files eagerly as <code>boolean</code>
+   */
+  MapDbStore(final String fileName, final boolean cleanerHack) {
+    DBMaker.Maker maker = DBMaker
+        .fileDB(fileName)
+        .cleanerHackEnable()
+        .fileMmapEnable()
+        .fileMmapEnableIfSupported()
+        // write-ahead log, a crash never leaves a partially written checkpoint
+        .transactionEnable();
+    if (cleanerHack) {
+      maker = maker.cleanerHackEnable();
+    }
+    // We need to wait in case other instances are using the DB.
+    maker.fileLockWait();
+    this.db = maker.make();
+  }
+
+  @Override
+  public <K, V> Map<K, V> map(final String name, final Class<K> keyType, final Class<V> valueType) {
+    return db.hashMap(name, serializer(keyType), serializer(valueType)).createOrOpen();
+  }
+
+  @Override
+  public boolean exists(final String name) {
+    return db.exists(name);
+  }
+
+  @Override
+  public void commit() {
+    db.commit();
+  }
+
+  @Override
+  public void rollback() {
+    db.rollback();
+  }
+
+  @Override
+  public void close() {
+    db.close();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return db.isClosed();
+  }
+
+  /**
+   * <code>serializer</code> returns the serializer of a type stored in the DB.
+   *
+   * @param type the stored type as <code>Class</code>
+   * @param <T>  the stored type
+   * @return a <code>Serializer</code> instance
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Serializer<T> serializer(final Class<T> type) {
+    Serializer<?> serializer;
+    if (type == Integer.class) {
+      serializer = Serializer.INTEGER;
+    } else if (type == Long.class) {
+      serializer = Serializer.LONG;
+    } else if (type == String.class) {
+      serializer = Serializer.STRING;
+    } else if (type == int[].class) {
+      serializer = Serializer.INT_ARRAY;
+    } else if (type == byte[].class) {
+      serializer = Serializer.BYTE_ARRAY;
+    } else {
+      throw new IllegalArgumentException("no serializer for " + type);
+    }
+    return (Serializer<T>) serializer;
+  }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <code>MappedAtomics</code> provides atomic operations on the 64-bit values of a direct
+ * <code>ByteBuffer</code>, such as a mapped file shared between JVMs. Values are addressed by
+ * their byte index, which must be a multiple of 8.
+ * <p>
+ * Java 9 and later provide these operations through a <code>VarHandle</code> viewing the buffer
+ * as <code>long[]</code>. The sources are compiled for Java 8, so the <code>VarHandle</code> is
+ * looked up reflectively and used through method handles. On Java 8 the same operations are
+ * taken from <code>sun.misc.Unsafe</code>, which is only ever referenced here and only
+ * reflectively.
+ */
+final class MappedAtomics {
+
+  /**
+   * <code>GET_VOLATILE</code> of type <code>(ByteBuffer, int)long</code>.
+   */
+  private static final MethodHandle GET_VOLATILE;
+  /**
+   * <code>SET_VOLATILE</code> of type <code>(ByteBuffer, int, long)void</code>.
+   */
+  private static final MethodHandle SET_VOLATILE;
+  /**
+   * <code>GET_AND_ADD</code> of type <code>(ByteBuffer, int, long)long</code>.
+   */
+  private static final MethodHandle GET_AND_ADD;
+  /**
+   * <code>COMPARE_AND_SET</code> of type <code>(ByteBuffer, int, long, long)boolean</code>.
+   */
+  private static final MethodHandle COMPARE_AND_SET;
+  /**
+   * <code>bufferAddress</code> reads the address of a direct buffer, used on Java 8 only.
+   */
+  private static MethodHandle bufferAddress;
+
+  static {
+    MethodHandle[] handles;
+    try {
+      handles = varHandles();
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      handles = unsafeHandles();
+    }
+    GET_VOLATILE = handles[0];
+    SET_VOLATILE = handles[1];
+    GET_AND_ADD = handles[2];
+    COMPARE_AND_SET = handles[3];
+  }
+
+  /**
+   * Creates a new <code>MappedAtomics</code> instance.
+   */
+  private MappedAtomics() {
+  }
+
+  /**
+   * <code>isAvailable</code> tells whether this JVM supports atomic operations on buffers.
+   *
+   * @return a <code>boolean</code> value
+   */
+  static boolean isAvailable() {
+    return GET_VOLATILE != null;
+  }
+
+  /**
+   * <code>getVolatile</code> reads a value with volatile semantics.
+   *
+   * @param buffer the direct <code>ByteBuffer</code>
+   * @param index  byte index of the value as <code>int</code>
+   * @return the value as <code>long</code>
+   */
+  static long getVolatile(final ByteBuffer buffer, final int index) {
+    try {
+      return (long) GET_VOLATILE.invokeExact(buffer, index);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  /**
+   * <code>setVolatile</code> writes a value with volatile semantics.
+   *
+   * @param buffer the direct <code>ByteBuffer</code>
+   * @param index  byte index of the value as <code>int</code>
+   * @param value  the value as <code>long</code>
+   */
+  static void setVolatile(final ByteBuffer buffer, final int index, final long value) {
+    try {
+      SET_VOLATILE.invokeExact(buffer, index, value);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  /**
+   * <code>getAndAdd</code> adds to a value atomically.
+   *
+   * @param buffer the direct <code>ByteBuffer</code>
+   * @param index  byte index of the value as <code>int</code>
+   * @param delta  the amount to add as <code>long</code>
+   * @return the previous value as <code>long</code>
+   */
+  static long getAndAdd(final ByteBuffer buffer, final int index, final long delta) {
+    try {
+      return (long) GET_AND_ADD.invokeExact(buffer, index, delta);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  /**
+   * <code>compareAndSet</code> replaces a value atomically if it is the expected one.
+   *
+   * @param buffer   the direct <code>ByteBuffer</code>
+   * @param index    byte index of the value as <code>int</code>
+   * @param expected the expected value as <code>long</code>
+   * @param value    the new value as <code>long</code>
+   * @return whether the value was replaced
+   */
+  static boolean compareAndSet(
+      final ByteBuffer buffer,
+      final int index,
+      final long expected,
+      final long value) {
+    try {
+      return (boolean) COMPARE_AND_SET.invokeExact(buffer, index, expected, value);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  /**
+   * <code>rethrow</code> rethrows what a method handle threw, which can only be unchecked.
+   *
+   * @param t the <code>Throwable</code>
+   * @return nothing, declared so callers can <code>throw</code> it
+   */
+  private static RuntimeException rethrow(final Throwable t) {
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new IllegalStateException(t);
+  }
+
+  /**
+   * <code>varHandles</code> looks up the operations of a <code>VarHandle</code> viewing buffers
+   * as <code>long[]</code> in native byte order, available from Java 9.
+   *
+   * @return the handles in the order of the fields
+   * @throws ReflectiveOperationException before Java 9
+   */
+  private static MethodHandle[] varHandles() throws ReflectiveOperationException {
+    Object view = MethodHandles.class
+        .getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class)
+        .invoke(null, long[].class, ByteOrder.nativeOrder());
+    Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Class<? extends Enum> accessMode =
+        (Class<? extends Enum>) Class.forName("java.lang.invoke.VarHandle$AccessMode");
+    Method toMethodHandle = varHandle.getMethod("toMethodHandle", accessMode);
+    String[] modes = {"GET_VOLATILE", "SET_VOLATILE", "GET_AND_ADD", "COMPARE_AND_SET"};
+    MethodHandle[] handles = new MethodHandle[modes.length];
+    for (int i = 0; i < modes.length; i++) {
+      @SuppressWarnings("unchecked")
+      Object mode = Enum.valueOf(accessMode, modes[i]);
+      handles[i] = (MethodHandle) toMethodHandle.invoke(view, mode);
+    }
+    return handles;
+  }
+
+  /**
+   * <code>unsafeHandles</code> looks up the same operations on <code>sun.misc.Unsafe</code>,
+   * addressing a value by the address of the buffer plus its index.
+   *
+   * @return the handles in the order of the fields, all <code>null</code> if unavailable
+   */
+  private static MethodHandle[] unsafeHandles() {
+    MethodHandle[] handles = new MethodHandle[4];
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = type.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      Field address = Buffer.class.getDeclaredField("address");
+      address.setAccessible(true);
+      bufferAddress = lookup.unreflectGetter(address)
+          .asType(MethodType.methodType(long.class, ByteBuffer.class));
+      MethodHandle slot = lookup.findStatic(MappedAtomics.class, "address",
+          MethodType.methodType(long.class, ByteBuffer.class, int.class));
+      Class<?>[][] parameters = {
+          {Object.class, long.class},
+          {Object.class, long.class, long.class},
+          {Object.class, long.class, long.class},
+          {Object.class, long.class, long.class, long.class}};
+      String[] names = {"getLongVolatile", "putLongVolatile", "getAndAddLong",
+          "compareAndSwapLong"};
+      for (int i = 0; i < names.length; i++) {
+        MethodHandle handle = lookup.unreflect(type.getMethod(names[i], parameters[i]))
+            .bindTo(unsafe);
+        // (Object, long, ...) on a null base is (address, ...) on (buffer, index, ...)
+        handle = MethodHandles.insertArguments(handle, 0, (Object) null);
+        handles[i] = MethodHandles.collectArguments(handle, 0, slot);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return new MethodHandle[4];
+    }
+    return handles;
+  }
+
+  /**
+   * <code>address</code> of a value in a direct buffer, used on Java 8 only.
+   *
+   * @param buffer the direct <code>ByteBuffer</code>
+   * @param index  byte index of the value as <code>int</code>
+   * @return the address as <code>long</code>
+   * @throws Throwable never, the getter is exact
+   */
+  private static long address(final ByteBuffer buffer, final int index) throws Throwable {
+    return (long) bufferAddress.invokeExact(buffer) + index;
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * <code>MappedCounters</code> keeps counts in a memory-mapped file shared by all JVMs running
+ * against the same coverage database. The file holds a header followed by one 64-bit counter per
+ * UID, and every JVM updates the counters in place with the atomic operations of
+ * <code>MappedAtomics</code>. There is nothing to
+ * merge at shutdown and counts survive the JVM being killed.
+ * <p>
+ * Counters beyond the end of the file are added by extending the file under a file lock and
+ * mapping it again. Earlier mappings are kept, so threads still using them never touch unmapped
+ * memory.
+ * <p>
+ * The file holds the counts of every JVM and of earlier runs, so {@link #reset()} only resets the
+ * counts seen by this instance by keeping a baseline it subtracts. {@link #clear()} sets the
+ * counters in the file to zero.
+ */
+final class MappedCounters extends HitCounters {
+
+  /**
+   * <code>SUFFIX</code> appended to the database file name.
+   */
+  static final String SUFFIX = ".counters";
+  /**
+   * <code>MAGIC</code> number at the start of the file, "BLUECOV1".
+   */
+  private static final long MAGIC = 0x424C5545434F5631L;
+  /**
+   * <code>HEADER</code> size in bytes, one cache line.
+   */
+  private static final int HEADER = 64;
+  /**
+   * <code>GROWTH</code> is the number of counters the file grows by at least, one page.
+   */
+  private static final int GROWTH = 512;
+
+  /**
+   * <code>file</code> holding the counters.
+   */
+  private final Path file;
+  /**
+   * <code>channel</code> of the counter file.
+   */
+  private final FileChannel channel;
+  /**
+   * <code>limit</code> is the highest count of a goal.
+   */
+  private final long limit;
+  /**
+   * <code>mappings</code> of the file made so far, kept reachable so they are never unmapped.
+   */
+  private final ArrayList<MappedByteBuffer> mappings = new ArrayList<>();
+  /**
+   * <code>current</code> mapping of the file.
+   */
+  private volatile MappedByteBuffer current;
+  /**
+   * <code>capacity</code> is the number of counters in the current mapping.
+   */
+  private volatile int capacity;
+  /**
+   * <code>baseline</code> are the counters at the last {@link #reset()}, indexed by UID.
+   */
+  private volatile long[] baseline = new long[0];
+
+  /**
+   * Creates a new <code>MappedCounters</code> instance.
+   *
+   * @param file     the <code>Path</code> of the counter file
+   * @param channel  the <code>FileChannel</code> of the counter file
+   * @param capacity the number of counters the file must hold as <code>int</code>
+   * @param limit    the highest count of a goal as <code>long</code>
+   * @throws IOException if the file cannot be mapped or is not a counter file
+   */
+  private MappedCounters(
+      final Path file,
+      final FileChannel channel,
+      final int capacity,
+      final long limit) throws IOException {
+    this.file = file;
+    this.channel = channel;
+    this.limit = limit;
+    map(capacity);
+  }
+
+  /**
+   * <code>fileFor</code> returns the path of the counter file of a database.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @return a <code>Path</code> value
+   */
+  static Path fileFor(final String dbFileName) {
+    return Paths.get(dbFileName + SUFFIX);
+  }
+
+  /**
+   * <code>open</code> maps the counter file of a database, creating it if needed.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @param capacity   the number of registered UIDs as <code>int</code>
+   * @param limit      the highest count of a goal as <code>long</code>
+   * @return the <code>MappedCounters</code>
+   * @throws IOException if the file cannot be mapped or atomic operations are unavailable
+   */
+  static MappedCounters open(final String dbFileName, final int capacity, final long limit)
+      throws IOException {
+    if (!MappedAtomics.isAvailable()) {
+      throw new IOException("atomic operations on mapped memory are not available");
+    }
+    Path file = fileFor(dbFileName);
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      return new MappedCounters(file, channel, capacity, limit);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * <code>openIfExists</code> maps the counter file of a database if there is one.
+   *
+   * @param dbFileName name of the database file as <code>String</code>
+   * @param limit      the highest count of a goal as <code>long</code>
+   * @return the <code>MappedCounters</code>, or <code>null</code> if there is no counter file
+   * @throws IOException if the file cannot be mapped or atomic operations are unavailable
+   */
+  static MappedCounters openIfExists(final String dbFileName, final long limit)
+      throws IOException {
+    if (!Files.exists(fileFor(dbFileName))) {
+      return null;
+    }
+    return open(dbFileName, 0, limit);
+  }
+
+  @Override
+  void increment(final int key) {
+    add(key, 1);
+  }
+
+  /**
+   * <code>add</code> adds <code>delta</code> to the counter of <code>key</code> atomically, up to
+   * the limit.
+   *
+   * @param key   UID of the basic block as <code>int</code>
+   * @param delta number of hits as <code>long</code>
+   */
+  @Override
+  void add(final int key, final long delta) {
+    if (key >= capacity) {
+      grow(key);
+    }
+    MappedByteBuffer buffer = current;
+    int slot = HEADER + 8 * key;
+    if (limit == Long.MAX_VALUE) {
+      MappedAtomics.getAndAdd(buffer, slot, delta);
+      return;
+    }
+    long count;
+    do {
+      count = MappedAtomics.getVolatile(buffer, slot);
+      if (count >= limit) {
+        return;
+      }
+    } while (!MappedAtomics.compareAndSet(buffer, slot, count, Math.min(count + delta, limit)));
+  }
+
+  @Override
+  long get(final int key) {
+    long[] base = baseline;
+    // the file may have been cleared since the baseline was taken
+    return key < base.length ? Math.max(0, read(key) - base[key]) : read(key);
+  }
+
+  /**
+   * <code>read</code> returns the counter of <code>key</code> in the file.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   * @return the count as <code>long</code>
+   */
+  private long read(final int key) {
+    int n = capacity;
+    MappedByteBuffer buffer = current;
+    // counters beyond the mapping were not hit when it was made
+    return key < n ? MappedAtomics.getVolatile(buffer, HEADER + 8 * key) : 0;
+  }
+
+  @Override
+  int size() {
+    return capacity;
+  }
+
+  /**
+   * <code>reset</code> sets the counts seen by this instance to zero. The counters in the file are
+   * left alone, since they also hold the counts of other JVMs.
+   */
+  @Override
+  synchronized void reset() {
+    try {
+      // counters other JVMs added since the last mapping are part of the baseline
+      if (channel.size() > HEADER + 8L * capacity) {
+        map(0);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("could not map counter file", e);
+    }
+    long[] base = new long[capacity];
+    for (int key = 0; key < base.length; key++) {
+      base[key] = read(key);
+    }
+    baseline = base;
+  }
+
+  /**
+   * <code>clear</code> sets the counters in the file to zero, for all JVMs. Hits recorded
+   * concurrently may survive.
+   */
+  synchronized void clear() {
+    // read capacity first, the mapping it was set with or a later one holds it
+    int n = capacity;
+    MappedByteBuffer buffer = current;
+    for (int key = 0; key < n; key++) {
+      MappedAtomics.setVolatile(buffer, HEADER + 8 * key, 0L);
+    }
+    baseline = new long[0];
+  }
+
+  @Override
+  boolean isPersistent() {
+    return true;
+  }
+
+  /**
+   * <code>grow</code> maps enough of the file to hold <code>key</code>, extending it if another
+   * JVM has not done so already.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   */
+  private synchronized void grow(final int key) {
+    if (key < capacity) {
+      return;
+    }
+    try {
+      map(key + 1);
+    } catch (IOException e) {
+      throw new IllegalStateException("could not grow counter file", e);
+    }
+  }
+
+  /**
+   * <code>map</code> maps the file, after extending it to hold at least <code>needed</code>
+   * counters and writing the header of a new file while holding a file lock.
+   *
+   * @param needed number of counters as <code>int</code>
+   * @throws IOException if the file cannot be mapped or is not a counter file
+   */
+  private synchronized void map(final int needed) throws IOException {
+    long size;
+    try (FileLock lock = channel.lock()) {
+      size = channel.size();
+      if (size == 0) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putLong(0, MAGIC);
+        channel.write(header, 0);
+      }
+      int slots = (int) Math.max(0, (size - HEADER) / 8);
+      if (slots < needed || size == 0) {
+        slots = ((Math.max(needed, slots) + GROWTH - 1) / GROWTH) * GROWTH;
+        size = HEADER + 8L * Math.max(slots, GROWTH);
+        // writing the last byte extends the file with zeros
+        channel.write(ByteBuffer.allocate(1), size - 1);
+      }
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    if (buffer.getLong(0) != MAGIC) {
+      throw new IOException("not a counter file: " + file);
+    }
+    mappings.add(buffer);
+    current = buffer;
+    capacity = (int) ((size - HEADER) / 8);
+  }
+}
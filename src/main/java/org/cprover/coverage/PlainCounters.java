@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Arrays;
+
+/**
+ * <code>PlainCounters</code> keeps counts in a single array of plain 64-bit counters for the
+ * {@link CountingMode#RACY}, {@link CountingMode#SATURATING} and {@link CountingMode#BOOLEAN}
+ * modes. Increments are neither atomic nor ordered, so concurrent hits of the same goal may be
+ * lost. A counter which reached the limit is only read, never written again.
+ */
+final class PlainCounters extends HitCounters {
+
+  /**
+   * <code>limit</code> is the highest count of a goal.
+   */
+  private final long limit;
+  /**
+   * <code>counts</code> indexed by UID.
+   */
+  private volatile long[] counts;
+
+  /**
+   * Creates a new <code>PlainCounters</code> instance.
+   *
+   * @param capacity the number of registered UIDs as <code>int</code>
+   * @param limit    the highest count of a goal as <code>long</code>
+   */
+  PlainCounters(final int capacity, final long limit) {
+    this.limit = limit;
+    this.counts = new long[Math.max(capacity, 1)];
+  }
+
+  @Override
+  void increment(final int key) {
+    long[] c = counts;
+    if (key >= c.length) {
+      c = grow(key);
+    }
+    long count = c[key];
+    if (count < limit) {
+      c[key] = count + 1;
+    }
+  }
+
+  @Override
+  long get(final int key) {
+    long[] c = counts;
+    // racing increments may overshoot the limit
+    return key < c.length ? Math.min(c[key], limit) : 0;
+  }
+
+  @Override
+  int size() {
+    return counts.length;
+  }
+
+  @Override
+  void reset() {
+    Arrays.fill(counts, 0L);
+  }
+
+  /**
+   * <code>grow</code> enlarges the counters to hold <code>key</code>. Hits recorded concurrently
+   * in the old counters may be lost.
+   *
+   * @param key UID of the basic block as <code>int</code>
+   * @return the current counters
+   */
+  private synchronized long[] grow(final int key) {
+    long[] c = counts;
+    if (key >= c.length) {
+      c = Arrays.copyOf(c, Math.max(key + 1, c.length * 2));
+      counts = c;
+    }
+    return c;
+  }
+}
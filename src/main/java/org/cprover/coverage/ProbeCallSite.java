@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * <code>ProbeCallSite</code> is the call site of a probe emitted for {@link ProbeStyle#INDY}. Its
+ * first execution records a hit of the goal and relinks the site to a method that does nothing, so
+ * once a goal is covered the JIT compiles its probe away. Resetting coverage re-arms retired
+ * probes, which costs the JIT a deoptimization of the code containing them.
+ */
+final class ProbeCallSite extends MutableCallSite {
+
+  /**
+   * <code>TYPE</code> is the type of every probe call site.
+   */
+  static final MethodType TYPE = MethodType.methodType(void.class);
+  /**
+   * <code>HIT</code> handle of {@link #hit()}.
+   */
+  private static final MethodHandle HIT;
+  /**
+   * <code>RETIRED</code> handle of {@link #retired()}.
+   */
+  private static final MethodHandle RETIRED;
+  /**
+   * <code>HIT_UPDATER</code> updates {@link #hit} atomically.
+   */
+  private static final AtomicIntegerFieldUpdater<ProbeCallSite> HIT_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(ProbeCallSite.class, "hit");
+  /**
+   * <code>SITES</code> linked so far, held weakly so they are unloaded with their class.
+   */
+  private static final Set<ProbeCallSite> SITES =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      HIT = lookup.findVirtual(ProbeCallSite.class, "hit", TYPE);
+      RETIRED = lookup.findStatic(ProbeCallSite.class, "retired", TYPE);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * <code>uid</code> of the goal of the probe.
+   */
+  private final int uid;
+  /**
+   * <code>armed</code> target recording the next hit.
+   */
+  private final MethodHandle armed;
+  /**
+   * <code>hit</code> is <code>1</code> once the goal was recorded.
+   */
+  private volatile int hit;
+
+  /**
+   * Creates a new <code>ProbeCallSite</code> instance.
+   *
+   * @param uid UID of the goal of the probe as <code>int</code>
+   */
+  ProbeCallSite(final int uid) {
+    super(TYPE);
+    this.uid = uid;
+    this.armed = HIT.bindTo(this);
+    setTarget(armed);
+    SITES.add(this);
+  }
+
+  /**
+   * <code>rearm</code> relinks all retired probes to record their next hit, e.g. after coverage
+   * was reset.
+   */
+  static void rearm() {
+    ProbeCallSite[] sites;
+    synchronized (SITES) {
+      sites = SITES.toArray(new ProbeCallSite[0]);
+    }
+    int n = 0;
+    for (ProbeCallSite site : sites) {
+      synchronized (site) {
+        if (site.hit != 0) {
+          site.hit = 0;
+          site.setTarget(site.armed);
+          sites[n++] = site;
+        }
+      }
+    }
+    if (n > 0) {
+      MutableCallSite.syncAll(Arrays.copyOf(sites, n));
+    }
+  }
+
+  /**
+   * <code>hit</code> records the first hit of the goal and retires the probe. Threads racing on
+   * the first hit record it only once.
+   */
+  private void hit() {
+    if (HIT_UPDATER.compareAndSet(this, 0, 1)) {
+      CoverageLog.getInstance().record(uid);
+      synchronized (this) {
+        // unless re-armed in the meantime
+        if (hit != 0) {
+          setTarget(RETIRED);
+        }
+      }
+    }
+  }
+
+  /**
+   * <code>retired</code> is the target of a probe once its goal is covered.
+   */
+  private static void retired() {
+  }
+}
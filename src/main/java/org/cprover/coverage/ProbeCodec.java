@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Arrays;
+
+/**
+ * <code>ProbeCodec</code> encodes the UIDs of the probes of a class into a <code>String</code>
+ * constant that is embedded in the instrumented class, so that the runtime can map class-local
+ * probe IDs back to UIDs without reading the database.
+ * <p>
+ * Each UID is stored as the zig-zag encoded difference to its predecessor in groups of six bits per
+ * character, with bit 7 marking that more groups follow. UIDs of a class are mostly consecutive, so
+ * a probe usually takes a single byte in the constant pool.
+ */
+public final class ProbeCodec {
+
+  /**
+   * <code>MAX_CONSTANT_LENGTH</code> is the maximum length in bytes of a <code>String</code>
+   * constant in a class file.
+   */
+  public static final int MAX_CONSTANT_LENGTH = 65535;
+  /**
+   * <code>PAYLOAD_BITS</code> is the number of bits of a UID stored per character.
+   */
+  private static final int PAYLOAD_BITS = 6;
+  /**
+   * <code>PAYLOAD_MASK</code> selects the payload bits of a character.
+   */
+  private static final int PAYLOAD_MASK = (1 << PAYLOAD_BITS) - 1;
+  /**
+   * <code>MORE</code> marks that further characters of the same UID follow.
+   */
+  private static final int MORE = 1 << PAYLOAD_BITS;
+
+  /**
+   * private constructor of <code>ProbeCodec</code> to prevent instantiation.
+   */
+  private ProbeCodec() {
+  }
+
+  /**
+   * <code>encode</code> encodes UIDs indexed by class-local probe ID.
+   *
+   * @param uids the UIDs as <code>int[]</code>
+   * @return the encoded <code>String</code>
+   */
+  public static String encode(final int[] uids) {
+    StringBuilder sb = new StringBuilder(uids.length);
+    int previous = -1;
+    for (int uid : uids) {
+      int delta = uid - previous;
+      int zigZag = (delta << 1) ^ (delta >> 31);
+      while ((zigZag & ~PAYLOAD_MASK) != 0) {
+        sb.append((char) ((zigZag & PAYLOAD_MASK) | MORE));
+        zigZag >>>= PAYLOAD_BITS;
+      }
+      sb.append((char) zigZag);
+      previous = uid;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * <code>decode</code> decodes a <code>String</code> created by {@link #encode(int[])}.
+   *
+   * @param encoded the encoded <code>String</code>
+   * @return the UIDs indexed by class-local probe ID as <code>int[]</code>
+   */
+  public static int[] decode(final String encoded) {
+    int[] uids = new int[encoded.length()];
+    int count = 0;
+    int previous = -1;
+    int zigZag = 0;
+    int shift = 0;
+    for (int i = 0; i < encoded.length(); i++) {
+      char c = encoded.charAt(i);
+      zigZag |= (c & PAYLOAD_MASK) << shift;
+      if ((c & MORE) != 0) {
+        shift += PAYLOAD_BITS;
+        continue;
+      }
+      previous += (zigZag >>> 1) ^ -(zigZag & 1);
+      uids[count++] = previous;
+      zigZag = 0;
+      shift = 0;
+    }
+    return Arrays.copyOf(uids, count);
+  }
+
+  /**
+   * <code>encodedLength</code> returns the number of bytes the encoded <code>String</code> takes
+   * in the constant pool of a class file.
+   *
+   * @param encoded the encoded <code>String</code>
+   * @return the length in bytes as <code>int</code>
+   */
+  public static int encodedLength(final String encoded) {
+    int length = 0;
+    for (int i = 0; i < encoded.length(); i++) {
+      length += encoded.charAt(i) == 0 ? 2 : 1;
+    }
+    return length;
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <code>ProbeRegistry</code> keeps track of the probe arrays of classes instrumented with {@link
+ * ProbeStyle#ARRAY} and maps their class-local probe IDs back to UIDs when the counts are read.
+ */
+final class ProbeRegistry {
+
+  /**
+   * <code>arrays</code> registered so far. A class may register more than one array if it is
+   * loaded by several classloaders or initialised concurrently, their counts are added up.
+   */
+  private final ConcurrentLinkedQueue<ProbeArray> arrays = new ConcurrentLinkedQueue<>();
+
+  /**
+   * <code>register</code> allocates the probe array of a class.
+   *
+   * @param uids the UIDs indexed by class-local probe ID as <code>int[]</code>
+   * @return the counters indexed by class-local probe ID as <code>long[]</code>
+   */
+  long[] register(final int[] uids) {
+    ProbeArray array = new ProbeArray(uids);
+    arrays.add(array);
+    return array.hits;
+  }
+
+  /**
+   * <code>isEmpty</code> signals whether no probe array was registered yet.
+   *
+   * @return a <code>boolean</code> value
+   */
+  boolean isEmpty() {
+    return arrays.isEmpty();
+  }
+
+  /**
+   * <code>addTo</code> adds the counts of all probe arrays to <code>totals</code>.
+   *
+   * @param totals counts indexed by UID as <code>long[]</code>
+   * @return <code>totals</code>, or a copy of it enlarged to hold all UIDs of the probe arrays
+   */
+  long[] addTo(final long[] totals) {
+    long[] result = totals;
+    for (ProbeArray array : arrays) {
+      for (int i = 0; i < array.uids.length; i++) {
+        int uid = array.uids[i];
+        if (uid >= result.length) {
+          result = Arrays.copyOf(result, uid + 1);
+        }
+        result[uid] += array.hits[i];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * <code>markCovered</code> sets the bits of all UIDs hit in a probe array.
+   *
+   * @param words bitset of covered UIDs as <code>long[]</code>
+   * @return <code>words</code>, or a copy of it enlarged to hold all covered UIDs
+   */
+  long[] markCovered(final long[] words) {
+    long[] result = words;
+    for (ProbeArray array : arrays) {
+      for (int i = 0; i < array.uids.length; i++) {
+        if (array.hits[i] != 0) {
+          result = CoverageSnapshot.set(result, array.uids[i]);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * <code>copyHits</code> copies the counts of all probe arrays, in the order they were
+   * registered.
+   *
+   * @return the counts of each array indexed by class-local probe ID as <code>long[][]</code>
+   */
+  long[][] copyHits() {
+    ArrayList<long[]> copies = new ArrayList<>();
+    for (ProbeArray array : arrays) {
+      copies.add(array.hits.clone());
+    }
+    return copies.toArray(new long[0][]);
+  }
+
+  /**
+   * <code>markChanged</code> sets the bits of all UIDs whose count in a probe array grew since
+   * {@link #copyHits()} returned <code>base</code>. Arrays registered since count from zero.
+   *
+   * @param words bitset of UIDs as <code>long[]</code>
+   * @param base  the counts returned by {@link #copyHits()} as <code>long[][]</code>
+   * @return <code>words</code>, or a copy of it enlarged to hold all marked UIDs
+   */
+  long[] markChanged(final long[] words, final long[][] base) {
+    long[] result = words;
+    int index = 0;
+    for (ProbeArray array : arrays) {
+      long[] before = index < base.length ? base[index] : null;
+      for (int i = 0; i < array.uids.length; i++) {
+        if (array.hits[i] > (before == null ? 0 : before[i])) {
+          result = CoverageSnapshot.set(result, array.uids[i]);
+        }
+      }
+      index++;
+    }
+    return result;
+  }
+
+  /**
+   * <code>reset</code> sets the counters of all probe arrays to zero.
+   */
+  void reset() {
+    for (ProbeArray array : arrays) {
+      Arrays.fill(array.hits, 0L);
+    }
+  }
+
+  /**
+   * <code>ProbeArray</code> is the probe array of a class together with its UIDs.
+   */
+  private static final class ProbeArray {
+
+    /**
+     * <code>uids</code> indexed by class-local probe ID.
+     */
+    private final int[] uids;
+    /**
+     * <code>hits</code> indexed by class-local probe ID.
+     */
+    private final long[] hits;
+
+    /**
+     * Creates a new <code>ProbeArray</code> instance.
+     *
+     * @param uids the UIDs indexed by class-local probe ID as <code>int[]</code>
+     */
+    ProbeArray(final int[] uids) {
+      this.uids = uids;
+      this.hits = new long[uids.length];
+    }
+  }
+}
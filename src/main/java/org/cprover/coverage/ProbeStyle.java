@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Locale;
+
+/**
+ * <code>ProbeStyle</code> selects the bytecode emitted by <code>InstrumentByteCode</code> for each
+ * coverage goal.
+ */
+public enum ProbeStyle {
+
+  /**
+   * Every probe loads the <code>CoverageLog</code> instance from a static field and calls
+   * {@link CoverageLog#record(int)} with the UID of the goal.
+   */
+  CALL,
+  /**
+   * Every class gets a static array of counters indexed by class-local probe IDs which is
+   * allocated on first use via {@link CoverageLog#probes(String)}. Each method loads the array
+   * into a local once, a probe is a single array increment. Increments are not atomic, so
+   * concurrent hits of the same goal may be lost.
+   */
+  ARRAY,
+  /**
+   * Every probe is an <code>invokedynamic</code> call site bootstrapped by {@link
+   * CoverageLog#bootstrap(java.lang.invoke.MethodHandles.Lookup, String,
+   * java.lang.invoke.MethodType, int)}. Its first execution records a hit of the goal and
+   * relinks the site to a no-op, so counts only tell whether a goal was covered. Needs class files
+   * of Java 7 or later, older classes use {@link #CALL}.
+   */
+  INDY;
+
+  /**
+   * <code>ENV_VAR</code> is the name of the environment variable that selects the probe style
+   * used during instrumentation.
+   */
+  public static final String ENV_VAR = "BLUECOV_PROBES";
+
+  /**
+   * <code>fromEnvironment</code> returns the probe style configured in the environment, which
+   * defaults to {@link #CALL}.
+   *
+   * @return a <code>ProbeStyle</code> value
+   * @throws IllegalArgumentException if the configured style is unknown
+   */
+  public static ProbeStyle fromEnvironment() {
+    String style = System.getenv(ENV_VAR);
+    if (style == null || style.isEmpty()) {
+      return CALL;
+    }
+    return valueOf(style.toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import static org.cprover.coverage.CoverageUtils.BYTECODE_INDEX;
+import static org.cprover.coverage.CoverageUtils.SOURCE_LOCATION;
+
+import java.util.Arrays;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+/**
+ * <code>PropertyParser</code> reads the output of <code>JBMC</code> called with
+ * <code>--json-ui --show-properties</code> as a stream of events and only keeps the fields used
+ * for instrumentation, so memory does not grow with the size of the file beyond one property.
+ */
+final class PropertyParser {
+
+  /**
+   * <code>PROPERTIES</code> is the JSON field name of the properties.
+   */
+  private static final String PROPERTIES = "properties";
+
+  /**
+   * <code>Visitor</code> receives the properties with a source location.
+   */
+  interface Visitor {
+
+    /**
+     * <code>visitProperty</code> is called for every property with a bytecode index and function.
+     *
+     * @param name          name of the property used by JBMC as <code>String</code>
+     * @param function      the JBMC function of the property as <code>String</code>
+     * @param bytecodeIndex bytecode index of the property as <code>int</code>
+     * @param lineNumbers   lines covered by the property as <code>int[]</code>
+     */
+    void visitProperty(String name, String function, int bytecodeIndex, int[] lineNumbers);
+  }
+
+  /**
+   * Not instantiated.
+   */
+  private PropertyParser() {
+  }
+
+  /**
+   * <code>parse</code> reads the first list of properties.
+   *
+   * @param parser  the <code>JsonParser</code> positioned before the top-level array
+   * @param visitor the <code>Visitor</code> receiving the properties
+   * @return <code>true</code> if a list of properties was found
+   */
+  static boolean parse(final JsonParser parser, final Visitor visitor) {
+    if (!parser.hasNext() || parser.next() != Event.START_ARRAY) {
+      return false;
+    }
+    Event event;
+    while ((event = parser.next()) != Event.END_ARRAY) {
+      if (event != Event.START_OBJECT) {
+        skip(parser, event);
+        continue;
+      }
+      while ((event = parser.next()) == Event.KEY_NAME) {
+        String key = parser.getString();
+        event = parser.next();
+        if (PROPERTIES.equals(key) && event == Event.START_ARRAY) {
+          parseProperties(parser, visitor);
+          return true;
+        }
+        skip(parser, event);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * <code>parseProperties</code> reads a list of properties.
+   *
+   * @param parser  the <code>JsonParser</code> positioned after the start of the list
+   * @param visitor the <code>Visitor</code> receiving the properties
+   */
+  private static void parseProperties(final JsonParser parser, final Visitor visitor) {
+    Event event;
+    while ((event = parser.next()) != Event.END_ARRAY) {
+      if (event == Event.START_OBJECT) {
+        parseProperty(parser, visitor);
+      } else {
+        skip(parser, event);
+      }
+    }
+  }
+
+  /**
+   * <code>parseProperty</code> reads a property and passes it to the visitor.
+   *
+   * @param parser  the <code>JsonParser</code> positioned after the start of the property
+   * @param visitor the <code>Visitor</code> receiving the property
+   */
+  private static void parseProperty(final JsonParser parser, final Visitor visitor) {
+    String name = null;
+    String coveredLines = null;
+    boolean hasSourceLocation = false;
+    boolean hasFile = false;
+    boolean hasLine = false;
+    String function = null;
+    String bytecodeIndex = null;
+    Event event;
+    while ((event = parser.next()) == Event.KEY_NAME) {
+      String key = parser.getString();
+      event = parser.next();
+      if ("name".equals(key)) {
+        name = getValue(parser, event);
+      } else if ("coveredLines".equals(key)) {
+        coveredLines = getValue(parser, event);
+      } else if (SOURCE_LOCATION.equals(key) && event == Event.START_OBJECT) {
+        hasSourceLocation = true;
+        while ((event = parser.next()) == Event.KEY_NAME) {
+          key = parser.getString();
+          event = parser.next();
+          if ("file".equals(key)) {
+            hasFile = true;
+          } else if ("line".equals(key)) {
+            hasLine = true;
+          } else if ("function".equals(key)) {
+            function = getValue(parser, event);
+            continue;
+          } else if (BYTECODE_INDEX.equals(key)) {
+            bytecodeIndex = getValue(parser, event);
+            continue;
+          }
+          skip(parser, event);
+        }
+      } else {
+        skip(parser, event);
+      }
+    }
+    if (!hasSourceLocation) {
+      return;
+    }
+    if (!(hasFile && hasLine && function != null)) {
+      System.out.println(
+          "WARNING: does not contain full source location info\n"
+              + name + "\n------------------");
+    }
+    int[] lineNumbers;
+    if (coveredLines != null) {
+      lineNumbers = parseLines(coveredLines);
+    } else {
+      System.out.println(
+          "WARNING: does not contain line coverage information\n" + name);
+      lineNumbers = new int[] {0};
+    }
+    if (bytecodeIndex != null && function != null) {
+      visitor.visitProperty(name, function, Integer.parseInt(bytecodeIndex), lineNumbers);
+    } else {
+      System.out.println(
+          "WARNING: bytecode index or function information is missing in\n" + name);
+    }
+  }
+
+  /**
+   * <code>parseLines</code> expands a list of lines and ranges of lines like <code>1,3-5</code>.
+   *
+   * @param coveredLines the list as <code>String</code>
+   * @return the lines as <code>int[]</code>
+   */
+  static int[] parseLines(final String coveredLines) {
+    int[] result = new int[8];
+    int size = 0;
+    int pos = 0;
+    while (pos < coveredLines.length()) {
+      int comma = coveredLines.indexOf(',', pos);
+      if (comma < 0) {
+        comma = coveredLines.length();
+      }
+      int dash = coveredLines.indexOf('-', pos);
+      int min;
+      int max;
+      if (dash >= 0 && dash < comma) { // found range
+        min = Integer.parseInt(coveredLines.substring(pos, dash));
+        max = Integer.parseInt(coveredLines.substring(dash + 1, comma));
+      } else {
+        min = Integer.parseInt(coveredLines.substring(pos, comma));
+        max = min;
+      }
+      for (int line = min; line <= max; line++) {
+        if (size == result.length) {
+          result = Arrays.copyOf(result, size * 2);
+        }
+        result[size++] = line;
+      }
+      pos = comma + 1;
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /**
+   * <code>getValue</code> returns a string or number value, skipping any other value.
+   *
+   * @param parser the <code>JsonParser</code>
+   * @param event  the <code>Event</code> of the value
+   * @return the value as <code>String</code>, or <code>null</code> if it is no string or number
+   */
+  private static String getValue(final JsonParser parser, final Event event) {
+    if (event == Event.VALUE_STRING || event == Event.VALUE_NUMBER) {
+      return parser.getString();
+    }
+    skip(parser, event);
+    return null;
+  }
+
+  /**
+   * <code>skip</code> skips a value, including all nested values of an object or array.
+   *
+   * @param parser the <code>JsonParser</code>
+   * @param event  the <code>Event</code> starting the value
+   */
+  private static void skip(final JsonParser parser, final Event event) {
+    if (event != Event.START_OBJECT && event != Event.START_ARRAY) {
+      return;
+    }
+    int depth = 1;
+    while (depth > 0) {
+      switch (parser.next()) {
+        case START_OBJECT:
+        case START_ARRAY:
+          depth++;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
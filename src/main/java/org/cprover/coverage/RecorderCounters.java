@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+/**
+ * <code>RecorderCounters</code> adapts a {@link CoverageRecorder} of a plugged-in backend.
+ */
+final class RecorderCounters extends HitCounters {
+
+  /**
+   * <code>recorder</code> holding the counts.
+   */
+  private final CoverageRecorder recorder;
+
+  /**
+   * Creates a new <code>RecorderCounters</code> instance.
+   *
+   * @param recorder the <code>CoverageRecorder</code> holding the counts
+   */
+  RecorderCounters(final CoverageRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  @Override
+  void increment(final int key) {
+    recorder.increment(key);
+  }
+
+  @Override
+  void add(final int key, final long delta) {
+    recorder.add(key, delta);
+  }
+
+  @Override
+  long get(final int key) {
+    return recorder.get(key);
+  }
+
+  @Override
+  int size() {
+    return recorder.size();
+  }
+
+  @Override
+  void reset() {
+    recorder.reset();
+  }
+
+  @Override
+  boolean isPersistent() {
+    return recorder.isPersistent();
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * <code>TraceDecoder</code> prints a trace recorded with {@link CoverageTrace#ENV_VAR}, one hit per
+ * line with the thread, the UID, the location and the JBMC name of the goal.
+ */
+public final class TraceDecoder {
+
+  /**
+   * Not instantiated.
+   */
+  private TraceDecoder() {
+  }
+
+  /**
+   * Entry point of <code>TraceDecoder</code>.
+   *
+   * @param args takes the trace file as optional argument, defaults to the trace of the DB
+   * @throws IOException if the trace cannot be read
+   */
+  public static void main(final String[] args) throws IOException {
+    final CoverageLog logger = CoverageLog.getInstance(false);
+    logger.setReport(false);
+    String file = args.length > 0 ? args[0] : CoverageLog.getDbFileName() + CoverageTrace.SUFFIX;
+    CoverageTrace.read(Paths.get(file), new CoverageTrace.Visitor() {
+      @Override
+      public void hit(final long thread, final int uid) {
+        System.out.println(thread + " " + uid + " " + logger.getGoalLocation(uid) + " "
+            + logger.getGoalName(uid));
+      }
+
+      @Override
+      public void gap(final long thread, final long dropped) {
+        System.out.println(thread + " dropped " + dropped + " hits");
+      }
+    });
+  }
+}
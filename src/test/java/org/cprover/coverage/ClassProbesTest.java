@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassProbesTest {
+
+  @Test
+  public void testMethodProbesAreSortedByInstruction() {
+    final ClassProbes probes = new ClassProbes(ProbeStyle.CALL, CountingMode.EXACT, 0);
+    probes.add("f:()V", 7, 12);
+    probes.add("f:()V", 1, 10);
+    probes.add("f:()V", 4, 11);
+    probes.add("f:()V", 4, 13);
+    probes.add("g:()V", 0, 14);
+    Assert.assertTrue(probes.hasProbe("f:()V", 4));
+    Assert.assertFalse(probes.hasProbe("f:()V", 5));
+    Assert.assertFalse(probes.hasProbes("h:()V"));
+    Assert.assertNull(probes.getMethodProbes("h:()V"));
+    final ClassProbes.MethodProbes f = probes.getMethodProbes("f:()V");
+    Assert.assertEquals(3, f.size());
+    Assert.assertEquals(1, f.getOffset(0));
+    Assert.assertEquals(10, f.getUid(0));
+    Assert.assertEquals(4, f.getOffset(1));
+    Assert.assertEquals(11, f.getUid(1));
+    Assert.assertEquals(7, f.getOffset(2));
+    Assert.assertEquals(12, f.getUid(2));
+    Assert.assertArrayEquals(new int[] {12, 10, 11, 14}, probes.getUids());
+  }
+}
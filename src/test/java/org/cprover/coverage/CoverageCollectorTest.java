@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageCollectorTest {
+
+  @Test
+  public void testBatchesAreAcknowledgedAfterTheSink() throws Exception {
+    final List<String> batches = new ArrayList<>();
+    final CoverageCollector collector = new CoverageCollector(0, (id, seq, keys, hits, rate) -> {
+      synchronized (batches) {
+        for (int i = 0; i < keys.length; i++) {
+          batches.add(keys[i] + ":" + hits[i] + "@" + rate);
+        }
+      }
+    }, 8);
+    final Thread thread = new Thread(collector);
+    thread.start();
+    final CollectorClient client = new CollectorClient(collector.getPort());
+    try {
+      Assert.assertTrue(client.send(new int[]{1, 7}, new long[]{3, 1}, 1.0));
+      Assert.assertTrue(client.send(new int[]{7}, new long[]{2}, 0.5));
+      synchronized (batches) {
+        Assert.assertEquals("[1:3@1.0, 7:1@1.0, 7:2@0.5]", batches.toString());
+      }
+    } finally {
+      client.close();
+      collector.close();
+      thread.join();
+    }
+    Assert.assertFalse(client.send(new int[]{1}, new long[]{1}, 1.0));
+    // the batch never reached the collector
+    Assert.assertFalse(client.isPendingUncertain());
+  }
+
+  @Test
+  public void testFailedBatchIsSentAgainWithItsSequence() throws Exception {
+    final List<String> batches = new ArrayList<>();
+    final CoverageCollector collector = new CoverageCollector(0, (id, seq, keys, hits, rate) -> {
+      synchronized (batches) {
+        batches.add(seq + ":" + keys.length);
+        if (batches.size() == 1) {
+          // committed, but the acknowledgement is lost
+          throw new IllegalStateException("lost");
+        }
+      }
+    }, 8);
+    final Thread thread = new Thread(collector);
+    thread.start();
+    final CollectorClient client = new CollectorClient(collector.getPort());
+    try {
+      Assert.assertFalse(client.send(new int[]{1, 7}, new long[]{3, 1}, 1.0));
+      Assert.assertTrue(client.hasPending());
+      Assert.assertTrue(client.isPendingUncertain());
+      Assert.assertTrue(client.resend());
+      Assert.assertFalse(client.isPendingUncertain());
+      Assert.assertTrue(client.send(new int[]{7}, new long[]{2}, 1.0));
+      synchronized (batches) {
+        Assert.assertEquals("[1:2, 1:2, 2:1]", batches.toString());
+      }
+    } finally {
+      client.close();
+      collector.close();
+      thread.join();
+    }
+  }
+
+  @Test
+  public void testOversizedBatchDropsClient() throws Exception {
+    final List<String> batches = new ArrayList<>();
+    final CoverageCollector collector = new CoverageCollector(0, (id, seq, keys, hits, rate) -> {
+      synchronized (batches) {
+        batches.add(seq + ":" + keys.length);
+      }
+    }, 2);
+    final Thread thread = new Thread(collector);
+    thread.start();
+    final CollectorClient client = new CollectorClient(collector.getPort());
+    try {
+      Assert.assertFalse(client.send(new int[]{0, 1, 1}, new long[]{1, 1, 1}, 1.0));
+      Assert.assertFalse(client.resend());
+      synchronized (batches) {
+        Assert.assertTrue(batches.isEmpty());
+      }
+    } finally {
+      client.close();
+      collector.close();
+      thread.join();
+    }
+  }
+}
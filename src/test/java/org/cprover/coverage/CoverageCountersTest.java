@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class CoverageCountersTest {
+
+  private static final int GOALS = 1024;
+  private static final int ITERATIONS = 1 << 20;
+  /**
+   * Reading the allocation counter allocates a few bytes itself, boxing a single count per hit
+   * would allocate megabytes.
+   */
+  private static final long ALLOCATION_SLACK = 4096;
+  private static final int THREADS = 8;
+
+  @Test
+  public void testGrowsForUnregisteredUids() {
+    final CoverageCounters counters = new CoverageCounters(1);
+    counters.increment(0);
+    Assert.assertEquals(1L, counters.get(0));
+    counters.increment(GOALS);
+    Assert.assertEquals(1L, counters.get(GOALS));
+    Assert.assertEquals(0L, counters.get(GOALS + 1));
+    counters.reset();
+    Assert.assertEquals(0L, counters.get(GOALS));
+  }
+
+  @Test
+  public void testIncrementDoesNotAllocate() {
+    final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    final long thread = Thread.currentThread().getId();
+    final CoverageCounters counters = new CoverageCounters(GOALS);
+
+    hit(counters);
+    final long before = threads.getThreadAllocatedBytes(thread);
+    hit(counters);
+    final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+    Assert.assertEquals(2L * ITERATIONS / GOALS, counters.get(0));
+    Assert.assertTrue("record allocated " + allocated + " bytes", allocated < ALLOCATION_SLACK);
+  }
+
+  @Test
+  public void testConcurrentIncrementsAreExact() throws InterruptedException {
+    final CoverageCounters counters = new CoverageCounters(GOALS, THREADS);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        hit(counters);
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    for (int goal = 0; goal < GOALS; goal++) {
+      Assert.assertEquals((long) THREADS * ITERATIONS / GOALS, counters.get(goal));
+    }
+  }
+
+  private static void hit(final CoverageCounters counters) {
+    for (int i = 0; i < ITERATIONS; i++) {
+      counters.increment(i % GOALS);
+    }
+  }
+}
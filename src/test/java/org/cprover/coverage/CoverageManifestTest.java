@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageManifestTest {
+
+  @Test
+  public void testWrittenManifestIsRead() throws IOException {
+    final Path dir = Files.createTempDirectory("bluecov-manifest");
+    final String db = dir.resolve("blueCov.db").toString();
+    try {
+      Assert.assertNull(CoverageManifest.read(db));
+      new CoverageManifest(42, CountingMode.SATURATING, 7, 3).write(db);
+      final CoverageManifest manifest = CoverageManifest.read(db);
+      Assert.assertNotNull(manifest);
+      Assert.assertEquals(42, manifest.getGoals());
+      Assert.assertEquals(CountingMode.SATURATING, manifest.getCountingMode());
+      Assert.assertEquals(7L, manifest.getSaturationLimit());
+      Assert.assertEquals(3L, manifest.getGeneration());
+    } finally {
+      Files.deleteIfExists(CoverageManifest.fileFor(db));
+      Files.delete(dir);
+    }
+  }
+}
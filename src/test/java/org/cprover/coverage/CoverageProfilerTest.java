@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageProfilerTest {
+
+  @Test
+  public void testTimeIsAttributedToPreviousGoal() {
+    final CoverageProfiler profiler = new CoverageProfiler();
+    profiler.hit(2, 100);
+    profiler.hit(0, 130);
+    profiler.hit(2, 140);
+    profiler.hit(1, 200);
+    final long[] nanos = profiler.collect();
+    Assert.assertEquals(10L, nanos[0]);
+    Assert.assertEquals(0L, nanos[1]);
+    Assert.assertEquals(90L, nanos[2]);
+    profiler.reset();
+    Assert.assertEquals(0L, profiler.collect()[2]);
+  }
+
+  @Test
+  public void testTimesOfTerminatedThreadsAreKept() throws InterruptedException {
+    final CoverageProfiler profiler = new CoverageProfiler();
+    final Thread thread = new Thread(() -> {
+      profiler.hit(3, 0);
+      profiler.hit(4, 25);
+    });
+    thread.start();
+    thread.join();
+    profiler.hit(3, 1000);
+    profiler.hit(3, 1005);
+    Assert.assertEquals(30L, profiler.collect()[3]);
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.cprover.coverage.helper.EnvironmentHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoverageRuntimeTest {
+
+  private Path dir;
+  private String db;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("bluecov-runtime");
+    db = dir.resolve("blueCov.db").toString();
+    new CoverageManifest(4, CountingMode.EXACT, Long.MAX_VALUE, 1).write(db);
+    EnvironmentHelper.put(CoverageLog.DB_ENV_VAR, db);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    EnvironmentHelper.remove(CoverageLog.DB_ENV_VAR);
+    Files.deleteIfExists(MappedCounters.fileFor(db));
+    Files.deleteIfExists(CoverageManifest.fileFor(db));
+    Files.delete(dir);
+  }
+
+  // the classes the runtime jar leaves out, as configured in the pom
+  private static List<String> excludedClasses() throws Exception {
+    final String pom = new String(Files.readAllBytes(Paths.get("pom.xml")), StandardCharsets.UTF_8);
+    final int start = pom.indexOf("<classifier>runtime</classifier>");
+    final String excludes = pom.substring(start, pom.indexOf("</excludes>", start));
+    final List<String> prefixes = new ArrayList<>();
+    final Matcher matcher = Pattern.compile("<exclude>([\\w/]+)\\*\\.class</exclude>")
+        .matcher(excludes);
+    while (matcher.find()) {
+      prefixes.add(matcher.group(1).replace('/', '.'));
+    }
+    Assert.assertFalse(prefixes.isEmpty());
+    return prefixes;
+  }
+
+  // loads the classes of the runtime jar, without MapDB and the classes it leaves out
+  private static URLClassLoader runtimeLoader() throws Exception {
+    final URL classes = CoverageLog.class.getProtectionDomain().getCodeSource().getLocation();
+    final List<String> excluded = excludedClasses();
+    return new URLClassLoader(new URL[] {classes},
+        ClassLoader.getSystemClassLoader().getParent()) {
+      @Override
+      protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        for (String prefix : excluded) {
+          if (name.startsWith(prefix)) {
+            throw new ClassNotFoundException(name);
+          }
+        }
+        return super.findClass(name);
+      }
+    };
+  }
+
+  @Test
+  public void testRuntimeClassesResolve() throws Exception {
+    final Path classes = Paths.get(
+        CoverageLog.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    final List<String> excluded = excludedClasses();
+    try (URLClassLoader loader = runtimeLoader();
+        Stream<Path> files = Files.list(classes.resolve("org/cprover/coverage"))) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        final String name = "org.cprover.coverage."
+            + file.getFileName().toString().replaceAll("\\.class$", "");
+        if (!file.toString().endsWith(".class")
+            || excluded.stream().anyMatch(name::startsWith)) {
+          continue;
+        }
+        try {
+          final Class<?> type = Class.forName(name, false, loader);
+          type.getDeclaredMethods();
+          type.getDeclaredFields();
+        } catch (NoClassDefFoundError e) {
+          Assert.fail(name + " needs " + e.getMessage() + ", which the runtime jar does not have");
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRecordsWithoutDependencies() throws Exception {
+    try (URLClassLoader loader = runtimeLoader()) {
+      try {
+        Class.forName("org.mapdb.DB", false, loader);
+        Assert.fail("MapDB is visible to the runtime");
+      } catch (ClassNotFoundException e) {
+        // expected
+      }
+      final Class<?> logClass = Class.forName(CoverageLog.class.getName(), true, loader);
+      final Thread log = (Thread) logClass.getMethod("getInstance").invoke(null);
+      Runtime.getRuntime().removeShutdownHook(log);
+      logClass.getMethod("record", int.class).invoke(log, 2);
+      logClass.getMethod("record", int.class).invoke(log, 2);
+      log.run();
+    }
+    // the counts are merged into the DB when it is read
+    Assert.assertEquals(2L, MappedCounters.openIfExists(db, Long.MAX_VALUE).get(2));
+  }
+
+  @Test
+  public void testCollectorFallsBackToCounterFile() throws Exception {
+    final int port;
+    try (ServerSocket unused = new ServerSocket(0)) {
+      port = unused.getLocalPort();
+    }
+    EnvironmentHelper.put(CoverageLog.BACKEND_ENV_VAR, "collector");
+    EnvironmentHelper.put(CoverageCollector.ENV_VAR, Integer.toString(port));
+    try (URLClassLoader loader = runtimeLoader()) {
+      final Class<?> logClass = Class.forName(CoverageLog.class.getName(), true, loader);
+      final Thread log = (Thread) logClass.getMethod("getInstance").invoke(null);
+      Runtime.getRuntime().removeShutdownHook(log);
+      logClass.getMethod("record", int.class).invoke(log, 3);
+      logClass.getMethod("record", int.class).invoke(log, 3);
+      // the collector is down and there is no MapDB to write to
+      log.run();
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.BACKEND_ENV_VAR);
+      EnvironmentHelper.remove(CoverageCollector.ENV_VAR);
+    }
+    Assert.assertEquals(2L, MappedCounters.openIfExists(db, Long.MAX_VALUE).get(3));
+  }
+
+  @Test
+  public void testFailsWithoutManifestOrDependencies() throws Exception {
+    Files.delete(CoverageManifest.fileFor(db));
+    try (URLClassLoader loader = runtimeLoader()) {
+      final Class<?> logClass = Class.forName(CoverageLog.class.getName(), true, loader);
+      logClass.getMethod("getInstance").invoke(null);
+      Assert.fail("started without manifest and MapDB");
+    } catch (InvocationTargetException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertTrue(e.getCause().getMessage(),
+          e.getCause().getMessage().contains("MapDB"));
+      Assert.assertTrue(e.getCause().getMessage(),
+          e.getCause().getMessage().contains(CoverageManifest.fileFor(db).toString()));
+    }
+    Assert.assertFalse(Files.exists(dir.resolve("blueCov.db")));
+  }
+
+  @Test
+  public void testNoEventsWithoutOptIn() throws Exception {
+    EnvironmentHelper.remove(CoverageLog.JFR_ENV_VAR);
+    // nothing is registered with JFR unless enabled, it slows down startup
+    Assert.assertNull(CoverageEvents.create(null, db));
+  }
+}
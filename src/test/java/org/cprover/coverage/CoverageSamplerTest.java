@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageSamplerTest {
+
+  private static final double RATE = 0.01;
+  private static final int HITS = 1 << 20;
+
+  @Test
+  public void testEstimateIsCloseToHitCount() {
+    final CoverageSampler sampler = new CoverageSampler(RATE);
+    long sampled = 0;
+    for (int i = 0; i < HITS; i++) {
+      if (sampler.sample()) {
+        sampled++;
+      }
+    }
+    // about 10000 samples, so the estimate is off by more than 5% with negligible probability
+    Assert.assertEquals(HITS, sampler.estimate(sampled, true), HITS * 0.05);
+  }
+
+  @Test
+  public void testSingleHitIsCovered() {
+    final CoverageSampler sampler = new CoverageSampler(RATE);
+    Assert.assertEquals(1L, sampler.estimate(0, true));
+    Assert.assertEquals(0L, sampler.estimate(0, false));
+  }
+}
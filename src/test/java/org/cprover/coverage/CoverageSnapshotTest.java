@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageSnapshotTest {
+
+  private static long[] bits(final int... uids) {
+    long[] words = CoverageSnapshot.wordsFor(0);
+    for (final int uid : uids) {
+      words = CoverageSnapshot.set(words, uid);
+    }
+    return words;
+  }
+
+  @Test
+  public void testNewlyCoveredAcrossWords() {
+    final CoverageSnapshot before = new CoverageSnapshot(bits(1, 64));
+    final CoverageSnapshot after = new CoverageSnapshot(bits(0, 1, 63, 64, 200));
+    Assert.assertArrayEquals(new int[]{0, 63, 200}, after.newlyCovered(before));
+    Assert.assertArrayEquals(new int[0], before.newlyCovered(after));
+    Assert.assertEquals(5, after.getCoveredCount());
+  }
+
+  @Test
+  public void testEmptySnapshot() {
+    final CoverageSnapshot snapshot = new CoverageSnapshot(bits(5));
+    Assert.assertArrayEquals(new int[]{5}, snapshot.getCovered());
+    Assert.assertArrayEquals(new int[0], CoverageSnapshot.EMPTY.newlyCovered(snapshot));
+    Assert.assertFalse(CoverageSnapshot.EMPTY.isCovered(5));
+    Assert.assertTrue(snapshot.isCovered(5));
+    Assert.assertFalse(snapshot.isCovered(1000));
+  }
+
+  @Test
+  public void testUnion() {
+    final CoverageSnapshot union = new CoverageSnapshot(bits(3))
+        .union(new CoverageSnapshot(bits(70)));
+    Assert.assertArrayEquals(new int[]{3, 70}, union.getCovered());
+  }
+}
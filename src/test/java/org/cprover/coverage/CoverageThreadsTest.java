@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageThreadsTest {
+
+  @Test
+  public void testPoolNames() {
+    Assert.assertEquals("pool-1-thread-", CoverageThreads.poolName("pool-1-thread-12"));
+    Assert.assertEquals("main", CoverageThreads.poolName("main"));
+    Assert.assertEquals(CoverageThreads.UNNAMED, CoverageThreads.poolName("42"));
+    Assert.assertEquals(CoverageThreads.UNNAMED, CoverageThreads.poolName(""));
+  }
+
+  @Test
+  public void testWorkersShareTheirPool() throws InterruptedException {
+    final CoverageThreads threads = new CoverageThreads();
+    for (int i = 0; i < 2; i++) {
+      final Thread worker = new Thread(() -> {
+        threads.hit(1);
+        threads.hit(3);
+      }, "worker-" + i);
+      worker.start();
+      worker.join();
+    }
+    threads.hit(3);
+    final Map<String, long[]> counts = threads.collect();
+    Assert.assertEquals(2, counts.size());
+    Assert.assertEquals(2L, counts.get("worker-")[1]);
+    Assert.assertEquals(2L, counts.get("worker-")[3]);
+    Assert.assertEquals(1L,
+        counts.get(CoverageThreads.poolName(Thread.currentThread().getName()))[3]);
+  }
+
+  @Test
+  public void testBuffersOfTerminatedThreadsAreDropped() throws InterruptedException {
+    final CoverageThreads threads = new CoverageThreads();
+    for (int i = 0; i < 10 * CoverageThreads.MIN_SWEEP; i++) {
+      final Thread worker = new Thread(() -> threads.hit(0), "worker-" + i);
+      worker.start();
+      worker.join();
+    }
+    // swept while new threads start, without reading the counts
+    Assert.assertTrue(threads.getBufferCount() < CoverageThreads.MIN_SWEEP);
+    Assert.assertEquals(10L * CoverageThreads.MIN_SWEEP, threads.collect().get("worker-")[0]);
+    Assert.assertEquals(0, threads.getBufferCount());
+    Assert.assertEquals(10L * CoverageThreads.MIN_SWEEP, threads.collect().get("worker-")[0]);
+    threads.reset();
+    Assert.assertTrue(threads.collect().isEmpty());
+  }
+
+  @Test
+  public void testFullBuffersAreFolded() {
+    final CoverageThreads threads = new CoverageThreads();
+    final int goals = 10 * CoverageThreads.BUFFER_SIZE;
+    for (int round = 0; round < 3; round++) {
+      for (int key = 0; key < goals; key++) {
+        threads.hit(key);
+      }
+    }
+    final long[] counts =
+        threads.collect().get(CoverageThreads.poolName(Thread.currentThread().getName()));
+    for (int key = 0; key < goals; key++) {
+      Assert.assertEquals(3L, counts[key]);
+    }
+    Assert.assertEquals(1, threads.getBufferCount());
+  }
+
+  @Test
+  public void testConcurrentFoldsAreCounted() throws InterruptedException {
+    final CoverageThreads threads = new CoverageThreads();
+    final int goals = 10 * CoverageThreads.BUFFER_SIZE;
+    final Thread[] workers = new Thread[4];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(() -> {
+        for (int key = 0; key < goals; key++) {
+          threads.hit(key);
+        }
+      }, "worker-" + i);
+      workers[i].start();
+    }
+    for (final Thread worker : workers) {
+      worker.join();
+    }
+    final long[] counts = threads.collect().get("worker-");
+    for (int key = 0; key < goals; key++) {
+      Assert.assertEquals(workers.length, counts[key]);
+    }
+  }
+}
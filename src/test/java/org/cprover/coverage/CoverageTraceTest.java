@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageTraceTest {
+
+  private static List<String> read(final Path file) throws IOException {
+    final List<String> entries = new ArrayList<>();
+    CoverageTrace.read(file, new CoverageTrace.Visitor() {
+      @Override
+      public void hit(final long thread, final int uid) {
+        entries.add(Integer.toString(uid));
+      }
+
+      @Override
+      public void gap(final long thread, final long dropped) {
+        entries.add("-" + dropped);
+      }
+    });
+    return entries;
+  }
+
+  @Test
+  public void testHitsAreReadInOrder() throws IOException {
+    final Path file = Files.createTempFile("bluecov", CoverageTrace.SUFFIX);
+    try {
+      final CoverageTrace trace = new CoverageTrace(file, 8, 4, false);
+      trace.append(1);
+      trace.append(500);
+      trace.append(3);
+      trace.drain();
+      trace.append(2);
+      trace.close();
+      Assert.assertEquals(Arrays.asList("1", "500", "3", "2"), read(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testFullBufferMarksDroppedHits() throws IOException {
+    final Path file = Files.createTempFile("bluecov", CoverageTrace.SUFFIX);
+    try {
+      final CoverageTrace trace = new CoverageTrace(file, 4, 4, false);
+      for (int uid = 0; uid < 10; uid++) {
+        trace.append(uid);
+      }
+      trace.drain();
+      trace.append(99);
+      trace.close();
+      Assert.assertEquals(Arrays.asList("0", "1", "2", "3", "-6", "99"), read(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testBuffersAreCappedAndReused() throws Exception {
+    final Path file = Files.createTempFile("bluecov", CoverageTrace.SUFFIX);
+    try {
+      final CoverageTrace trace = new CoverageTrace(file, 4, 1, false);
+      final Thread first = new Thread(() -> trace.append(1));
+      first.start();
+      first.join();
+      // the only buffer is not freed before the next drain
+      trace.append(2);
+      trace.drain();
+      trace.append(3);
+      trace.close();
+      Assert.assertEquals(Arrays.asList("1", "-1", "3"), read(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
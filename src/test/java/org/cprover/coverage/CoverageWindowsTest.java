@@ -0,0 +1,75 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoverageWindowsTest {
+
+  private static final long START = 100 * CoverageWindows.DAY;
+
+  private Path dir;
+  private CoverageStore db;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("bluecov-windows");
+    db = CoverageStore.open(dir.resolve("blueCov.db").toString(), false);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    db.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Test
+  public void testNotHitSince() {
+    final CoverageWindows windows = new CoverageWindows(CoverageWindows.HOUR, 7);
+    windows.add(db, new int[]{0, 2}, START);
+    windows.add(db, new int[]{2}, START + 3 * CoverageWindows.DAY);
+    Assert.assertArrayEquals(new int[]{1, 3},
+        CoverageWindows.notHitSince(db, 4, START));
+    Assert.assertArrayEquals(new int[]{0, 1, 3},
+        CoverageWindows.notHitSince(db, 4, START + CoverageWindows.DAY));
+  }
+
+  @Test
+  public void testOldWindowsAreCompacted() {
+    final CoverageWindows windows = new CoverageWindows(CoverageWindows.HOUR, 7);
+    windows.add(db, new int[]{0}, START);
+    windows.add(db, new int[]{1}, START + CoverageWindows.HOUR);
+    Assert.assertEquals(2, CoverageWindows.getWindows(db).size());
+    windows.add(db, new int[]{2}, START + 2 * CoverageWindows.DAY);
+    final Map<Long, int[]> compacted = CoverageWindows.getWindows(db);
+    Assert.assertEquals(2, compacted.size());
+    Assert.assertArrayEquals(new int[]{0, 1}, compacted.get(START));
+    windows.compact(db, START + 9 * CoverageWindows.DAY);
+    Assert.assertArrayEquals(new int[]{2},
+        CoverageWindows.getWindows(db).get(START + 2 * CoverageWindows.DAY));
+    windows.compact(db, START + 10 * CoverageWindows.DAY);
+    Assert.assertTrue(CoverageWindows.getWindows(db).isEmpty());
+  }
+}
@@ -37,7 +37,6 @@ public class FieldAdapterTest {
       Reflector.setField(fieldAdapter, "instrumentedLocs", null);
       Reflector.setField(fieldAdapter, "fName", "");
       Reflector.setField(fieldAdapter, "fAcc", 0);
-      Reflector.setField(fieldAdapter, "offsetIdMap", null);
       Reflector.setField(fieldAdapter, "className", "");
       Reflector.setField(fieldAdapter, "fDesc", "");
 
@@ -79,7 +78,6 @@ public class FieldAdapterTest {
       Reflector.setField(fieldAdapter, "instrumentedLocs", null);
       Reflector.setField(fieldAdapter, "fName", "?????????");
       Reflector.setField(fieldAdapter, "fAcc", 0);
-      Reflector.setField(fieldAdapter, "offsetIdMap", null);
       Reflector.setField(fieldAdapter, "className", "");
       Reflector.setField(fieldAdapter, "fDesc", "");
       org_objectweb_asm_ClassVisitor_instances.add(classVisitor);
@@ -139,7 +137,6 @@ public class FieldAdapterTest {
       Reflector.setField(fieldAdapter, "instrumentedLocs", null);
       Reflector.setField(fieldAdapter, "fName", ",,,,,,");
       Reflector.setField(fieldAdapter, "fAcc", 0);
-      Reflector.setField(fieldAdapter, "offsetIdMap", null);
       Reflector.setField(fieldAdapter, "className", "");
       Reflector.setField(fieldAdapter, "fDesc", "");
       org_objectweb_asm_ClassVisitor_instances.add(classVisitor);
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FuzzBitmapTest {
+
+  private static void hit(final FuzzBitmap bitmap, final int uid, final int times) {
+    for (int i = 0; i < times; i++) {
+      bitmap.increment(uid);
+    }
+  }
+
+  @Test
+  public void testCountsSaturateAndReset() throws IOException {
+    final FuzzBitmap bitmap = FuzzBitmap.open(10);
+    Assert.assertEquals(16, bitmap.size());
+    hit(bitmap, 3, 300);
+    hit(bitmap, 42, 1);
+    Assert.assertEquals(255L, bitmap.get(3));
+    Assert.assertEquals(0L, bitmap.get(42));
+    bitmap.reset();
+    Assert.assertEquals(0L, bitmap.get(3));
+  }
+
+  @Test
+  public void testHashDistinguishesBuckets() throws IOException {
+    final FuzzBitmap bitmap = FuzzBitmap.open(100);
+    final long empty = bitmap.hash();
+    hit(bitmap, 70, 5);
+    final long five = bitmap.hash();
+    Assert.assertNotEquals(empty, five);
+    Assert.assertEquals(8, bitmap.getBucket(70));
+    bitmap.reset();
+    hit(bitmap, 70, 7);
+    Assert.assertEquals(five, bitmap.hash());
+    hit(bitmap, 70, 1);
+    Assert.assertNotEquals(five, bitmap.hash());
+    bitmap.reset();
+    Assert.assertEquals(empty, bitmap.hash());
+  }
+}
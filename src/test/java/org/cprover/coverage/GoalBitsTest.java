@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GoalBitsTest {
+
+  @Test
+  public void testAddReportsFirstHitOnly() {
+    final GoalBits bits = new GoalBits();
+    Assert.assertTrue(bits.add(3));
+    Assert.assertFalse(bits.add(3));
+    Assert.assertTrue(bits.add(70000));
+    Assert.assertTrue(bits.contains(3));
+    Assert.assertFalse(bits.contains(4));
+    Assert.assertFalse(bits.contains(1 << 20));
+    Assert.assertArrayEquals(new int[]{3, 70000},
+        new CoverageSnapshot(bits.toWords()).getCovered());
+  }
+
+  @Test
+  public void testClear() {
+    final GoalBits bits = new GoalBits();
+    bits.add(1);
+    bits.clear();
+    Assert.assertEquals(0, new CoverageSnapshot(bits.toWords()).getCoveredCount());
+    Assert.assertTrue(bits.add(1));
+  }
+
+  @Test
+  public void testConcurrentAddsAcrossPages() throws Exception {
+    final GoalBits bits = new GoalBits();
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread(() -> {
+        for (int uid = offset; uid < 20000; uid += threads.length) {
+          bits.add(uid);
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(20000, new CoverageSnapshot(bits.toWords()).getCoveredCount());
+  }
+}
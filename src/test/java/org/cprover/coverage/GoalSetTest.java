@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GoalSetTest {
+
+  @Test
+  public void testSparseSetRoundTrip() {
+    final int[] uids = {0, 5, 300, 70000, 500000};
+    final byte[] data = GoalSet.encode(uids);
+    Assert.assertTrue(data.length < 16);
+    Assert.assertArrayEquals(uids, GoalSet.decode(data));
+  }
+
+  @Test
+  public void testDenseSetRoundTrip() {
+    final int[] uids = new int[1000];
+    for (int i = 0; i < uids.length; i++) {
+      uids[i] = 2 * i + 1;
+    }
+    final byte[] data = GoalSet.encode(uids);
+    Assert.assertEquals(1 + 2000 / 8, data.length);
+    Assert.assertArrayEquals(uids, GoalSet.decode(data));
+  }
+
+  @Test
+  public void testEmptySetRoundTrip() {
+    Assert.assertArrayEquals(new int[0], GoalSet.decode(GoalSet.encode(new int[0])));
+  }
+
+  @Test
+  public void testUnion() {
+    final byte[] union = GoalSet.union(GoalSet.encode(new int[]{1, 4, 9}),
+        GoalSet.encode(new int[]{0, 4, 10}));
+    Assert.assertArrayEquals(new int[]{0, 1, 4, 9, 10}, GoalSet.decode(union));
+  }
+}
@@ -39,7 +39,7 @@ public class InstrumentByteCodeTest {
       Reflector.setField(instrumentByteCode, "methodName", null);
       Reflector.setField(instrumentByteCode, "bcLine", 0);
       Reflector.setField(instrumentByteCode, "className", "");
-      Reflector.setField(instrumentByteCode, "offsetIdMap", null);
+      Reflector.setField(instrumentByteCode, "methodProbes", null);
 
       /* Act */
       Class<?> c = Reflector.forName("org.cprover.coverage.InstrumentByteCode");
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedCountersTest {
+
+  private Path dir;
+  private String db;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("bluecov-mapped");
+    db = dir.resolve("blueCov.db").toString();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(MappedCounters.fileFor(db));
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testCountsAreSharedBetweenMappings() throws IOException {
+    final MappedCounters first = MappedCounters.open(db, 4, Long.MAX_VALUE);
+    final MappedCounters second = MappedCounters.open(db, 4, Long.MAX_VALUE);
+    first.increment(3);
+    second.increment(3);
+    second.add(2, 5);
+    Assert.assertEquals(2L, first.get(3));
+    Assert.assertEquals(5L, MappedCounters.openIfExists(db, Long.MAX_VALUE).get(2));
+  }
+
+  @Test
+  public void testGrowsForUnregisteredUids() throws IOException {
+    final MappedCounters first = MappedCounters.open(db, 1, Long.MAX_VALUE);
+    final MappedCounters second = MappedCounters.open(db, 1, Long.MAX_VALUE);
+    final int key = first.size() + 10;
+    first.increment(key);
+    Assert.assertEquals(0L, second.get(key));
+    Assert.assertEquals(1L, MappedCounters.open(db, 1, Long.MAX_VALUE).get(key));
+    second.increment(key);
+    Assert.assertEquals(2L, first.get(key));
+  }
+
+  @Test
+  public void testSaturatingCountsStopAtLimit() throws IOException {
+    final MappedCounters counters = MappedCounters.open(db, 1, 3);
+    counters.add(0, 2);
+    counters.add(0, 2);
+    counters.increment(0);
+    Assert.assertEquals(3L, counters.get(0));
+    counters.reset();
+    Assert.assertEquals(0L, counters.get(0));
+  }
+
+  @Test
+  public void testResetKeepsCountsOfOtherMappings() throws IOException {
+    final MappedCounters first = MappedCounters.open(db, 1, Long.MAX_VALUE);
+    final MappedCounters second = MappedCounters.open(db, 1, Long.MAX_VALUE);
+    first.add(0, 3);
+    second.add(0, 2);
+    first.reset();
+    Assert.assertEquals(0L, first.get(0));
+    Assert.assertEquals(5L, second.get(0));
+    first.increment(0);
+    Assert.assertEquals(1L, first.get(0));
+    Assert.assertEquals(6L, MappedCounters.openIfExists(db, Long.MAX_VALUE).get(0));
+    second.clear();
+    Assert.assertEquals(0L, MappedCounters.openIfExists(db, Long.MAX_VALUE).get(0));
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PlainCountersTest {
+
+  private static final long LIMIT = 3;
+
+  @Test
+  public void testSaturatingCountsStopAtLimit() {
+    final HitCounters counters = HitCounters.create(CountingMode.SATURATING, LIMIT, 1);
+    for (int i = 0; i < 10; i++) {
+      counters.increment(0);
+    }
+    counters.increment(1);
+    Assert.assertEquals(LIMIT, counters.get(0));
+    Assert.assertEquals(1L, counters.get(1));
+  }
+
+  @Test
+  public void testBooleanCountsStopAtOne() {
+    final HitCounters counters = HitCounters.create(CountingMode.BOOLEAN, LIMIT, 1);
+    counters.increment(5);
+    counters.increment(5);
+    Assert.assertEquals(1L, counters.get(5));
+    Assert.assertEquals(0L, counters.get(4));
+    counters.reset();
+    Assert.assertEquals(0L, counters.get(5));
+  }
+
+  @Test
+  public void testRacyCountsAreExactOnOneThread() {
+    final HitCounters counters = HitCounters.create(CountingMode.RACY, LIMIT, 1);
+    for (int i = 0; i < 10; i++) {
+      counters.increment(0);
+    }
+    Assert.assertEquals(10L, counters.get(0));
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import javax.json.Json;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropertyParserTest {
+
+  private static List<String> parse(final String json) {
+    final List<String> properties = new ArrayList<>();
+    final boolean found = PropertyParser.parse(Json.createParser(new StringReader(json)),
+        (name, function, bytecodeIndex, lineNumbers) -> {
+          final StringBuilder lines = new StringBuilder();
+          for (final int line : lineNumbers) {
+            lines.append(' ').append(line);
+          }
+          properties.add(name + " " + function + "@" + bytecodeIndex + lines);
+        });
+    return found ? properties : null;
+  }
+
+  @Test
+  public void testLineRanges() {
+    Assert.assertArrayEquals(new int[] {9}, PropertyParser.parseLines("9"));
+    Assert.assertArrayEquals(new int[] {1, 3, 4, 5, 7}, PropertyParser.parseLines("1,3-5,7"));
+    Assert.assertArrayEquals(new int[0], PropertyParser.parseLines(""));
+  }
+
+  @Test
+  public void testReadsOnlyFieldsUsed() {
+    final List<String> properties = parse("[{\"program\":\"JBMC\",\"options\":[{\"a\":[1]}]},"
+        + "{\"properties\":[{\"class\":\"coverage\",\"coveredLines\":\"3-4\","
+        + "\"trace\":{\"steps\":[{\"x\":{}}]},\"name\":\"p1\",\"sourceLocation\":"
+        + "{\"bytecodeIndex\":\"2\",\"file\":\"A.java\",\"function\":\"java::A.f:()V\","
+        + "\"line\":\"3\"}},"
+        + "{\"name\":\"p2\",\"sourceLocation\":{\"file\":\"A.java\",\"line\":\"5\"}},"
+        + "{\"name\":\"p3\"}]},"
+        + "{\"properties\":[{\"name\":\"ignored\"}]}]");
+    Assert.assertEquals(1, properties.size());
+    Assert.assertEquals("p1 java::A.f:()V@2 3 4", properties.get(0));
+  }
+
+  @Test
+  public void testMissingProperties() {
+    Assert.assertNull(parse("[{\"program\":\"JBMC\"},{\"messages\":[]}]"));
+    Assert.assertNull(parse("{}"));
+  }
+}
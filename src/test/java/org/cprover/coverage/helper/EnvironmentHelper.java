@@ -16,6 +16,7 @@ package org.cprover.coverage.helper;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
 import org.cprover.coverage.CoverageLog;
 
@@ -70,6 +71,34 @@ public final class EnvironmentHelper {
     }
   }
 
+  /**
+   * Removes an environment variable.
+   *
+   * @param key {@link String name} of the variable.
+   */
+  public static void remove(final String key) throws ReflectiveOperationException {
+    try {
+      final Class<?> processEnvironmentClass = Class.forName("java.lang.ProcessEnvironment");
+      final Field theEnvironmentField = processEnvironmentClass.getDeclaredField("theEnvironment");
+      theEnvironmentField.setAccessible(true);
+      @SuppressWarnings("unchecked") final Map<Object, Object> env = (Map<Object, Object>) theEnvironmentField.get(
+          null);
+      env.remove(processEnvironmentValueOf("java.lang.ProcessEnvironment$Variable", key));
+    } catch (final ClassNotFoundException e) {
+      final Class<?>[] classes = Collections.class.getDeclaredClasses();
+      final Map<String, String> env = System.getenv();
+      for (final Class<?> cl : classes) {
+        if ("java.util.Collections$UnmodifiableMap".equals(cl.getName())) {
+          final Field field = cl.getDeclaredField("m");
+          field.setAccessible(true);
+          final Object obj = field.get(env);
+          @SuppressWarnings("unchecked") final Map<String, String> map = (Map<String, String>) obj;
+          map.remove(key);
+        }
+      }
+    }
+  }
+
   private static void resetCoverageLogInstance() throws ReflectiveOperationException {
     final Field instance = CoverageLog.class.getDeclaredField("instance");
     instance.setAccessible(true);
@@ -79,7 +108,7 @@ public final class EnvironmentHelper {
   /**
    * Executes and removes all {@link Runtime#addShutdownHook(Thread) shutdown hooks} and resets the
    * singleton {@link CoverageLog} instance to
-   * <code>null</code>
+   * <code>null</code>. The hook stopping flight recordings is kept.
    *
    * @throws ReflectiveOperationException if any error occurs accessing in the java.lang.reflect
    *                                      package.
@@ -89,10 +118,14 @@ public final class EnvironmentHelper {
         .getDeclaredField("hooks");
     field.setAccessible(true);
     final Map<?, ?> hooks = (Map<?, ?>) field.get(null);
-    for (Object hook : hooks.keySet()) {
-      ((Runnable) hook).run();
+    final Iterator<?> it = hooks.keySet().iterator();
+    while (it.hasNext()) {
+      final Thread hook = (Thread) it.next();
+      if (!hook.getName().startsWith("JFR")) {
+        hook.run();
+        it.remove();
+      }
     }
-    hooks.clear();
     resetCoverageLogInstance();
   }
 }
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage.helper;
+
+import org.cprover.coverage.CoverageRecorder;
+
+/**
+ * <code>PersistentTestRecorderProvider</code> plugs in the <code>test-persistent</code> backend,
+ * whose counts never go to the DB.
+ */
+public class PersistentTestRecorderProvider extends TestRecorderProvider {
+
+  @Override
+  public String getName() {
+    return PERSISTENT_NAME;
+  }
+
+  @Override
+  public CoverageRecorder create(final String dbFileName, final int goals, final long limit) {
+    return create(goals, true);
+  }
+}
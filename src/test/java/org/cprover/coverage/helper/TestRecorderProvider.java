@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016-2021 Diffblue Ltd and contributors
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cprover.coverage.helper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.cprover.coverage.CoverageRecorder;
+import org.cprover.coverage.CoverageRecorderProvider;
+
+/**
+ * <code>TestRecorderProvider</code> plugs in the <code>test</code> backend, which keeps the counts
+ * of the last recorder created where tests can see them.
+ */
+public class TestRecorderProvider implements CoverageRecorderProvider {
+
+  public static final String NAME = "test";
+
+  public static final String PERSISTENT_NAME = "test-persistent";
+
+  private static volatile AtomicLongArray counts;
+
+  public static long getCount(final int key) {
+    return counts.get(key);
+  }
+
+  public static int getSize() {
+    return counts.length();
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public CoverageRecorder create(final String dbFileName, final int goals, final long limit) {
+    return create(goals, false);
+  }
+
+  protected static CoverageRecorder create(final int goals, final boolean persistent) {
+    final AtomicLongArray c = new AtomicLongArray(goals);
+    counts = c;
+    return new CoverageRecorder() {
+      @Override
+      public void increment(final int key) {
+        c.incrementAndGet(key);
+      }
+
+      @Override
+      public long get(final int key) {
+        return c.get(key);
+      }
+
+      @Override
+      public int size() {
+        return c.length();
+      }
+
+      @Override
+      public void reset() {
+        for (int i = 0; i < c.length(); i++) {
+          c.set(i, 0);
+        }
+      }
+
+      @Override
+      public boolean isPersistent() {
+        return persistent;
+      }
+    };
+  }
+}
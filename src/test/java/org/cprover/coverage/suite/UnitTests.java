@@ -13,13 +13,36 @@
  */
 package org.cprover.coverage.suite;
 
+import org.cprover.coverage.ClassProbesTest;
+import org.cprover.coverage.CoverageCollectorTest;
+import org.cprover.coverage.CoverageCountersTest;
+import org.cprover.coverage.CoverageManifestTest;
+import org.cprover.coverage.CoverageProfilerTest;
+import org.cprover.coverage.CoverageRuntimeTest;
+import org.cprover.coverage.MappedCountersTest;
+import org.cprover.coverage.CoverageSamplerTest;
+import org.cprover.coverage.CoverageSnapshotTest;
+import org.cprover.coverage.CoverageThreadsTest;
+import org.cprover.coverage.CoverageTraceTest;
+import org.cprover.coverage.CoverageWindowsTest;
+import org.cprover.coverage.FuzzBitmapTest;
+import org.cprover.coverage.GoalBitsTest;
+import org.cprover.coverage.GoalSetTest;
+import org.cprover.coverage.PlainCountersTest;
+import org.cprover.coverage.PropertyParserTest;
 import org.cprover.coverage.test.BlueCovTest;
 import org.cprover.coverage.test.TextSearchEngineTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({BlueCovTest.class, TextSearchEngineTest.class})
+@Suite.SuiteClasses({BlueCovTest.class, TextSearchEngineTest.class, CoverageCountersTest.class,
+    CoverageSamplerTest.class, PlainCountersTest.class,
+    CoverageManifestTest.class, MappedCountersTest.class,
+    CoverageCollectorTest.class, CoverageSnapshotTest.class, GoalSetTest.class,
+    CoverageWindowsTest.class, FuzzBitmapTest.class, CoverageTraceTest.class,
+    CoverageProfilerTest.class, CoverageThreadsTest.class, CoverageRuntimeTest.class,
+    PropertyParserTest.class, ClassProbesTest.class, GoalBitsTest.class})
 public class UnitTests {
 
 }
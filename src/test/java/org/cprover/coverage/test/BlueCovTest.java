@@ -13,11 +13,50 @@
  */
 package org.cprover.coverage.test;
 
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.cprover.coverage.BlueCov;
+import org.cprover.coverage.CountingMode;
+import org.cprover.coverage.CoverageCollector;
+import org.cprover.coverage.CoverageLog;
+import org.cprover.coverage.CoverageMonitorMXBean;
+import org.cprover.coverage.CoverageReport;
+import org.cprover.coverage.CoverageRunListener;
+import org.cprover.coverage.CoverageSnapshot;
+import org.cprover.coverage.FuzzBitmap;
+import org.cprover.coverage.ProbeStyle;
 import org.cprover.coverage.helper.EnvironmentHelper;
 import org.cprover.coverage.helper.PropertyHelper;
+import org.cprover.coverage.helper.TestRecorderProvider;
 import org.junit.Assert;
 import org.junit.Test;
+import org.junit.runner.Description;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.BasicVerifier;
 
 public class BlueCovTest {
 
@@ -35,6 +74,47 @@ public class BlueCovTest {
     }
   }
 
+  @Test
+  public void testLegacyCountsAreMigrated() throws Exception {
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final DB db = DBMaker.fileDB(System.getenv(CoverageLog.DB_ENV_VAR))
+          .transactionEnable().make();
+      db.hashMap("locCountMap", Serializer.INTEGER, Serializer.INTEGER).createOrOpen().put(0, 7);
+      db.commit();
+      db.close();
+      final CoverageLog log = CoverageLog.getInstance(false);
+      final String name = log.getGoalName(0);
+      Assert.assertEquals(Long.valueOf(7), log.getLongHitCounts().get(name));
+      Assert.assertEquals(Integer.valueOf(7), log.getHitCounts().get(name));
+      EnvironmentHelper.cleanupCoverageLog();
+      // moved once, not added again
+      Assert.assertEquals(Long.valueOf(7),
+          CoverageLog.getInstance(false).getLongHitCounts().get(name));
+      EnvironmentHelper.cleanupCoverageLog();
+    }
+  }
+
+  @Test
+  public void testManifestIsOnlyWrittenByInstrumentation() throws Exception {
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Path manifest = Paths.get(System.getenv(CoverageLog.DB_ENV_VAR) + ".manifest");
+      final Properties properties = new Properties();
+      try (final InputStream in = Files.newInputStream(manifest)) {
+        properties.load(in);
+      }
+      Assert.assertEquals("1", properties.getProperty("generation"));
+      Files.delete(manifest);
+      final CoverageLog log = CoverageLog.getInstance(false);
+      int goals = 0;
+      while (log.getGoalLocation(goals) != null) {
+        goals++;
+      }
+      Assert.assertEquals(Integer.toString(goals), properties.getProperty("goals"));
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertFalse(Files.exists(manifest));
+    }
+  }
+
   @Test
   public void testSyntheticTestCase1Method2DefaultCase() throws Exception {
     try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
@@ -62,4 +142,573 @@ public class BlueCovTest {
           PropertyHelper.getCoverageReport());
     }
   }
+
+  @Test
+  public void testSyntheticTestCase1Method2ArrayProbes() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertEquals(PropertyHelper.toSortedGoals(
+              UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2SnapshotDiff() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final CoverageLog log = CoverageLog.getInstance();
+      final CoverageSnapshot before = log.takeSnapshot();
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      final int[] covered = log.coveredSince(before);
+      Assert.assertTrue(covered.length > 0);
+      final CoverageSnapshot after = log.takeSnapshot();
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      Assert.assertArrayEquals(new int[0], log.coveredSince(after));
+      log.resetCoverage();
+      Assert.assertEquals(0, log.takeSnapshot().getCoveredCount());
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      Assert.assertArrayEquals(covered, log.coveredSince(before));
+      EnvironmentHelper.cleanupCoverageLog();
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticCommonSuperclassArrayProbes() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment(
+        "SyntheticCommonSuperclassTestCase", "SyntheticCommonSuperclassTestCase$A",
+        "SyntheticCommonSuperclassTestCase$B")) {
+      final Method method = env.getTargetClass().getDeclaredMethod("f", boolean.class);
+      method.invoke(null, false);
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertEquals(PropertyHelper.toSortedGoals(
+              UnitTestEnvironment.getExpectedResult("SyntheticCommonSuperclassTestCase")),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2BooleanArrayProbes() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    EnvironmentHelper.put(CountingMode.ENV_VAR, CountingMode.BOOLEAN.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      EnvironmentHelper.cleanupCoverageLog();
+      final String expected = UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")
+          .replaceAll("(\"hitCount\"\\s*:\\s*\\d+)", "$1,\"countingMode\":\"boolean\"");
+      Assert.assertEquals(PropertyHelper.toSortedGoals(expected),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+      EnvironmentHelper.remove(CountingMode.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2CheckpointIsNotCountedTwice() throws Exception {
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      // the shutdown hook only adds what was recorded after the checkpoint
+      CoverageLog.getInstance().checkpoint();
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertEquals(PropertyHelper.toSortedGoals(
+              UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")),
+          PropertyHelper.getCoverageReport());
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2MappedCounters() throws Exception {
+    EnvironmentHelper.put(CoverageLog.BACKEND_ENV_VAR, "mmap");
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertEquals(PropertyHelper.toSortedGoals(
+              UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.BACKEND_ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testParallelInstrumentationAssignsSameUids() throws Exception {
+    final List<String> serial = instrumentedGoals("1");
+    Assert.assertFalse(serial.isEmpty());
+    Assert.assertEquals(serial, instrumentedGoals("4"));
+  }
+
+  @Test
+  public void testArrayProbesCopyMethodsWithoutGoals() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    try (final BlueCovEnvironment env = new BlueCovEnvironment()) {
+      final String name = "SyntheticTestCase1";
+      final Path classFile = env.getTempDirectory().resolve(name + Extensions.CLASS);
+      try (final InputStream is = BlueCovTest.class.getResourceAsStream(
+          "/org/cprover/coverage/benchmarks/" + name + Extensions.CLASS)) {
+        Files.copy(is, classFile);
+      }
+      try (final InputStream is = BlueCovTest.class.getResourceAsStream(
+          "/bluecov/" + name + Extensions.JSON_PROPERTIES)) {
+        Files.copy(is, env.getTempDirectory().resolve(name + Extensions.JSON_PROPERTIES));
+      }
+      final byte[] original = Files.readAllBytes(classFile);
+      env.runBlueCov(Collections.singletonList(classFile.toString()));
+      final byte[] instrumented = Files.readAllBytes(classFile);
+
+      // the constant pool of the original class is kept as it is
+      final int constantPoolEnd = new ClassReader(original).header;
+      Assert.assertArrayEquals(Arrays.copyOfRange(original, 10, constantPoolEnd),
+          Arrays.copyOfRange(instrumented, 10, constantPoolEnd));
+
+      // <clinit> has no goals
+      final MethodNode clinit = method(original, "<clinit>");
+      final MethodNode copied = method(instrumented, "<clinit>");
+      Assert.assertEquals(clinit.instructions.size(), copied.instructions.size());
+      Assert.assertEquals(clinit.maxStack, copied.maxStack);
+      Assert.assertEquals(clinit.maxLocals, copied.maxLocals);
+
+      // maxs are not recomputed, so they must suffice for the probes
+      final ClassNode classNode = new ClassNode();
+      new ClassReader(instrumented).accept(classNode, 0);
+      for (final MethodNode method : classNode.methods) {
+        new Analyzer<>(new BasicVerifier()).analyze(classNode.name, method);
+      }
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  private static MethodNode method(final byte[] classData, final String name) {
+    final ClassNode classNode = new ClassNode();
+    new ClassReader(classData).accept(classNode, 0);
+    return classNode.methods.stream().filter(m -> m.name.equals(name)).findFirst().get();
+  }
+
+  private static List<String> instrumentedGoals(final String workers) throws Exception {
+    final String[] classes = {"SyntheticTestCase1", "SyntheticCommonSuperclassTestCase"};
+    EnvironmentHelper.put(BlueCov.WORKERS_ENV_VAR, workers);
+    try (final BlueCovEnvironment env = new BlueCovEnvironment()) {
+      final List<String> classFiles = new ArrayList<>();
+      for (final String name : classes) {
+        final Path classFile = env.getTempDirectory().resolve(name + Extensions.CLASS);
+        try (final InputStream is = BlueCovTest.class.getResourceAsStream(
+            "/org/cprover/coverage/benchmarks/" + name + Extensions.CLASS)) {
+          Files.copy(is, classFile);
+        }
+        try (final InputStream is = BlueCovTest.class.getResourceAsStream(
+            "/bluecov/" + name + Extensions.JSON_PROPERTIES)) {
+          Files.copy(is, env.getTempDirectory().resolve(name + Extensions.JSON_PROPERTIES));
+        }
+        classFiles.add(classFile.toString());
+      }
+      env.runBlueCov(classFiles);
+      final CoverageLog log = CoverageLog.getInstance(false);
+      final List<String> goals = new ArrayList<>();
+      for (int uid = 0; log.getGoalLocation(uid) != null; uid++) {
+        goals.add(log.getGoalLocation(uid));
+      }
+      return goals;
+    } finally {
+      EnvironmentHelper.remove(BlueCov.WORKERS_ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2PluggedRecorder() throws Exception {
+    System.setProperty(CoverageLog.BACKEND_PROPERTY, TestRecorderProvider.NAME);
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      final int[] covered = CoverageLog.getInstance().takeSnapshot().getCovered();
+      Assert.assertTrue(covered.length > 0);
+      for (final int uid : covered) {
+        Assert.assertEquals(1L, TestRecorderProvider.getCount(uid));
+      }
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertEquals(PropertyHelper.toSortedGoals(
+              UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      System.clearProperty(CoverageLog.BACKEND_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2ArrayProbesPersistentRecorder() throws Exception {
+    final long covered = countCovered(
+        UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2"));
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    System.setProperty(CoverageLog.BACKEND_PROPERTY, TestRecorderProvider.PERSISTENT_NAME);
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      // the probe arrays are added to the recorder at shutdown
+      EnvironmentHelper.cleanupCoverageLog();
+      int hit = 0;
+      for (int uid = 0; uid < TestRecorderProvider.getSize(); uid++) {
+        if (TestRecorderProvider.getCount(uid) > 0) {
+          hit++;
+        }
+      }
+      Assert.assertEquals(covered, hit);
+    } finally {
+      System.clearProperty(CoverageLog.BACKEND_PROPERTY);
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2FuzzBitmap() throws Exception {
+    EnvironmentHelper.put(CoverageLog.BACKEND_ENV_VAR, "fuzz");
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final FuzzBitmap bitmap = CoverageLog.getInstance().getFuzzBitmap();
+      final long empty = bitmap.hash();
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      final long covered = bitmap.hash();
+      Assert.assertNotEquals(empty, covered);
+      bitmap.reset();
+      Assert.assertEquals(empty, bitmap.hash());
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      Assert.assertEquals(covered, bitmap.hash());
+      EnvironmentHelper.cleanupCoverageLog();
+      final String report = PropertyHelper.getCoverageReport();
+      Assert.assertTrue(report.contains("\"hitCount\":0"));
+      Assert.assertFalse(report.matches("(?s).*\"hitCount\":[1-9].*"));
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.BACKEND_ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2SelfTimes() throws Exception {
+    EnvironmentHelper.put(CoverageLog.PROFILE_ENV_VAR, Boolean.TRUE.toString());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertFalse(CoverageLog.getInstance(false).getSelfTimes().isEmpty());
+      Assert.assertTrue(CoverageReport.getCollapsedStacks(CoverageLog.getInstance(false))
+          .startsWith("org.cprover.coverage.benchmarks.SyntheticTestCase1;"));
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.PROFILE_ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2ThreadsByGoal() throws Exception {
+    EnvironmentHelper.put(CoverageLog.THREADS_ENV_VAR, Boolean.TRUE.toString());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final Thread worker = new Thread(() -> {
+        try {
+          method.invoke(null, 1, 0, 0, 0.0, 0.0);
+        } catch (ReflectiveOperationException e) {
+          throw new IllegalStateException(e);
+        }
+      }, "worker-7");
+      worker.start();
+      worker.join();
+      EnvironmentHelper.cleanupCoverageLog();
+      final HashMap<Integer, HashMap<String, Long>> threadsByGoal =
+          CoverageLog.getInstance(false).getThreadsByGoal();
+      Assert.assertFalse(threadsByGoal.isEmpty());
+      for (final HashMap<String, Long> pools : threadsByGoal.values()) {
+        Assert.assertEquals(Collections.singleton("worker-"), pools.keySet());
+      }
+      Assert.assertTrue(CoverageReport.getThreadsByGoal(CoverageLog.getInstance(false))
+          .contains("\"pool\":\"worker-\""));
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.THREADS_ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2UnavailableCollector() throws Exception {
+    final int port;
+    try (final ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    EnvironmentHelper.put(CoverageLog.BACKEND_ENV_VAR, "collector");
+    EnvironmentHelper.put(CoverageCollector.ENV_VAR, Integer.toString(port));
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      // the buffered counts are written to the DB instead
+      EnvironmentHelper.cleanupCoverageLog();
+      Assert.assertEquals(PropertyHelper.toSortedGoals(
+              UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.BACKEND_ENV_VAR);
+      EnvironmentHelper.remove(CoverageCollector.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2Monitor() throws Exception {
+    EnvironmentHelper.put(CoverageLog.JMX_ENV_VAR, Boolean.TRUE.toString());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      final CoverageMonitorMXBean monitor = JMX.newMXBeanProxy(
+          ManagementFactory.getPlatformMBeanServer(),
+          new ObjectName("org.cprover.coverage:type=CoverageLog"), CoverageMonitorMXBean.class);
+      final int covered = monitor.getGoalsCovered();
+      Assert.assertTrue(covered > 0);
+      Assert.assertEquals(covered, monitor.getTotalHits());
+      Assert.assertTrue(monitor.getHitsPerSecond() > 0);
+      final Path dump = Files.createTempFile("bluecov-dump", ".json");
+      try {
+        Assert.assertEquals(covered, monitor.dump(dump.toString()));
+      } finally {
+        Files.delete(dump);
+      }
+      monitor.reset();
+      Assert.assertEquals(0, monitor.getGoalsCovered());
+      Assert.assertTrue(monitor.getHitsPerSecond() >= 0);
+      env.getTargetClass().getDeclaredMethod("function", int.class, int.class, int.class,
+          double.class, double.class).invoke(null, 1, 0, 0, 0.0, 0.0);
+      Assert.assertTrue(monitor.getHitsPerSecond() > 0);
+      // counts reset behind the back of the MBean still give a rate of at least zero
+      CoverageLog.getInstance().resetCoverage();
+      Assert.assertTrue(monitor.getHitsPerSecond() >= 0);
+      EnvironmentHelper.cleanupCoverageLog();
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.JMX_ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2FirstHitEvents() throws Exception {
+    final long covered = countCovered(
+        UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2"));
+    final Path file = Files.createTempFile("bluecov", ".jfr");
+    EnvironmentHelper.put(CoverageLog.JFR_ENV_VAR, "true");
+    try (final Recording recording = new Recording();
+        final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      recording.enable("org.cprover.coverage.GoalFirstHit");
+      recording.start();
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      recording.stop();
+      recording.dump(file);
+      EnvironmentHelper.cleanupCoverageLog();
+      final List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+          .filter(event -> event.getEventType().getName()
+              .equals("org.cprover.coverage.GoalFirstHit"))
+          .collect(Collectors.toList());
+      Assert.assertEquals(covered, events.size());
+      for (final RecordedEvent event : events) {
+        Assert.assertEquals("org.cprover.coverage.benchmarks.SyntheticTestCase1",
+            event.getString("className"));
+      }
+    } finally {
+      EnvironmentHelper.remove(CoverageLog.JFR_ENV_VAR);
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2GoalsByTest() throws Exception {
+    final long covered = countCovered(
+        UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2"));
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final CoverageRunListener listener = new CoverageRunListener();
+      final Description first = Description.createTestDescription(BlueCovTest.class, "first");
+      final Description second = Description.createTestDescription(BlueCovTest.class, "second");
+      listener.testStarted(first);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      listener.testFinished(first);
+      listener.testStarted(second);
+      listener.testFinished(second);
+      EnvironmentHelper.cleanupCoverageLog();
+      final Map<String, int[]> goalsByTest = CoverageLog.getInstance(false).getGoalsByTest();
+      Assert.assertEquals(covered, goalsByTest.get(first.getDisplayName()).length);
+      Assert.assertEquals(0, goalsByTest.get(second.getDisplayName()).length);
+      Assert.assertTrue(CoverageReport.getTestsByGoal(CoverageLog.getInstance(false))
+          .contains(first.getDisplayName()));
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2GoalsByTestArrayProbes() throws Exception {
+    final long covered = countCovered(
+        UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2"));
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.ARRAY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final CoverageLog log = CoverageLog.getInstance();
+      log.beginTest("first");
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      log.beginTest("second");
+      log.beginTest("third");
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      log.endTest();
+      EnvironmentHelper.cleanupCoverageLog();
+      final Map<String, int[]> goalsByTest = CoverageLog.getInstance(false).getGoalsByTest();
+      Assert.assertEquals(covered, goalsByTest.get("first").length);
+      Assert.assertEquals(0, goalsByTest.get("second").length);
+      Assert.assertArrayEquals(goalsByTest.get("first"), goalsByTest.get("third"));
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2GoalsByTestIndyProbes() throws Exception {
+    final long covered = countCovered(
+        UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2"));
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.INDY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final CoverageLog log = CoverageLog.getInstance();
+      log.beginTest("first");
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      // the probes retired in the first test record their goals again
+      log.beginTest("second");
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      log.endTest();
+      EnvironmentHelper.cleanupCoverageLog();
+      final Map<String, int[]> goalsByTest = CoverageLog.getInstance(false).getGoalsByTest();
+      Assert.assertEquals(covered, goalsByTest.get("first").length);
+      Assert.assertArrayEquals(goalsByTest.get("first"), goalsByTest.get("second"));
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2SampledGoalsAreCovered() throws Exception {
+    EnvironmentHelper.put("BLUECOV_SAMPLING_RATE", "0.000001");
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      // almost certainly no hit is sampled, every goal hit is still reported once
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      EnvironmentHelper.cleanupCoverageLog();
+      final String expected = UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")
+          .replaceAll("(\"hitCount\"\\s*:\\s*\\d+)", "$1,\"samplingRate\":0.0000010");
+      Assert.assertEquals(PropertyHelper.toSortedGoals(expected),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove("BLUECOV_SAMPLING_RATE");
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2IndyProbesRetire() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.INDY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      // the second run passes retired probes, so every goal is counted once
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      EnvironmentHelper.cleanupCoverageLog();
+      final String expected = UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")
+          .replaceAll("(\"hitCount\"\\s*:\\s*\\d+)", "$1,\"countingMode\":\"boolean\"");
+      Assert.assertEquals(PropertyHelper.toSortedGoals(expected),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testSyntheticTestCase1Method2IndyProbesRearmOnReset() throws Exception {
+    EnvironmentHelper.put(ProbeStyle.ENV_VAR, ProbeStyle.INDY.name());
+    try (final UnitTestEnvironment env = new UnitTestEnvironment("SyntheticTestCase1")) {
+      final Method method = env.getTargetClass()
+          .getDeclaredMethod("function", int.class, int.class, int.class, double.class,
+              double.class);
+      final CoverageLog log = CoverageLog.getInstance();
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      final int[] covered = log.takeSnapshot().getCovered();
+      Assert.assertTrue(covered.length > 0);
+      log.resetCoverage();
+      Assert.assertEquals(0, log.takeSnapshot().getCoveredCount());
+      method.invoke(null, 1, 0, 0, 0.0, 0.0);
+      Assert.assertArrayEquals(covered, log.takeSnapshot().getCovered());
+      EnvironmentHelper.cleanupCoverageLog();
+      final String expected = UnitTestEnvironment.getExpectedResult("SyntheticTestCase-method2")
+          .replaceAll("(\"hitCount\"\\s*:\\s*\\d+)", "$1,\"countingMode\":\"boolean\"");
+      Assert.assertEquals(PropertyHelper.toSortedGoals(expected),
+          PropertyHelper.getCoverageReport());
+    } finally {
+      EnvironmentHelper.remove(ProbeStyle.ENV_VAR);
+    }
+  }
+
+  @Test
+  public void testIndyProbesOnlyCountBoolean() throws Exception {
+    Assert.assertEquals(CountingMode.BOOLEAN, CountingMode.fromEnvironment(ProbeStyle.INDY));
+    EnvironmentHelper.put(CountingMode.ENV_VAR, CountingMode.EXACT.name());
+    try {
+      CountingMode.fromEnvironment(ProbeStyle.INDY);
+      Assert.fail("indy probes accepted exact counts");
+    } catch (IllegalArgumentException e) {
+      // expected
+    } finally {
+      EnvironmentHelper.remove(CountingMode.ENV_VAR);
+    }
+  }
+
+  private static long countCovered(final String expected) {
+    return Arrays.stream(expected.split("\"hitCount\"\\s*:\\s*"))
+        .filter(part -> part.startsWith("1")).count();
+  }
 }